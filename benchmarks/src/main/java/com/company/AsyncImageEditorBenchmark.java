@@ -0,0 +1,94 @@
+package com.company;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the {@link AsyncImageEditor} operations, waiting on each Future, so the numbers include
+ * the AsyncScalr hand-off and compare directly with {@link ImageEditorBenchmark}. Run with {@code -t N}
+ * to see how the shared AsyncScalr pool behaves under N concurrent callers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AsyncImageEditorBenchmark {
+
+    @Param({"640x480", "1920x1080", "4000x3000"})
+    public String size;
+
+    @Param({"INT_RGB", "INT_ARGB", "3BYTE_BGR", "4BYTE_ABGR", "BYTE_GRAY"})
+    public String type;
+
+    private final AsyncImageEditor aie = new AsyncImageEditor();
+    private BufferedImage image;
+    private int width;
+    private int height;
+
+    @Setup
+    public void setUp() {
+        image = BenchmarkImages.create(size, type);
+        width = image.getWidth();
+        height = image.getHeight();
+    }
+
+    @Benchmark
+    public BufferedImage resizeImage() throws InterruptedException, ExecutionException {
+        return aie.resizeImage(image, width / 2, height / 2).get();
+    }
+
+    @Benchmark
+    public BufferedImage resizeFullImage() throws InterruptedException, ExecutionException {
+        return aie.resizeFullImage(image, width / 2, height / 2).get();
+    }
+
+    @Benchmark
+    public BufferedImage resizeThumbnailImage() throws InterruptedException, ExecutionException {
+        return aie.resizeThumbnailImage(image, 150).get();
+    }
+
+    @Benchmark
+    public BufferedImage brightenImage() throws InterruptedException, ExecutionException {
+        return aie.brightenImage(image).get();
+    }
+
+    @Benchmark
+    public BufferedImage darkenImage() throws InterruptedException, ExecutionException {
+        return aie.darkenImage(image).get();
+    }
+
+    @Benchmark
+    public BufferedImage cropImage() throws InterruptedException, ExecutionException {
+        return aie.cropImage(image, width / 4, height / 4, width / 2, height / 2).get();
+    }
+
+    @Benchmark
+    public BufferedImage rotateRight90() throws InterruptedException, ExecutionException {
+        return aie.rotateRight90(image).get();
+    }
+
+    @Benchmark
+    public BufferedImage rotateRight180() throws InterruptedException, ExecutionException {
+        return aie.rotateRight180(image).get();
+    }
+
+    @Benchmark
+    public BufferedImage rotateRight270() throws InterruptedException, ExecutionException {
+        return aie.rotateRight270(image).get();
+    }
+}
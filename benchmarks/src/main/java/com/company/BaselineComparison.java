@@ -0,0 +1,135 @@
+package com.company;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares a JMH CSV result file ({@code -rf csv}) against a stored baseline and prints the change of every
+ * score and of the GC profiler's bytes allocated per operation. Allocation rate, GC count and GC time follow
+ * from those two and are too noisy to compare on their own, so they are left out. A change counts as a
+ * regression when it is worse than the threshold (10% unless given as a third argument) and the two error
+ * bars do not overlap.
+ * Exits with 1 if any result regressed, so it can gate a build.
+ *
+ *     java -cp target/benchmarks.jar com.company.BaselineComparison baseline.csv target/results.csv [percent]
+ */
+public class BaselineComparison {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineComparison <baseline.csv> <results.csv> [threshold percent]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) / 100 : 0.10;
+        Map<String, Result> baseline = read(args[0]);
+        Map<String, Result> current = read(args[1]);
+
+        int regressions = 0;
+        for (Map.Entry<String, Result> entry : current.entrySet()) {
+            Result now = entry.getValue();
+            Result before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf("  new   %-90s %14.3f %s%n", entry.getKey(), now.score, now.unit);
+                continue;
+            }
+            double change = before.score == 0 ? 0 : (now.score - before.score) / before.score;
+            double worse = now.higherIsBetter() ? -change : change;
+            boolean outsideError = Math.abs(now.score - before.score) > now.error + before.error;
+            String verdict = "";
+            if (worse > threshold && outsideError) {
+                verdict = "REGRESSION";
+                regressions++;
+            } else if (-worse > threshold && outsideError) {
+                verdict = "improved";
+            }
+            System.out.printf("%-10s %-90s %14.3f -> %14.3f %-10s %+7.1f%%%n", verdict, entry.getKey(),
+                before.score, now.score, now.unit, change * 100);
+        }
+        System.out.println(regressions + " regression(s) against " + args[0]);
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    private static Map<String, Result> read(String file) throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8);
+        Map<String, Result> results = new LinkedHashMap<>();
+        if (lines.isEmpty()) {
+            return results;
+        }
+        List<String> header = split(lines.get(0));
+        int score = header.indexOf("Score");
+        int error = score + 1;
+        int unit = header.indexOf("Unit");
+        for (String line : lines.subList(1, lines.size())) {
+            List<String> fields = split(line);
+            if (fields.size() != header.size() || isDerivedGcResult(fields.get(0))) {
+                continue;
+            }
+            StringBuilder key = new StringBuilder(fields.get(0)).append(" t=").append(fields.get(2));
+            for (int i = unit + 1; i < fields.size(); i++) {
+                key.append(' ').append(header.get(i).replace("Param: ", "")).append('=').append(fields.get(i));
+            }
+            results.put(key.toString(), new Result(number(fields.get(score)), number(fields.get(error)),
+                fields.get(unit)));
+        }
+        return results;
+    }
+
+    private static boolean isDerivedGcResult(String benchmark) {
+        return benchmark.contains(":gc.") && !benchmark.endsWith(":gc.alloc.rate.norm");
+    }
+
+    /*
+    JMH quotes every field and writes numbers in the default locale, so "1,5" may be a decimal.
+     */
+    private static double number(String field) {
+        if (field.isEmpty() || field.equals("NaN")) {
+            return 0;
+        }
+        return Double.parseDouble(field.replace(',', '.'));
+    }
+
+    private static List<String> split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static class Result {
+        private final double score;
+        private final double error;
+        private final String unit;
+
+        private Result(double score, double error, String unit) {
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+
+        /*
+        Throughput (ops/s, ops/ms...) is better when higher; time per op, bytes per op, allocation rate
+        and GC counts are better when lower.
+         */
+        boolean higherIsBetter() {
+            return unit.startsWith("ops/");
+        }
+    }
+}
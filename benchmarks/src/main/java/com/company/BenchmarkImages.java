@@ -0,0 +1,54 @@
+package com.company;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Builds the source images the benchmarks run on. Sizes are given as "WIDTHxHEIGHT" and color models by
+ * the name of their {@link BufferedImage} type constant, so they can be used directly as JMH parameters.
+ * Pixels are a gradient with some noise, which is closer to a photo than a flat fill, and compress like one.
+ */
+final class BenchmarkImages {
+
+    private static final long SEED = 42;
+
+    private BenchmarkImages() {
+    }
+
+    static BufferedImage create(String size, String type) {
+        String[] dimensions = size.split("x");
+        int width = Integer.parseInt(dimensions[0]);
+        int height = Integer.parseInt(dimensions[1]);
+        BufferedImage image = new BufferedImage(width, height, imageType(type));
+        Random random = new Random(SEED);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / width + random.nextInt(16)) & 0xFF;
+                int g = (y * 255 / height + random.nextInt(16)) & 0xFF;
+                int b = ((x + y) * 127 / (width + height) + random.nextInt(16)) & 0xFF;
+                int a = 0xC0 + random.nextInt(0x40);
+                row[x] = a << 24 | r << 16 | g << 8 | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    static int imageType(String type) {
+        switch (type) {
+            case "INT_RGB":
+                return BufferedImage.TYPE_INT_RGB;
+            case "INT_ARGB":
+                return BufferedImage.TYPE_INT_ARGB;
+            case "3BYTE_BGR":
+                return BufferedImage.TYPE_3BYTE_BGR;
+            case "4BYTE_ABGR":
+                return BufferedImage.TYPE_4BYTE_ABGR;
+            case "BYTE_GRAY":
+                return BufferedImage.TYPE_BYTE_GRAY;
+            default:
+                throw new IllegalArgumentException("Unknown image type " + type);
+        }
+    }
+}
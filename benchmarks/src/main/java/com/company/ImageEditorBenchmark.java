@@ -0,0 +1,128 @@
+package com.company;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of every {@link ImageEditor} operation, per source size and color model.
+ * Resize targets are half the source, crops are the centre quarter, thumbnails are 150px, as in the pipeline.
+ * The stream overloads start from the PNG encoding of the source, so compare them with
+ * {@code PngCodecBenchmark.decode} plus the in-memory operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageEditorBenchmark {
+
+    @Param({"640x480", "1920x1080", "4000x3000"})
+    public String size;
+
+    @Param({"INT_RGB", "INT_ARGB", "3BYTE_BGR", "4BYTE_ABGR", "BYTE_GRAY"})
+    public String type;
+
+    private final ImageEditor ie = new ImageEditor();
+    private BufferedImage image;
+    private ReusableByteBuffer encoded;
+    private int width;
+    private int height;
+
+    @Setup
+    public void setUp() throws IOException {
+        image = BenchmarkImages.create(size, type);
+        encoded = new ReusableByteBuffer(1 << 20);
+        ImageCodec.encode(image, encoded);
+        width = image.getWidth();
+        height = image.getHeight();
+    }
+
+    @Benchmark
+    public BufferedImage resizeImage() {
+        return ie.resizeImage(image, width / 2, height / 2);
+    }
+
+    @Benchmark
+    public BufferedImage resizeImageLanczos() {
+        return ie.resizeImage(image, width / 2, height / 2, ResizeEngine.Filter.LANCZOS3);
+    }
+
+    @Benchmark
+    public BufferedImage resizeFullImage() {
+        return ie.resizeFullImage(image, width / 2, height / 2);
+    }
+
+    @Benchmark
+    public BufferedImage resizeThumbnailImage() {
+        return ie.resizeThumbnailImage(image, 150);
+    }
+
+    @Benchmark
+    public BufferedImage resizeThumbnailImageFromStream() throws IOException {
+        return ie.resizeThumbnailImage(encoded.toInputStream(), 150);
+    }
+
+    @Benchmark
+    public BufferedImage brightenImage() {
+        return ie.brightenImage(image);
+    }
+
+    @Benchmark
+    public BufferedImage darkenImage() {
+        return ie.darkenImage(image);
+    }
+
+    @Benchmark
+    public BufferedImage adjustImage() {
+        return ie.adjustImage(image, 1.05f, 1.2f, 1.1);
+    }
+
+    @Benchmark
+    public BufferedImage cropImage() {
+        return ie.cropImage(image, width / 4, height / 4, width / 2, height / 2);
+    }
+
+    @Benchmark
+    public BufferedImage cropImageFromStream() throws IOException {
+        return ie.cropImage(encoded.toInputStream(), width / 4, height / 4, width / 2, height / 2);
+    }
+
+    @Benchmark
+    public BufferedImage rotateRight90() {
+        return ie.rotateRight90(image);
+    }
+
+    @Benchmark
+    public BufferedImage rotateRight180() {
+        return ie.rotateRight180(image);
+    }
+
+    @Benchmark
+    public BufferedImage rotateRight270() {
+        return ie.rotateRight270(image);
+    }
+
+    @Benchmark
+    public BufferedImage monochrome() {
+        return ie.monochrome(image);
+    }
+
+    @Benchmark
+    public BufferedImage grey() {
+        return ie.grey(image);
+    }
+}
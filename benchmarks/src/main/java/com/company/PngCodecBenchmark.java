@@ -0,0 +1,57 @@
+package com.company;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * PNG encode and decode through {@link ImageCodec}, the same in-memory path the pipeline uses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PngCodecBenchmark {
+
+    @Param({"640x480", "1920x1080", "4000x3000"})
+    public String size;
+
+    @Param({"INT_RGB", "INT_ARGB", "3BYTE_BGR", "4BYTE_ABGR", "BYTE_GRAY"})
+    public String type;
+
+    private final ReusableByteBuffer buffer = new ReusableByteBuffer(1 << 20);
+    private BufferedImage image;
+    private ReusableByteBuffer encoded;
+
+    @Setup
+    public void setUp() throws IOException {
+        image = BenchmarkImages.create(size, type);
+        encoded = new ReusableByteBuffer(1 << 20);
+        ImageCodec.encode(image, encoded);
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        ImageCodec.encode(image, buffer);
+        return buffer.size();
+    }
+
+    @Benchmark
+    public BufferedImage decode() throws IOException {
+        return ImageCodec.decode(encoded.toInputStream());
+    }
+}
@@ -0,0 +1,356 @@
+package com.company;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Resizes the image workers at runtime with an additive-increase, multiplicative-decrease policy. Every
+ * interval it samples the queue backlog, the mean per-image latency since the last sample, system CPU load
+ * and the heap still in use after the last collection, then:
+ * <ul>
+ *     <li>shrinks by {@code decreaseFactor} when the heap is over {@code heapLimit}, or when the CPU is
+ *     over {@code cpuTarget} and latency has grown past {@code latencyTolerance} times the best interval
+ *     of the recent window, i.e. more workers only wait for each other;</li>
+ *     <li>adds one worker when more messages wait than there are workers, the CPU is below its target and
+ *     latency is within tolerance;</li>
+ *     <li>holds otherwise.</li>
+ * </ul>
+ * The result always stays between the floor and the ceiling. Every decision is logged with the samples
+ * behind it, holds included, so the sizing can be audited afterwards.
+ */
+class AdaptiveConcurrency {
+
+    private static final Logger logger = LoggerTool.setupLogger("AdaptiveConcurrency");
+    private static final Set<String> HEAP_POOLS = heapPools();
+
+    private final IntConsumer resize;
+    private final LongSupplier backlog;
+    private final LongSupplier finished;
+    private final LongSupplier busyNanos;
+    private final Settings settings;
+    private final Deque<Double> recentLatencies = new ArrayDeque<>();
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private final Method cpuLoad = cpuLoadMethod(os);
+    private final NotificationListener gcListener = this::collected;
+    private volatile long heapUsedAfterGc = -1;
+    private ScheduledExecutorService scheduler;
+    private volatile int workers;
+    private long lastFinished;
+    private long lastBusyNanos;
+
+    /*
+    resize is called with every new worker count and backlog returns -1 when it is unknown. Latency is
+    busyNanos, the time spent working on images, per finished image: time waiting in queues grows with the
+    backlog rather than with contention, so it is left out.
+     */
+    AdaptiveConcurrency(IntConsumer resize, LongSupplier backlog, LongSupplier finished, LongSupplier busyNanos,
+                        Settings settings) {
+        this.resize = resize;
+        this.backlog = backlog;
+        this.finished = finished;
+        this.busyNanos = busyNanos;
+        this.settings = settings;
+        this.workers = settings.initialWorkers();
+        this.lastFinished = finished.getAsLong();
+        this.lastBusyNanos = busyNanos.getAsLong();
+    }
+
+    synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                ((NotificationEmitter) gc).addNotificationListener(gcListener, null, null);
+            }
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(PipelineStage.namedDaemonThreads("concurrency"));
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                evaluate();
+            } catch (RuntimeException e) {
+                logger.warning("Concurrency evaluation failed: " + e);
+            }
+        }, settings.intervalSeconds, settings.intervalSeconds, TimeUnit.SECONDS);
+        logger.info("Adaptive concurrency started at " + workers + " workers with " + settings);
+    }
+
+    synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                try {
+                    if (gc instanceof NotificationEmitter) {
+                        ((NotificationEmitter) gc).removeNotificationListener(gcListener);
+                    }
+                } catch (ListenerNotFoundException e) {
+                    // already gone with its collector
+                }
+            }
+        }
+    }
+
+    int getWorkers() {
+        return workers;
+    }
+
+    /*
+    One sampling round; returns the worker count it settled on.
+     */
+    synchronized int evaluate() {
+        long waiting = backlog.getAsLong();
+        double latencyMillis = recentLatencyMillis();
+        double cpu = cpuLoad();
+        double heap = heapUsedAfterGc();
+        double best = bestLatency(latencyMillis);
+        boolean slow = !Double.isNaN(latencyMillis) && latencyMillis > best * settings.latencyTolerance;
+
+        int target = workers;
+        String reason;
+        if (heap > settings.heapLimit) {
+            target = (int) (workers * settings.decreaseFactor);
+            reason = "heap over " + percent(settings.heapLimit);
+        } else if (cpu > settings.cpuTarget && slow) {
+            target = (int) (workers * settings.decreaseFactor);
+            reason = "CPU over " + percent(settings.cpuTarget) + " and latency over "
+                + settings.latencyTolerance + "x the best " + format(best) + " ms";
+        } else if (waiting > workers && cpu <= settings.cpuTarget && !slow) {
+            target = workers + 1;
+            reason = "backlog exceeds workers with CPU headroom";
+        } else {
+            reason = waiting < 0 ? "backlog unknown" : waiting <= workers ? "backlog covered"
+                : slow ? "latency over " + settings.latencyTolerance + "x the best " + format(best) + " ms"
+                : "CPU at target";
+        }
+        if (target > settings.getMaxWorkers()) {
+            target = settings.getMaxWorkers();
+            reason += ", but at the ceiling";
+        } else if (target < settings.minWorkers) {
+            target = settings.minWorkers;
+            reason += ", but at the floor";
+        }
+
+        logger.info((target > workers ? "Scaling up " : target < workers ? "Scaling down " : "Holding ")
+            + workers + (target == workers ? "" : " -> " + target) + " workers: " + reason
+            + " (backlog=" + waiting + ", latency=" + format(latencyMillis) + " ms, cpu=" + percent(cpu)
+            + ", heap=" + percent(heap) + ")");
+        if (target != workers) {
+            workers = target;
+            resize.accept(target);
+        }
+        return target;
+    }
+
+    private double recentLatencyMillis() {
+        long count = finished.getAsLong();
+        long nanos = busyNanos.getAsLong();
+        double mean = count == lastFinished ? Double.NaN : (nanos - lastBusyNanos) / 1e6 / (count - lastFinished);
+        lastFinished = count;
+        lastBusyNanos = nanos;
+        return mean;
+    }
+
+    /*
+    The lowest interval mean within the window, which stands in for the latency of an uncontended worker.
+     */
+    private double bestLatency(double latencyMillis) {
+        if (!Double.isNaN(latencyMillis)) {
+            recentLatencies.addLast(latencyMillis);
+            if (recentLatencies.size() > settings.latencyWindow) {
+                recentLatencies.removeFirst();
+            }
+        }
+        double best = Double.POSITIVE_INFINITY;
+        for (double recent : recentLatencies) {
+            best = Math.min(best, recent);
+        }
+        return best;
+    }
+
+    /*
+    Load of the whole machine from 0 to 1, or 0 where the JVM cannot tell, so an unknown load never
+    shrinks the pool on its own.
+     */
+    private double cpuLoad() {
+        if (cpuLoad != null) {
+            try {
+                return Math.max(0, (Double) cpuLoad.invoke(os));
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return 0;
+            }
+        }
+        return Math.max(0, os.getSystemLoadAverage() / os.getAvailableProcessors());
+    }
+
+    /*
+    getCpuLoad where the JDK has it (14 and later); getSystemCpuLoad, which it deprecates, before that.
+    Looked up by name so the same build runs on both.
+     */
+    private static Method cpuLoadMethod(OperatingSystemMXBean os) {
+        if (!(os instanceof com.sun.management.OperatingSystemMXBean)) {
+            return null;
+        }
+        for (String name : new String[] {"getCpuLoad", "getSystemCpuLoad"}) {
+            try {
+                return com.sun.management.OperatingSystemMXBean.class.getMethod(name);
+            } catch (NoSuchMethodException e) {
+                // try the older name
+            }
+        }
+        return null;
+    }
+
+    /*
+    Records the heap left after every collection, young ones included. Pool collection usage would not do:
+    under G1 the old generation's is only updated by a full GC, which a healthy G1 heap rarely sees.
+     */
+    private void collected(Notification notification, Object handback) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+        Map<String, MemoryUsage> after = GarbageCollectionNotificationInfo
+            .from((CompositeData) notification.getUserData()).getGcInfo().getMemoryUsageAfterGc();
+        long used = 0;
+        for (String pool : HEAP_POOLS) {
+            MemoryUsage usage = after.get(pool);
+            used += usage == null ? 0 : usage.getUsed();
+        }
+        heapUsedAfterGc = used;
+    }
+
+    private static Set<String> heapPools() {
+        Set<String> names = new HashSet<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                names.add(pool.getName());
+            }
+        }
+        return names;
+    }
+
+    /*
+    Share of the maximum heap still live after the last collection, or in use right now until the first
+    collection is seen. Usage right now would count garbage the collector has simply not got to yet.
+     */
+    private double heapUsedAfterGc() {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        long used = heapUsedAfterGc >= 0 ? heapUsedAfterGc : heap.getUsed();
+        long max = heap.getMax() > 0 ? heap.getMax() : heap.getCommitted();
+        return max == 0 ? 0 : (double) used / max;
+    }
+
+    private static String percent(double fraction) {
+        return Math.round(fraction * 100) + "%";
+    }
+
+    private static String format(double millis) {
+        return Double.isNaN(millis) || Double.isInfinite(millis) ? "n/a" : String.format("%.1f", millis);
+    }
+
+    /**
+     * Floor, ceiling and thresholds; defaults come from {@code concurrency.*} system properties. The
+     * ceiling defaults to twice the available processors, as the upload and fetch stages mostly wait.
+     */
+    static class Settings {
+
+        private int minWorkers = Integer.getInteger("concurrency.minWorkers", 1);
+        private int maxWorkers =
+            Integer.getInteger("concurrency.maxWorkers", 2 * Runtime.getRuntime().availableProcessors());
+        private int initialWorkers = Integer.getInteger("concurrency.initialWorkers", 4);
+        private long intervalSeconds = Long.getLong("concurrency.intervalSeconds", 15L);
+        private double cpuTarget = doubleProperty("concurrency.cpuTarget", 0.85);
+        private double heapLimit = doubleProperty("concurrency.heapLimit", 0.8);
+        private double latencyTolerance = doubleProperty("concurrency.latencyTolerance", 2.0);
+        private double decreaseFactor = doubleProperty("concurrency.decreaseFactor", 0.75);
+        private int latencyWindow = Integer.getInteger("concurrency.latencyWindow", 20);
+
+        private static double doubleProperty(String name, double defaultValue) {
+            String value = System.getProperty(name);
+            return value == null ? defaultValue : Double.parseDouble(value);
+        }
+
+        Settings withWorkers(int minWorkers, int initialWorkers, int maxWorkers) {
+            if (minWorkers < 1 || maxWorkers < minWorkers) {
+                throw new IllegalArgumentException("Need 1 <= minWorkers <= maxWorkers, got " + minWorkers
+                    + " and " + maxWorkers);
+            }
+            this.minWorkers = minWorkers;
+            this.initialWorkers = initialWorkers;
+            this.maxWorkers = maxWorkers;
+            return this;
+        }
+
+        Settings withIntervalSeconds(long intervalSeconds) {
+            this.intervalSeconds = intervalSeconds;
+            return this;
+        }
+
+        /*
+        Fraction of the machine's CPU, from 0 to 1, above which no workers are added.
+         */
+        Settings withCpuTarget(double cpuTarget) {
+            this.cpuTarget = cpuTarget;
+            return this;
+        }
+
+        /*
+        Fraction of the maximum heap still live after a collection above which workers are removed.
+         */
+        Settings withHeapLimit(double heapLimit) {
+            this.heapLimit = heapLimit;
+            return this;
+        }
+
+        Settings withLatencyTolerance(double latencyTolerance, int latencyWindow) {
+            this.latencyTolerance = latencyTolerance;
+            this.latencyWindow = latencyWindow;
+            return this;
+        }
+
+        Settings withDecreaseFactor(double decreaseFactor) {
+            this.decreaseFactor = decreaseFactor;
+            return this;
+        }
+
+        int getMaxWorkers() {
+            return Math.max(minWorkers, maxWorkers);
+        }
+
+        int initialWorkers() {
+            return Math.max(minWorkers, Math.min(getMaxWorkers(), initialWorkers));
+        }
+
+        @Override
+        public String toString() {
+            return "workers=" + minWorkers + ".." + getMaxWorkers() + ", interval=" + intervalSeconds
+                + " s, cpuTarget=" + percent(cpuTarget) + ", heapLimit=" + percent(heapLimit)
+                + ", latencyTolerance=" + latencyTolerance + "x over " + latencyWindow
+                + " intervals, decreaseFactor=" + decreaseFactor;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.company;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Reads rows of an image straight from its backing array as non-premultiplied 0xAARRGGBB ints.
+ * Only the layouts ImageIO and Java2D commonly produce are covered: 8-bit packed ints, 8-bit interleaved
+ * RGB(A) bytes and 8-bit grey. {@link #of(BufferedImage)} returns null for anything else, and callers
+ * fall back to the Java2D path.
+ */
+abstract class ArgbRowReader {
+
+    final int width;
+    final int height;
+    final boolean hasAlpha;
+
+    private ArgbRowReader(BufferedImage image, boolean hasAlpha) {
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.hasAlpha = hasAlpha;
+    }
+
+    void read(int y, int[] argb) {
+        read(y, 0, width, argb);
+    }
+
+    /*
+    Reads {@code length} pixels of row {@code y} starting at column {@code x} into argb[0..length).
+     */
+    abstract void read(int y, int x, int length, int[] argb);
+
+    static ArgbRowReader of(BufferedImage image) {
+        ColorModel colorModel = image.getColorModel();
+        if (colorModel.isAlphaPremultiplied()) {
+            return null;
+        }
+        WritableRaster raster = image.getRaster();
+        SampleModel sampleModel = raster.getSampleModel();
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        if (dataBuffer.getNumBanks() != 1) {
+            return null;
+        }
+        int originX = -raster.getSampleModelTranslateX();
+        int originY = -raster.getSampleModelTranslateY();
+
+        if (colorModel instanceof DirectColorModel && sampleModel instanceof SinglePixelPackedSampleModel
+            && dataBuffer instanceof DataBufferInt && colorModel.getColorSpace().isCS_sRGB()) {
+            DirectColorModel direct = (DirectColorModel) colorModel;
+            if (!isByteMask(direct.getRedMask()) || !isByteMask(direct.getGreenMask())
+                || !isByteMask(direct.getBlueMask()) || (direct.hasAlpha() && !isByteMask(direct.getAlphaMask()))) {
+                return null;
+            }
+            SinglePixelPackedSampleModel packed = (SinglePixelPackedSampleModel) sampleModel;
+            return new PackedInt(image, direct, ((DataBufferInt) dataBuffer).getData(),
+                dataBuffer.getOffset() + packed.getOffset(originX, originY), packed.getScanlineStride());
+        }
+
+        if (colorModel instanceof ComponentColorModel && sampleModel instanceof PixelInterleavedSampleModel
+            && dataBuffer instanceof DataBufferByte) {
+            PixelInterleavedSampleModel interleaved = (PixelInterleavedSampleModel) sampleModel;
+            for (int bits : colorModel.getComponentSize()) {
+                if (bits != 8) {
+                    return null;
+                }
+            }
+            byte[] data = ((DataBufferByte) dataBuffer).getData();
+            int offset = dataBuffer.getOffset() + interleaved.getOffset(originX, originY)
+                - interleaved.getBandOffsets()[0];
+            int bands = interleaved.getNumBands();
+            int colorSpaceType = colorModel.getColorSpace().getType();
+            if (bands == 1 && image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+                return new InterleavedGrey(image, data, offset + interleaved.getBandOffsets()[0],
+                    interleaved.getPixelStride(), interleaved.getScanlineStride());
+            }
+            if ((bands == 3 || bands == 4) && colorModel.getColorSpace().isCS_sRGB()
+                && colorSpaceType == ColorSpace.TYPE_RGB && (bands == 4) == colorModel.hasAlpha()) {
+                return new InterleavedRgb(image, data, offset, interleaved.getBandOffsets(),
+                    interleaved.getPixelStride(), interleaved.getScanlineStride());
+            }
+        }
+        return null;
+    }
+
+    private static boolean isByteMask(int mask) {
+        return mask == 0xFF || mask == 0xFF00 || mask == 0xFF0000 || mask == 0xFF000000;
+    }
+
+    private static class PackedInt extends ArgbRowReader {
+        private final int[] data;
+        private final int offset;
+        private final int stride;
+        private final int redShift;
+        private final int greenShift;
+        private final int blueShift;
+        private final int alphaShift;
+        private final boolean canonical;
+
+        private PackedInt(BufferedImage image, DirectColorModel colorModel, int[] data, int offset, int stride) {
+            super(image, colorModel.hasAlpha());
+            this.data = data;
+            this.offset = offset;
+            this.stride = stride;
+            this.redShift = Integer.numberOfTrailingZeros(colorModel.getRedMask());
+            this.greenShift = Integer.numberOfTrailingZeros(colorModel.getGreenMask());
+            this.blueShift = Integer.numberOfTrailingZeros(colorModel.getBlueMask());
+            this.alphaShift = hasAlpha ? Integer.numberOfTrailingZeros(colorModel.getAlphaMask()) : -1;
+            this.canonical = redShift == 16 && greenShift == 8 && blueShift == 0 && (!hasAlpha || alphaShift == 24);
+        }
+
+        @Override
+        void read(int y, int x, int length, int[] argb) {
+            int row = offset + y * stride + x;
+            if (canonical) {
+                System.arraycopy(data, row, argb, 0, length);
+                if (!hasAlpha) {
+                    for (int i = 0; i < length; i++) {
+                        argb[i] |= 0xFF000000;
+                    }
+                }
+                return;
+            }
+            for (int i = 0; i < length; i++) {
+                int pixel = data[row + i];
+                int alpha = hasAlpha ? (pixel >>> alphaShift) & 0xFF : 0xFF;
+                argb[i] = alpha << 24 | ((pixel >>> redShift) & 0xFF) << 16
+                    | ((pixel >>> greenShift) & 0xFF) << 8 | ((pixel >>> blueShift) & 0xFF);
+            }
+        }
+    }
+
+    private static class InterleavedRgb extends ArgbRowReader {
+        private final byte[] data;
+        private final int offset;
+        private final int red;
+        private final int green;
+        private final int blue;
+        private final int alpha;
+        private final int pixelStride;
+        private final int stride;
+
+        private InterleavedRgb(BufferedImage image, byte[] data, int offset, int[] bandOffsets, int pixelStride,
+                               int stride) {
+            super(image, bandOffsets.length == 4);
+            this.data = data;
+            this.offset = offset;
+            this.red = bandOffsets[0];
+            this.green = bandOffsets[1];
+            this.blue = bandOffsets[2];
+            this.alpha = hasAlpha ? bandOffsets[3] : -1;
+            this.pixelStride = pixelStride;
+            this.stride = stride;
+        }
+
+        @Override
+        void read(int y, int x, int length, int[] argb) {
+            int p = offset + y * stride + x * pixelStride;
+            for (int i = 0; i < length; i++, p += pixelStride) {
+                int a = hasAlpha ? data[p + alpha] & 0xFF : 0xFF;
+                argb[i] = a << 24 | (data[p + red] & 0xFF) << 16 | (data[p + green] & 0xFF) << 8
+                    | (data[p + blue] & 0xFF);
+            }
+        }
+    }
+
+    private static class InterleavedGrey extends ArgbRowReader {
+        private final byte[] data;
+        private final int offset;
+        private final int pixelStride;
+        private final int stride;
+
+        private InterleavedGrey(BufferedImage image, byte[] data, int offset, int pixelStride, int stride) {
+            super(image, false);
+            this.data = data;
+            this.offset = offset;
+            this.pixelStride = pixelStride;
+            this.stride = stride;
+        }
+
+        /*
+        Grey samples are passed through as r = g = b; TYPE_BYTE_GRAY is converted by Java2D without any
+        gamma adjustment, so this matches the reference path.
+         */
+        @Override
+        void read(int y, int x, int length, int[] argb) {
+            int p = offset + y * stride + x * pixelStride;
+            for (int i = 0; i < length; i++, p += pixelStride) {
+                int g = data[p] & 0xFF;
+                argb[i] = 0xFF000000 | g << 16 | g << 8 | g;
+            }
+        }
+    }
+}
@@ -3,20 +3,134 @@ package com.company;
 // Copyright 2015 - Jacob Jones and Andrew Rottier
 // ImageEditor.java
 
-    import java.awt.Graphics2D;
-    import java.awt.Image;
     import java.awt.image.BufferedImage;
-    import java.util.concurrent.Future;
-
-    import org.imgscalr.AsyncScalr;
-    import org.imgscalr.Scalr;
+    import java.io.ByteArrayInputStream;
+    import java.util.ArrayDeque;
+    import java.util.concurrent.Callable;
+    import java.util.concurrent.CancellationException;
+    import java.util.concurrent.CompletableFuture;
+    import java.util.concurrent.CompletionException;
+    import java.util.concurrent.CompletionStage;
+    import java.util.concurrent.Executor;
+    import java.util.concurrent.ForkJoinPool;
+    import java.util.concurrent.RejectedExecutionException;
+    import java.util.concurrent.ScheduledExecutorService;
+    import java.util.concurrent.ScheduledFuture;
+    import java.util.concurrent.ScheduledThreadPoolExecutor;
+    import java.util.concurrent.TimeUnit;
+    import java.util.concurrent.TimeoutException;
+    import java.util.concurrent.atomic.AtomicInteger;
+    import java.util.function.Function;
 
+/**
+ * The {@link ImageEditor} operations as {@link CompletableFuture}s. A job is a chain of stages built from
+ * a {@link Job}, e.g. decode, rotate, brighten and encode, each of which runs on the executor configured
+ * for its kind of work as soon as its input is ready, so no thread ever waits on another stage.
+ * <p>
+ * At most {@code maxInFlight} jobs run at a time; further jobs wait in submission order without holding
+ * a thread. Cancelling a job or letting it time out completes it at once and skips every stage that has
+ * not started yet. A stage already running is left to finish, and the job keeps its slot until then, so
+ * the limit always reflects the work actually on the executors.
+ */
 public class AsyncImageEditor
 {
 
+    /* Jobs running and waiting across every editor in the process. The gauges are bound once, here, so they
+     * neither follow whichever editor was built last nor keep it alive.
+     */
+    private static final AtomicInteger IN_FLIGHT = new AtomicInteger();
+    private static final AtomicInteger WAITING = new AtomicInteger();
+    private static final StageMetrics JOBS = Metrics.stage("editor.async")
+        .bindInFlight(IN_FLIGHT::get)
+        .bindQueueDepth(WAITING::get);
+    private static final ScheduledExecutorService TIMEOUTS = timeoutScheduler();
+
+    private final ImageEditor editor = new ImageEditor();
+    private final Settings settings;
+    private final ThreadLocal<ReusableByteBuffer> encodeBuffer =
+        ThreadLocal.withInitial(() -> new ReusableByteBuffer(1024 * 1024));
+    private final ArrayDeque<Pending<?>> waiting = new ArrayDeque<>();
+    private final ThreadLocal<ArrayDeque<Pending<?>>> launching = new ThreadLocal<>();
+    private int inFlight;
+
     public AsyncImageEditor()
     {
+        this(new Settings());
+    }
+
+    public AsyncImageEditor(Settings settings)
+    {
+        this.settings = settings;
+    }
+
+    /* submit - runs a chain of stages as one job
+     *       chain - builds the stages from the job, e.g.
+     *               job -> job.decode(png).thenCompose(job::rotateRight90).thenCompose(job::encode)
+     *
+     * The returned future completes with the chain's result, or with its first failure.
+     */
+    public <T> CompletableFuture<T> submit(Function<Job, ? extends CompletionStage<T>> chain)
+    {
+        return submit(chain, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /* submit - same as above, failing with a TimeoutException once timeout has passed since submission,
+     * waiting time included. A timeout of 0 waits for ever.
+     */
+    public <T> CompletableFuture<T> submit(Function<Job, ? extends CompletionStage<T>> chain, long timeout, TimeUnit unit)
+    {
+        Pending<T> pending = new Pending<>(chain, new Job());
+        CompletableFuture<T> result = pending.result;
+        if (timeout > 0)
+        {
+            ScheduledFuture<?> timer = TIMEOUTS.schedule(() -> result.completeExceptionally(
+                new TimeoutException("Image job did not finish within " + unit.toMillis(timeout) + " ms")),
+                timeout, unit);
+            result.whenComplete((value, error) -> timer.cancel(false));
+        }
+        result.whenComplete((value, error) ->
+        {
+            if (error != null)
+            {
+                pending.job.cancelled = true;
+            }
+        });
+        boolean start;
+        synchronized (waiting)
+        {
+            start = inFlight < settings.maxInFlight;
+            if (start)
+            {
+                inFlight++;
+                IN_FLIGHT.incrementAndGet();
+            }
+            else
+            {
+                waiting.add(pending);
+                WAITING.incrementAndGet();
+            }
+        }
+        if (start)
+        {
+            launch(pending);
+        }
+        return result;
+    }
 
+    int getInFlight()
+    {
+        synchronized (waiting)
+        {
+            return inFlight;
+        }
+    }
+
+    int getWaiting()
+    {
+        synchronized (waiting)
+        {
+            return waiting.size();
+        }
     }
 
     /* resizeImage - returns a resized version of a given BufferedImage
@@ -24,55 +138,356 @@ public class AsyncImageEditor
      * 	     width - the desired width
      *      height - the desired height
      *
+     * Bilinear, in the color model of the source image.
      */
-    public BufferedImage resizeImage(BufferedImage image, int width, int height)
+    public CompletableFuture<BufferedImage> resizeImage(BufferedImage image, int width, int height)
+    {
+        return submit(job -> job.resizeImage(image, width, height));
+    }
+
+    public CompletableFuture<BufferedImage> resizeImage(BufferedImage image, int width, int height,
+        ResizeEngine.Filter filter)
+    {
+        return submit(job -> job.resizeImage(image, width, height, filter));
+    }
+
+    public CompletableFuture<BufferedImage> resizeFullImage(BufferedImage image, int width, int height)
+    {
+        return submit(job -> job.resizeFullImage(image, width, height));
+    }
+
+    public CompletableFuture<BufferedImage> resizeThumbnailImage(BufferedImage image, int size)
     {
-        Image tempImage = image.getScaledInstance(width, height, Image.SCALE_FAST);
-        BufferedImage newImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g = newImage.createGraphics();
-        g.drawImage(tempImage, 0, 0, null);
-        g.dispose();
-        return newImage;
+        return submit(job -> job.resizeThumbnailImage(image, size));
     }
 
-    public Future<BufferedImage> resizeFullImage(BufferedImage image, int width, int height)
+    public CompletableFuture<BufferedImage> brightenImage(BufferedImage image)
     {
-        return AsyncScalr.resize(image, Scalr.Method.ULTRA_QUALITY, width, height, Scalr.OP_ANTIALIAS);
+        return submit(job -> job.brightenImage(image));
     }
 
-    public Future<BufferedImage> resizeThumbnailImage(BufferedImage image, int size)
+    public CompletableFuture<BufferedImage> darkenImage(BufferedImage image)
     {
-        return AsyncScalr.resize(image, Scalr.Method.SPEED, size, Scalr.OP_ANTIALIAS);
+        return submit(job -> job.darkenImage(image));
     }
 
-    public Future<BufferedImage> brightenImage(BufferedImage image)
+    public CompletableFuture<BufferedImage> adjustImage(BufferedImage image, float brightness, float contrast,
+                                                        double gamma)
     {
-        return AsyncScalr.apply(image, Scalr.OP_BRIGHTER);
+        return submit(job -> job.adjustImage(image, brightness, contrast, gamma));
     }
 
-    public Future<BufferedImage> darkenImage(BufferedImage image)
+    public CompletableFuture<BufferedImage> cropImage(BufferedImage image, int x, int y, int width, int height)
     {
-        return AsyncScalr.apply(image, Scalr.OP_DARKER);
+        return submit(job -> job.cropImage(image, x, y, width, height));
     }
 
-    public Future<BufferedImage> cropImage(BufferedImage image, int x, int y, int width, int height)
+    public CompletableFuture<BufferedImage> rotateRight90(BufferedImage image)
     {
-        return AsyncScalr.crop(image, x, y, width, height, Scalr.OP_ANTIALIAS);
+        return submit(job -> job.rotateRight90(image));
     }
 
-    public Future<BufferedImage> rotateRight90(BufferedImage image)
+    public CompletableFuture<BufferedImage> rotateRight180(BufferedImage image)
     {
-        return AsyncScalr.rotate(image, Scalr.Rotation.CW_90);
+        return submit(job -> job.rotateRight180(image));
     }
 
-    public Future<BufferedImage> rotateRight180(BufferedImage image)
+    public CompletableFuture<BufferedImage> rotateRight270(BufferedImage image)
     {
-        return AsyncScalr.rotate(image, Scalr.Rotation.CW_180);
+        return submit(job -> job.rotateRight270(image));
     }
 
-    public Future<BufferedImage> rotateRight270(BufferedImage image)
+    /* launch - starts a job that holds a slot, and every job handed the slot on this thread after it
+     *
+     * A chain that completes synchronously hands its slot on from inside start(). Those jobs are queued
+     * here and started by the outermost call in a loop, so a long run of such jobs never deepens the stack.
+     */
+    private void launch(Pending<?> pending)
+    {
+        ArrayDeque<Pending<?>> queued = launching.get();
+        if (queued != null)
+        {
+            queued.add(pending);
+            return;
+        }
+        queued = new ArrayDeque<>();
+        launching.set(queued);
+        try
+        {
+            for (Pending<?> next = pending; next != null; next = queued.poll())
+            {
+                start(next);
+            }
+        }
+        finally
+        {
+            launching.remove();
+        }
+    }
+
+    private <T> void start(Pending<T> pending)
+    {
+        long start = JOBS.start();
+        CompletionStage<T> stage;
+        try
+        {
+            stage = pending.chain.apply(pending.job);
+        }
+        catch (RuntimeException e)
+        {
+            finished();
+            JOBS.error(e);
+            pending.result.completeExceptionally(e);
+            return;
+        }
+        stage.whenComplete((value, error) ->
+        {
+            finished();
+            if (error == null)
+            {
+                JOBS.stop(start);
+                pending.result.complete(value);
+            }
+            else
+            {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause() : error;
+                JOBS.error(cause);
+                pending.result.completeExceptionally(cause);
+            }
+        });
+    }
+
+    /*
+    Hands the slot of a finished job to the oldest waiting job that is still wanted.
+     */
+    private void finished()
     {
-        return AsyncScalr.rotate(image, Scalr.Rotation.CW_270);
+        Pending<?> next;
+        synchronized (waiting)
+        {
+            do
+            {
+                next = waiting.poll();
+                if (next != null)
+                {
+                    WAITING.decrementAndGet();
+                }
+            }
+            while (next != null && next.result.isDone());
+            if (next == null)
+            {
+                inFlight--;
+                IN_FLIGHT.decrementAndGet();
+                return;
+            }
+        }
+        launch(next);
+    }
+
+    private static ScheduledExecutorService timeoutScheduler()
+    {
+        ScheduledThreadPoolExecutor scheduler =
+            new ScheduledThreadPoolExecutor(1, PipelineStage.namedDaemonThreads("editor-timeout"));
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    private static final class Pending<T>
+    {
+        private final Function<Job, ? extends CompletionStage<T>> chain;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final Job job;
+
+        private Pending(Function<Job, ? extends CompletionStage<T>> chain, Job job)
+        {
+            this.chain = chain;
+            this.job = job;
+        }
+    }
+
+    /**
+     * The stages one job is built from. Decoding and encoding run on the codec executors, everything else
+     * on the edit executor. A stage of a cancelled or timed out job completes with a CancellationException
+     * instead of running.
+     */
+    public final class Job
+    {
+        private volatile boolean cancelled;
+
+        private Job()
+        {
+        }
+
+        public boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        public CompletableFuture<BufferedImage> decode(byte[] encoded)
+        {
+            return stage(settings.decodeExecutor, () -> ImageCodec.decode(new ByteArrayInputStream(encoded)));
+        }
+
+        /*
+        PNG bytes, encoded through a buffer kept per executor thread.
+         */
+        public CompletableFuture<byte[]> encode(BufferedImage image)
+        {
+            return stage(settings.encodeExecutor, () ->
+            {
+                ReusableByteBuffer buffer = encodeBuffer.get();
+                ImageCodec.encode(image, buffer);
+                return buffer.toByteArray();
+            });
+        }
+
+        public CompletableFuture<BufferedImage> resizeImage(BufferedImage image, int width, int height)
+        {
+            return edit(() -> editor.resizeImage(image, width, height));
+        }
+
+        public CompletableFuture<BufferedImage> resizeImage(BufferedImage image, int width, int height,
+            ResizeEngine.Filter filter)
+        {
+            return edit(() -> editor.resizeImage(image, width, height, filter));
+        }
+
+        public CompletableFuture<BufferedImage> resizeFullImage(BufferedImage image, int width, int height)
+        {
+            return edit(() -> editor.resizeFullImage(image, width, height));
+        }
+
+        public CompletableFuture<BufferedImage> resizeThumbnailImage(BufferedImage image, int size)
+        {
+            return edit(() -> editor.resizeThumbnailImage(image, size));
+        }
+
+        public CompletableFuture<BufferedImage> brightenImage(BufferedImage image)
+        {
+            return edit(() -> editor.brightenImage(image));
+        }
+
+        public CompletableFuture<BufferedImage> darkenImage(BufferedImage image)
+        {
+            return edit(() -> editor.darkenImage(image));
+        }
+
+        public CompletableFuture<BufferedImage> adjustImage(BufferedImage image, float brightness, float contrast,
+                                                     double gamma)
+        {
+            return edit(() -> editor.adjustImage(image, brightness, contrast, gamma));
+        }
+
+        public CompletableFuture<BufferedImage> cropImage(BufferedImage image, int x, int y, int width, int height)
+        {
+            return edit(() -> editor.cropImage(image, x, y, width, height));
+        }
+
+        public CompletableFuture<BufferedImage> rotateRight90(BufferedImage image)
+        {
+            return edit(() -> editor.rotateRight90(image));
+        }
+
+        public CompletableFuture<BufferedImage> rotateRight180(BufferedImage image)
+        {
+            return edit(() -> editor.rotateRight180(image));
+        }
+
+        public CompletableFuture<BufferedImage> rotateRight270(BufferedImage image)
+        {
+            return edit(() -> editor.rotateRight270(image));
+        }
+
+        public CompletableFuture<BufferedImage> monochrome(BufferedImage image)
+        {
+            return edit(() -> editor.monochrome(image));
+        }
+
+        public CompletableFuture<BufferedImage> grey(BufferedImage image)
+        {
+            return edit(() -> editor.grey(image));
+        }
+
+        private CompletableFuture<BufferedImage> edit(Callable<BufferedImage> work)
+        {
+            return stage(settings.editExecutor, work);
+        }
+
+        private <T> CompletableFuture<T> stage(Executor executor, Callable<T> work)
+        {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            if (cancelled)
+            {
+                future.completeExceptionally(new CancellationException("Image job was cancelled"));
+                return future;
+            }
+            try
+            {
+                executor.execute(() ->
+                {
+                    if (cancelled)
+                    {
+                        future.completeExceptionally(new CancellationException("Image job was cancelled"));
+                        return;
+                    }
+                    try
+                    {
+                        future.complete(work.call());
+                    }
+                    catch (Throwable e)
+                    {
+                        future.completeExceptionally(e);
+                    }
+                });
+            }
+            catch (RejectedExecutionException e)
+            {
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+    }
+
+    public static class Settings
+    {
+
+        private Executor decodeExecutor = ForkJoinPool.commonPool();
+        private Executor editExecutor = ForkJoinPool.commonPool();
+        private Executor encodeExecutor = ForkJoinPool.commonPool();
+        private int maxInFlight = Runtime.getRuntime().availableProcessors();
+
+        public Settings withDecodeExecutor(Executor decodeExecutor)
+        {
+            this.decodeExecutor = decodeExecutor;
+            return this;
+        }
+
+        public Settings withEditExecutor(Executor editExecutor)
+        {
+            this.editExecutor = editExecutor;
+            return this;
+        }
+
+        public Settings withEncodeExecutor(Executor encodeExecutor)
+        {
+            this.encodeExecutor = encodeExecutor;
+            return this;
+        }
+
+        /*
+        Jobs running at once, all stages counted. Enough to keep every core busy, more only adds queued
+        work and heap.
+         */
+        public Settings withMaxInFlight(int maxInFlight)
+        {
+            if (maxInFlight < 1)
+            {
+                throw new IllegalArgumentException("At least one job has to be allowed in flight");
+            }
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
     }
 
 }
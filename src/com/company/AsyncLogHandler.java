@@ -0,0 +1,169 @@
+package com.company;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * A logging handler that never writes on the caller's thread. Records go into a bounded ring buffer and a
+ * single writer thread formats and appends them to the log file in batches through a buffered writer,
+ * flushing once per batch. When the buffer is full the {@link OverflowPolicy} decides whether the caller
+ * waits or the record is dropped; dropped records are counted and reported in the log itself.
+ */
+class AsyncLogHandler extends Handler {
+
+    enum OverflowPolicy {
+        DROP,
+        BLOCK
+    }
+
+    private static final int BATCH_SIZE = 256;
+    private static final long POLL_MILLIS = 200L;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000L;
+
+    private final BlockingQueue<LogRecord> buffer;
+    private final OverflowPolicy overflowPolicy;
+    private final Writer writer;
+    private final Thread writerThread;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private volatile boolean closed;
+    private volatile boolean writerStopped;
+
+    AsyncLogHandler(String file, int capacity, OverflowPolicy overflowPolicy) throws IOException {
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+            StandardCharsets.UTF_8), 64 * 1024);
+        setFormatter(new SimpleFormatter());
+        writerThread = new Thread(this::drain, "log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            return;
+        }
+        // the caller is inferred from the stack on first use, which only works on the logging thread
+        record.getSourceClassName();
+        if (overflowPolicy == OverflowPolicy.BLOCK && !writerStopped) {
+            try {
+                while (!buffer.offer(record, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (writerStopped) {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped.incrementAndGet();
+            }
+        } else if (!buffer.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /*
+    Every batch is flushed by the writer thread, so there is nothing buffered on the caller's side.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /*
+    Stops taking records, waits for the writer to drain what is already buffered, then closes the file.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writerThread.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    long getWrittenCount() {
+        return written.get();
+    }
+
+    /*
+    A batch that cannot be written is reported and counted as dropped, and the writer carries on with the
+    next one, so a full disk costs records rather than stalling every logging thread. Should the writer
+    still stop, publish drops from then on instead of waiting for it.
+     */
+    private void drain() {
+        List<LogRecord> batch = new ArrayList<>(BATCH_SIZE);
+        long reportedDrops = 0;
+        try {
+            while (!closed || !buffer.isEmpty()) {
+                LogRecord first = buffer.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                buffer.drainTo(batch, BATCH_SIZE - 1);
+                try {
+                    long drops = dropped.get();
+                    if (drops != reportedDrops) {
+                        writer.write("AsyncLogHandler dropped " + (drops - reportedDrops)
+                            + " log records because the buffer was full" + System.lineSeparator());
+                        reportedDrops = drops;
+                    }
+                    write(batch);
+                } catch (IOException e) {
+                    reportError("Writing the log failed", e, ErrorManager.WRITE_FAILURE);
+                    dropped.addAndGet(batch.size());
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            writerStopped = true;
+            buffer.clear();
+            try {
+                writer.close();
+            } catch (IOException e) {
+                reportError("Closing the log failed", e, ErrorManager.CLOSE_FAILURE);
+            }
+        }
+    }
+
+    private void write(List<LogRecord> batch) throws IOException {
+        for (LogRecord record : batch) {
+            String line;
+            try {
+                line = getFormatter().format(record);
+            } catch (RuntimeException e) {
+                reportError(null, e, ErrorManager.FORMAT_FAILURE);
+                continue;
+            }
+            writer.write(line);
+        }
+        writer.flush();
+        written.addAndGet(batch.size());
+    }
+}
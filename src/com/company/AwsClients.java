@@ -0,0 +1,358 @@
+package com.company;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.pool.ConnPoolControl;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.http.IdleConnectionReaper;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.simplesystemsmanagement.AWSSimpleSystemsManagement;
+import com.amazonaws.services.simplesystemsmanagement.AWSSimpleSystemsManagementClientBuilder;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
+
+/**
+ * Builds each AWS service client once and hands the same instance to every caller, so the process keeps
+ * one HTTP connection pool per service, with its connections and TLS sessions reused across calls. Every
+ * client gets the same {@link ClientConfiguration} from {@link Settings}, and its pool is published through
+ * {@link Metrics} as {@code aws.<service>}.
+ * <p>
+ * {@link #uploader()} adds the process-wide {@link S3Uploader}, on an S3 client of its own.
+ * <p>
+ * {@link #shared()} is the registry for the whole process. With {@code aws.local=true}, or after
+ * {@link #install} of {@link #local()}, it hands out the in-process stand-ins instead, so nothing leaves
+ * the machine; a service without a stand-in fails rather than silently reaching AWS.
+ */
+final class AwsClients {
+
+    private static final Logger logger = LoggerTool.setupLogger("AwsClients");
+    private static AwsClients shared;
+
+    private final Settings settings;
+    private final boolean local;
+    private final Map<Class<?>, Object> clients = new ConcurrentHashMap<>();
+    private final List<Runnable> shutdowns = new ArrayList<>();
+    private S3Uploader uploader;
+
+    AwsClients(Settings settings) {
+        this(settings, false);
+    }
+
+    private AwsClients(Settings settings, boolean local) {
+        this.settings = settings;
+        this.local = local;
+    }
+
+    static synchronized AwsClients shared() {
+        if (shared == null) {
+            shared = Boolean.getBoolean("aws.local") ? local() : new AwsClients(new Settings());
+        }
+        return shared;
+    }
+
+    /*
+    Replaces the process-wide registry, e.g. with one sized for the worker count. Call before anything asks
+    for a client; callers that already hold one keep it.
+     */
+    static synchronized void install(AwsClients clients) {
+        shared = clients;
+    }
+
+    /*
+    In-memory LocalS3, LocalSqs and LocalDynamoDB without faults. Pass configured stand-ins with with().
+     */
+    static AwsClients local() {
+        return new AwsClients(new Settings(), true);
+    }
+
+    /*
+    Registers a ready-made client for its service interface; it is handed out as is and never shut down.
+     */
+    <T> AwsClients with(Class<T> service, T client) {
+        clients.put(service, client);
+        return this;
+    }
+
+    AmazonS3 s3() {
+        return client(AmazonS3.class, "s3", () -> local
+            ? new LocalS3(new LocalS3.Settings())
+            : build(AmazonS3ClientBuilder.standard()));
+    }
+
+    AmazonSQS sqs() {
+        return client(AmazonSQS.class, "sqs", () -> local
+            ? new LocalSqs(FaultInjector.NONE)
+            : build(AmazonSQSClientBuilder.standard()));
+    }
+
+    AmazonDynamoDB dynamoDB() {
+        return client(AmazonDynamoDB.class, "dynamodb", () -> local
+            ? new LocalDynamoDB(new LocalDynamoDB.Settings())
+            : build(AmazonDynamoDBClientBuilder.standard()));
+    }
+
+    AWSSimpleSystemsManagement ssm() {
+        return client(AWSSimpleSystemsManagement.class, "ssm", () -> {
+            if (local) {
+                throw new IllegalStateException("There is no local stand-in for SSM; register one with with()");
+            }
+            return build(AWSSimpleSystemsManagementClientBuilder.standard());
+        });
+    }
+
+    /*
+    The uploader retries every request itself, so it gets an S3 client built without SDK retries instead of
+    the shared one; otherwise each of its attempts would be retried again by the SDK. Locally it writes
+    through the s3() stand-in, which never retries.
+     */
+    synchronized S3Uploader uploader() {
+        if (uploader == null) {
+            AmazonS3 s3 = local ? s3() : uploadClient();
+            uploader = new S3Uploader(s3, new S3Uploader.Settings());
+            shutdowns.add(0, uploader::shutdown);
+        }
+        return uploader;
+    }
+
+    private AmazonS3 uploadClient() {
+        AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
+            .withClientConfiguration(settings.configuration().withMaxErrorRetry(0));
+        if (settings.region != null) {
+            builder.withRegion(settings.region);
+        }
+        List<HttpClientConnectionManager> before = IdleConnectionReaper.getRegisteredConnectionManagers();
+        AmazonS3 client = builder.build();
+        registerPool("s3.upload", before);
+        shutdowns.add(client::shutdown);
+        logger.info("Built the s3.upload client with " + settings + ", maxErrorRetry=0");
+        return client;
+    }
+
+    Settings getSettings() {
+        return settings;
+    }
+
+    /*
+    Shuts down the uploader and the clients this registry built, which closes their connection pools.
+     */
+    synchronized void shutdown() {
+        for (Runnable shutdown : shutdowns) {
+            shutdown.run();
+        }
+        shutdowns.clear();
+        clients.clear();
+        uploader = null;
+    }
+
+    private <T> T client(Class<T> service, String name, Supplier<T> factory) {
+        Object client = clients.get(service);
+        if (client == null) {
+            client = create(service, name, factory);
+        }
+        return service.cast(client);
+    }
+
+    /*
+    Serialized, so the connection manager that registers with the SDK's reaper while the client is built
+    can be told apart from everyone else's and attributed to this service.
+     */
+    private synchronized <T> Object create(Class<T> service, String name, Supplier<T> factory) {
+        Object existing = clients.get(service);
+        if (existing != null) {
+            return existing;
+        }
+        List<HttpClientConnectionManager> before = IdleConnectionReaper.getRegisteredConnectionManagers();
+        T client = factory.get();
+        registerPool(name, before);
+        if (!local) {
+            shutdowns.add(shutdownOf(client));
+            logger.info("Built the " + name + " client with " + settings);
+        }
+        clients.put(service, client);
+        return client;
+    }
+
+    private static void registerPool(String name, List<HttpClientConnectionManager> before) {
+        List<HttpClientConnectionManager> added =
+            new ArrayList<>(IdleConnectionReaper.getRegisteredConnectionManagers());
+        added.removeAll(before);
+        if (added.size() == 1 && added.get(0) instanceof ConnPoolControl) {
+            Metrics.pool(new Pool("aws." + name, (ConnPoolControl<?>) added.get(0)));
+        }
+    }
+
+    private static Runnable shutdownOf(Object client) {
+        if (client instanceof AmazonS3) {
+            return ((AmazonS3) client)::shutdown;
+        }
+        if (client instanceof AmazonSQS) {
+            return ((AmazonSQS) client)::shutdown;
+        }
+        if (client instanceof AmazonDynamoDB) {
+            return ((AmazonDynamoDB) client)::shutdown;
+        }
+        return ((AWSSimpleSystemsManagement) client)::shutdown;
+    }
+
+    private <B extends AwsClientBuilder<B, T>, T> T build(B builder) {
+        builder.withClientConfiguration(settings.configuration());
+        if (settings.region != null) {
+            builder.withRegion(settings.region);
+        }
+        return builder.build();
+    }
+
+    private static final class Pool implements ConnectionPoolMBean {
+        private final String name;
+        private final ConnPoolControl<?> control;
+
+        private Pool(String name, ConnPoolControl<?> control) {
+            this.name = name;
+            this.control = control;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public int getLeased() {
+            return control.getTotalStats().getLeased();
+        }
+
+        @Override
+        public int getPending() {
+            return control.getTotalStats().getPending();
+        }
+
+        @Override
+        public int getAvailable() {
+            return control.getTotalStats().getAvailable();
+        }
+
+        @Override
+        public int getMax() {
+            return control.getTotalStats().getMax();
+        }
+    }
+
+    /**
+     * Connection pool and timeout tuning shared by every client. Defaults come from {@code aws.*} system
+     * properties. The SDK always sets TCP_NODELAY on its sockets, so there is nothing to configure for it.
+     */
+    static class Settings {
+
+        /*
+        A worker holds a connection for its SQS receive or delete, its source download and the variant uploads
+        it has in flight; the rest is headroom for retries and the S3Uploader's part threads.
+         */
+        static final int CONNECTIONS_PER_WORKER = 8;
+
+        private String region = System.getProperty("aws.region");
+        private int maxConnections =
+            Integer.getInteger("aws.maxConnections", ClientConfiguration.DEFAULT_MAX_CONNECTIONS);
+        private int connectionTimeoutMillis = Integer.getInteger("aws.connectionTimeoutMillis", 2000);
+        private int socketTimeoutMillis =
+            Integer.getInteger("aws.socketTimeoutMillis", ClientConfiguration.DEFAULT_SOCKET_TIMEOUT);
+        private int requestTimeoutMillis = Integer.getInteger("aws.requestTimeoutMillis", 0);
+        private boolean tcpKeepAlive = Boolean.parseBoolean(System.getProperty("aws.tcpKeepAlive", "true"));
+        private long connectionMaxIdleMillis =
+            Long.getLong("aws.connectionMaxIdleMillis", ClientConfiguration.DEFAULT_CONNECTION_MAX_IDLE_MILLIS);
+        private long connectionTtlMillis =
+            Long.getLong("aws.connectionTtlMillis", ClientConfiguration.DEFAULT_CONNECTION_TTL);
+
+        /*
+        Enough connections for every worker to have all its calls open at once, unless aws.maxConnections
+        asks for more.
+         */
+        Settings forWorkers(int workers) {
+            maxConnections = Math.max(maxConnections, workers * CONNECTIONS_PER_WORKER);
+            return this;
+        }
+
+        Settings withRegion(String region) {
+            this.region = region;
+            return this;
+        }
+
+        Settings withMaxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        /*
+        Also bounds the wait for a pooled connection, which the SDK sets to the same value.
+         */
+        Settings withConnectionTimeoutMillis(int connectionTimeoutMillis) {
+            this.connectionTimeoutMillis = connectionTimeoutMillis;
+            return this;
+        }
+
+        Settings withSocketTimeoutMillis(int socketTimeoutMillis) {
+            this.socketTimeoutMillis = socketTimeoutMillis;
+            return this;
+        }
+
+        /*
+        Zero turns the per-request timeout off.
+         */
+        Settings withRequestTimeoutMillis(int requestTimeoutMillis) {
+            this.requestTimeoutMillis = requestTimeoutMillis;
+            return this;
+        }
+
+        Settings withTcpKeepAlive(boolean tcpKeepAlive) {
+            this.tcpKeepAlive = tcpKeepAlive;
+            return this;
+        }
+
+        Settings withConnectionMaxIdleMillis(long connectionMaxIdleMillis) {
+            this.connectionMaxIdleMillis = connectionMaxIdleMillis;
+            return this;
+        }
+
+        /*
+        How long a connection may be reused at all; -1 keeps it as long as the server does.
+         */
+        Settings withConnectionTtlMillis(long connectionTtlMillis) {
+            this.connectionTtlMillis = connectionTtlMillis;
+            return this;
+        }
+
+        int getMaxConnections() {
+            return maxConnections;
+        }
+
+        ClientConfiguration configuration() {
+            return new ClientConfiguration()
+                .withMaxConnections(maxConnections)
+                .withConnectionTimeout(connectionTimeoutMillis)
+                .withSocketTimeout(socketTimeoutMillis)
+                .withRequestTimeout(requestTimeoutMillis)
+                .withTcpKeepAlive(tcpKeepAlive)
+                .withConnectionMaxIdleMillis(connectionMaxIdleMillis)
+                .withConnectionTTL(connectionTtlMillis);
+        }
+
+        @Override
+        public String toString() {
+            return "maxConnections=" + maxConnections + ", connectionTimeout=" + connectionTimeoutMillis
+                + " ms, socketTimeout=" + socketTimeoutMillis + " ms, requestTimeout=" + requestTimeoutMillis
+                + " ms, tcpKeepAlive=" + tcpKeepAlive + ", connectionMaxIdle=" + connectionMaxIdleMillis
+                + " ms, connectionTtl=" + connectionTtlMillis + " ms"
+                + (region == null ? "" : ", region=" + region);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.company;
+
+/**
+ * JMX view of one HTTP connection pool, e.g. the one behind an AWS client from {@link AwsClients}.
+ */
+public interface ConnectionPoolMBean {
+
+    String getName();
+
+    /*
+    Connections currently handed out to requests.
+     */
+    int getLeased();
+
+    /*
+    Requests waiting for a connection because the pool is at its maximum.
+     */
+    int getPending();
+
+    /*
+    Idle connections kept open for reuse.
+     */
+    int getAvailable();
+
+    int getMax();
+}
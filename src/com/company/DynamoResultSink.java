@@ -0,0 +1,241 @@
+package com.company;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+/**
+ * Buffers result items for one table and writes them with BatchWriteItem, 25 to a request. Items the
+ * service hands back as unprocessed are retried with exponential backoff and jitter. Callers spread their
+ * items over {@link #shardOf} partition keys instead of a single hot one, and record progress in one
+ * checkpoint item, so a restart reads a single item instead of the whole table.
+ * <p>
+ * Puts may come from several threads. A checkpoint waits for every batch already taken by a put and
+ * flushes the rest, so it never gets ahead of what is stored. A batch that cannot be written may hold
+ * items of any caller, so after the first failed write the sink refuses further puts and checkpoints; a
+ * restart then resumes from the last mark that was fully stored.
+ */
+class DynamoResultSink {
+
+    static final int MAX_BATCH_SIZE = 25;
+    static final String HIGH_WATER_MARK = "highWaterMark";
+    private static final Logger logger = LoggerTool.setupLogger("DynamoResultSink");
+
+    private final AmazonDynamoDB client;
+    private final String tableName;
+    private final Settings settings;
+    private final StageMetrics metrics;
+    private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+    private List<WriteRequest> buffer = new ArrayList<>(MAX_BATCH_SIZE);
+
+    DynamoResultSink(AmazonDynamoDB client, String tableName, Settings settings) {
+        if (settings.checkpointKey == null) {
+            throw new IllegalArgumentException("A checkpoint key is needed for table " + tableName);
+        }
+        this.client = client;
+        this.tableName = tableName;
+        this.settings = settings;
+        this.metrics = Metrics.stage("dynamo." + tableName + ".batchWrite");
+    }
+
+    /*
+    A well mixed shard number for a sequence, so odd primes or runs of consecutive orders still land on
+    every shard.
+     */
+    int shardOf(long sequence) {
+        long mixed = sequence * 0x9E3779B97F4A7C15L;
+        return (int) ((mixed >>> 32) % settings.shards);
+    }
+
+    void put(Map<String, AttributeValue> item) {
+        checkpointLock.readLock().lock();
+        try {
+            checkNotFailed();
+            List<WriteRequest> batch = null;
+            synchronized (this) {
+                buffer.add(new WriteRequest().withPutRequest(new PutRequest().withItem(item)));
+                if (buffer.size() >= MAX_BATCH_SIZE) {
+                    batch = buffer;
+                    buffer = new ArrayList<>(MAX_BATCH_SIZE);
+                }
+            }
+            if (batch != null) {
+                write(batch);
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    void flush() {
+        checkpointLock.writeLock().lock();
+        try {
+            flushBuffer();
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /*
+    Stores everything put so far and then the high-water mark. Marks are kept as strings, since primes run
+    past the 38 digits a DynamoDB number holds.
+     */
+    void checkpoint(BigInteger highWaterMark) {
+        checkpointLock.writeLock().lock();
+        try {
+            checkNotFailed();
+            flushBuffer();
+            Map<String, AttributeValue> item = new HashMap<>(settings.checkpointKey);
+            item.put(HIGH_WATER_MARK, new AttributeValue().withS(highWaterMark.toString()));
+            client.putItem(new PutItemRequest().withTableName(tableName).withItem(item));
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /*
+    The last checkpointed mark, or null if there is none yet.
+     */
+    BigInteger highWaterMark() {
+        Map<String, AttributeValue> item = client.getItem(new GetItemRequest().withTableName(tableName)
+            .withKey(settings.checkpointKey).withConsistentRead(true)).getItem();
+        if (item == null || !item.containsKey(HIGH_WATER_MARK)) {
+            return null;
+        }
+        return new BigInteger(item.get(HIGH_WATER_MARK).getS());
+    }
+
+    long getWrittenCount() {
+        return written.get();
+    }
+
+    long getRetryCount() {
+        return retries.get();
+    }
+
+    private void flushBuffer() {
+        List<WriteRequest> batch;
+        synchronized (this) {
+            batch = buffer;
+            buffer = new ArrayList<>(MAX_BATCH_SIZE);
+        }
+        if (!batch.isEmpty()) {
+            write(batch);
+        }
+    }
+
+    private void checkNotFailed() {
+        RuntimeException cause = failure.get();
+        if (cause != null) {
+            throw new AmazonClientException("An earlier write to " + tableName + " failed, so nothing after it "
+                + "can be checkpointed", cause);
+        }
+    }
+
+    private void write(List<WriteRequest> batch) {
+        try {
+            writeWithRetries(batch);
+        } catch (RuntimeException e) {
+            failure.compareAndSet(null, e);
+            throw e;
+        }
+    }
+
+    private void writeWithRetries(List<WriteRequest> batch) {
+        Map<String, List<WriteRequest>> pending = Collections.singletonMap(tableName, batch);
+        for (int attempt = 1; ; attempt++) {
+            int size = pending.get(tableName).size();
+            long start = metrics.start();
+            BatchWriteItemResult result;
+            try {
+                result = client.batchWriteItem(new BatchWriteItemRequest().withRequestItems(pending));
+            } catch (RuntimeException e) {
+                metrics.error(e);
+                throw e;
+            }
+            Map<String, List<WriteRequest>> unprocessed = result.getUnprocessedItems();
+            int left = unprocessed == null || !unprocessed.containsKey(tableName)
+                ? 0 : unprocessed.get(tableName).size();
+            metrics.stop(start, size, size - left);
+            written.addAndGet(size - left);
+            if (left == 0) {
+                return;
+            }
+            if (attempt >= settings.maxAttempts) {
+                throw new AmazonClientException(left + " items for " + tableName + " still unprocessed after "
+                    + attempt + " attempts");
+            }
+            retries.incrementAndGet();
+            long backoff = Math.min(settings.maxBackoffMillis,
+                settings.baseBackoffMillis << Math.min(attempt - 1, 20));
+            logger.fine("Retrying " + left + " unprocessed items for " + tableName + " in up to " + backoff + " ms");
+            try {
+                TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(backoff + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AmazonClientException("Interrupted while retrying writes to " + tableName, e);
+            }
+            pending = unprocessed;
+        }
+    }
+
+    static class Settings {
+
+        private int shards = 16;
+        private int maxAttempts = 10;
+        private long baseBackoffMillis = 50;
+        private long maxBackoffMillis = 5000;
+        private Map<String, AttributeValue> checkpointKey;
+
+        Settings withShards(int shards) {
+            if (shards < 1) {
+                throw new IllegalArgumentException("At least one shard is needed");
+            }
+            this.shards = shards;
+            return this;
+        }
+
+        Settings withMaxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        Settings withBackoffMillis(long baseBackoffMillis, long maxBackoffMillis) {
+            this.baseBackoffMillis = baseBackoffMillis;
+            this.maxBackoffMillis = maxBackoffMillis;
+            return this;
+        }
+
+        /*
+        The full primary key of the checkpoint item. It lives in the same table, so rebuilding the table
+        resets it as well.
+         */
+        Settings withCheckpointKey(Map<String, AttributeValue> checkpointKey) {
+            this.checkpointKey = checkpointKey;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.company;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Adds latency and random failures to the local AWS stand-ins, so a load test can see how the pipeline
+ * copes with a slow or flaky service. Every call waits the configured latency plus up to the jitter, then
+ * fails with the configured probability the way a throttled AWS service does: a 503 service exception.
+ */
+class FaultInjector {
+
+    static final FaultInjector NONE = new FaultInjector(new Settings());
+
+    private final Settings settings;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong injectedFailures = new AtomicLong();
+
+    FaultInjector(Settings settings) {
+        this.settings = settings;
+    }
+
+    /*
+    Reads latencyMillis, jitterMillis and failureRate for the given service, e.g. load.s3.latencyMillis.
+     */
+    static FaultInjector fromSystemProperties(String prefix) {
+        return new FaultInjector(new Settings()
+            .withLatencyMillis(Long.getLong(prefix + ".latencyMillis", 0L))
+            .withJitterMillis(Long.getLong(prefix + ".jitterMillis", 0L))
+            .withFailureRate(Double.parseDouble(System.getProperty(prefix + ".failureRate", "0"))));
+    }
+
+    void call(String serviceName, String operation) {
+        calls.incrementAndGet();
+        long delay = settings.latencyMillis;
+        if (settings.jitterMillis > 0) {
+            delay += ThreadLocalRandom.current().nextLong(settings.jitterMillis + 1);
+        }
+        if (delay > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (settings.failureRate > 0 && ThreadLocalRandom.current().nextDouble() < settings.failureRate) {
+            injectedFailures.incrementAndGet();
+            AmazonServiceException failure = new AmazonServiceException("Injected failure in " + operation);
+            failure.setServiceName(serviceName);
+            failure.setStatusCode(503);
+            failure.setErrorCode("ServiceUnavailable");
+            failure.setErrorType(AmazonServiceException.ErrorType.Service);
+            throw failure;
+        }
+    }
+
+    long getCallCount() {
+        return calls.get();
+    }
+
+    long getInjectedFailureCount() {
+        return injectedFailures.get();
+    }
+
+    @Override
+    public String toString() {
+        return "latency=" + settings.latencyMillis + "ms+" + settings.jitterMillis + "ms, failureRate="
+            + settings.failureRate;
+    }
+
+    static class Settings {
+
+        private long latencyMillis;
+        private long jitterMillis;
+        private double failureRate;
+
+        Settings withLatencyMillis(long latencyMillis) {
+            this.latencyMillis = latencyMillis;
+            return this;
+        }
+
+        Settings withJitterMillis(long jitterMillis) {
+            this.jitterMillis = jitterMillis;
+            return this;
+        }
+
+        Settings withFailureRate(double failureRate) {
+            this.failureRate = failureRate;
+            return this;
+        }
+    }
+}
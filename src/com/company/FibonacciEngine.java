@@ -0,0 +1,77 @@
+package com.company;
+
+import java.math.BigInteger;
+
+/**
+ * Fibonacci numbers by fast doubling: F(n) costs O(log n) big multiplications instead of the exponential
+ * recursion it replaces. A {@link Cursor} seeks to an order once and then walks forward one addition per
+ * term, which is the cheap way to produce a run of consecutive orders.
+ */
+final class FibonacciEngine {
+
+    private FibonacciEngine() {
+    }
+
+    static BigInteger fib(long n) {
+        return fibPair(n)[0];
+    }
+
+    /*
+    {F(n), F(n + 1)}, from F(2k) = F(k) * (2F(k+1) - F(k)) and F(2k+1) = F(k)^2 + F(k+1)^2, walking the
+    bits of n from the top.
+     */
+    static BigInteger[] fibPair(long n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("Negative Fibonacci order " + n);
+        }
+        BigInteger a = BigInteger.ZERO;
+        BigInteger b = BigInteger.ONE;
+        for (int bit = 63 - Long.numberOfLeadingZeros(n); bit >= 0; bit--) {
+            BigInteger doubled = a.multiply(b.shiftLeft(1).subtract(a));
+            BigInteger doubledPlusOne = a.multiply(a).add(b.multiply(b));
+            if (((n >>> bit) & 1) == 0) {
+                a = doubled;
+                b = doubledPlusOne;
+            } else {
+                a = doubledPlusOne;
+                b = doubled.add(doubledPlusOne);
+            }
+        }
+        return new BigInteger[] {a, b};
+    }
+
+    /**
+     * Consecutive terms starting at a given order.
+     */
+    static class Cursor {
+        private long order;
+        private BigInteger current;
+        private BigInteger next;
+
+        Cursor(long order) {
+            seek(order);
+        }
+
+        void seek(long order) {
+            BigInteger[] pair = fibPair(order);
+            this.order = order;
+            this.current = pair[0];
+            this.next = pair[1];
+        }
+
+        long order() {
+            return order;
+        }
+
+        BigInteger value() {
+            return current;
+        }
+
+        void advance() {
+            BigInteger following = current.add(next);
+            current = next;
+            next = following;
+            order++;
+        }
+    }
+}
@@ -1,55 +1,80 @@
 package com.company;
 
 import java.math.BigInteger;
-import java.sql.Time;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
-import com.amazonaws.services.dynamodbv2.document.DynamoDB;
-import com.amazonaws.services.dynamodbv2.document.Item;
-import com.amazonaws.services.dynamodbv2.document.ItemCollection;
-import com.amazonaws.services.dynamodbv2.document.QueryOutcome;
-import com.amazonaws.services.dynamodbv2.document.Table;
-import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 
 public class FibonnaciTool {
 
     private static final Logger logger = LoggerTool.setupLogger("FibonnaciTool");
     public static final String FIBONNACI_TABLE = "fibonnaci-table";
+    private static final int BLOCK_SIZE = Integer.getInteger("fibonacci.blockSize", 64);
+    private static final StageMetrics computeMetrics = Metrics.stage("fibonacci.compute");
+    private static final StageMetrics putMetrics = Metrics.stage("fibonacci.put");
+    private static final StageMetrics pickUpMetrics = Metrics.stage("fibonacci.pickUpFrom");
 
     public static BigInteger fib(BigInteger n) {
-        if (n.compareTo(BigInteger.ONE) == -1 || n.compareTo(BigInteger.ONE) == 0 ) return n;
-        else
-            return fib(n.subtract(BigInteger.ONE)).add(fib(n.subtract(BigInteger.ONE).subtract(BigInteger.ONE)));
+        if (n.compareTo(BigInteger.ONE) <= 0) return n;
+        if (n.bitLength() > 63) {
+            throw new IllegalArgumentException("Fibonacci order " + n + " is out of range");
+        }
+        return FibonacciEngine.fib(n.longValue());
     }
 
     static void populateFibInParallelUpTo(BigInteger max, int numOfThread) {
-        AmazonDynamoDB client = AmazonDynamoDBClientBuilder.defaultClient();
-        DynamoDB dynamoDB = new DynamoDB(client);
-        Table table = dynamoDB.getTable(FIBONNACI_TABLE);
-        BigInteger startFrom = pickUpFrom(table);
+        populateFibInParallelUpTo(AwsClients.shared().dynamoDB(), max, numOfThread);
+    }
+
+    /*
+    Orders are split into blocks of fibonacci.blockSize and worker j takes blocks j, j + N, j + 2N, ...,
+    so every order is written by exactly one worker. A block costs one fast-doubling seek and then one
+    addition per term. Once a block and all blocks before it are done, the high-water mark moves to its
+    last order.
+     */
+    static void populateFibInParallelUpTo(AmazonDynamoDB client, BigInteger max, int numOfThread) {
+        DynamoResultSink sink = new DynamoResultSink(client, FIBONNACI_TABLE, new DynamoResultSink.Settings()
+            .withShards(Integer.getInteger("fibonacci.shards", 16))
+            .withCheckpointKey(checkpointKey()));
+        long startFrom = pickUpFrom(sink);
+        long last = max.min(BigInteger.valueOf(Long.MAX_VALUE - BLOCK_SIZE)).longValue();
+        logger.info("Resuming Fibonacci orders from " + startFrom + " up to " + last);
+        BitSet doneBlocks = new BitSet();
         ExecutorService executorService = Executors.newFixedThreadPool(numOfThread);
         for (int j = 0; j < numOfThread; j++) {
             final int ID = j;
             executorService.submit(() -> {
                 try {
-                    BigInteger order = startFrom;
-                    while (true) {
-                        table.putItem(new Item().withNumber("workerId", ID)
-                            .withString("order", order.toString())
-                            .withString("fibonnaci", fib(order).toString()));
-                        order = order.add(BigInteger.ONE);
-                        try {
-                            TimeUnit.SECONDS.sleep(5);
-                        } catch (InterruptedException e) {
-                            logger.warning("Interrupted during prime calculation.");
+                    for (int block = ID; startFrom + (long) block * BLOCK_SIZE <= last; block += numOfThread) {
+                        long first = startFrom + (long) block * BLOCK_SIZE;
+                        long start = computeMetrics.start();
+                        FibonacciEngine.Cursor cursor = new FibonacciEngine.Cursor(first);
+                        computeMetrics.stop(start);
+                        long end = Math.min(first + BLOCK_SIZE - 1, last);
+                        while (true) {
+                            putFib(sink, cursor.order(), cursor.value());
+                            if (cursor.order() == end) {
+                                break;
+                            }
+                            start = computeMetrics.start();
+                            cursor.advance();
+                            computeMetrics.stop(start);
                         }
-                        if (order.compareTo(max)==1) {
-                            break;
+                        synchronized (doneBlocks) {
+                            int contiguousBefore = doneBlocks.nextClearBit(0);
+                            doneBlocks.set(block);
+                            int contiguous = doneBlocks.nextClearBit(0);
+                            if (contiguous > contiguousBefore) {
+                                long highWaterMark = Math.min(startFrom + (long) contiguous * BLOCK_SIZE - 1, last);
+                                sink.checkpoint(BigInteger.valueOf(highWaterMark));
+                            }
                         }
                     }
                 } catch (Exception e) {
@@ -57,25 +82,52 @@ public class FibonnaciTool {
                 }
             });
         }
+        executorService.shutdown();
         try {
             executorService.awaitTermination(100L, TimeUnit.HOURS);
+            sink.flush();
         } catch (InterruptedException e) {
-            executorService.shutdown();
-            e.printStackTrace();
+            executorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            logger.warning("Fibonacci Tool failed to flush: " + e);
+        }
+    }
+
+    /*
+    The partition key is a shard of the order rather than the worker, so a rerun with another worker
+    count overwrites the same items instead of duplicating them. It keeps its old name because the
+    table's key schema is fixed.
+     */
+    private static void putFib(DynamoResultSink sink, long order, BigInteger value) {
+        long start = putMetrics.start();
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put("workerId", new AttributeValue().withN(String.valueOf(sink.shardOf(order))));
+        item.put("order", new AttributeValue().withS(Long.toString(order)));
+        item.put("fibonnaci", new AttributeValue().withS(value.toString()));
+        try {
+            sink.put(item);
+        } catch (RuntimeException e) {
+            putMetrics.error(e);
+            throw e;
         }
+        putMetrics.stop(start);
     }
 
-    private static BigInteger pickUpFrom(Table table) {
-        BigInteger largestPrime = BigInteger.ZERO;
-        ItemCollection<QueryOutcome> results = table.query(new QuerySpec()
-            .withHashKey("workerId", 1));
-        for (Item result : results) {
-            BigInteger number = new BigInteger(result.getString("order"));
-            if (number.compareTo(largestPrime) == 1) {
-                largestPrime = number;
-            }
-        };
-        return largestPrime;
+    /*
+    Every order up to the checkpointed high-water mark is stored, whichever workers wrote them.
+     */
+    private static long pickUpFrom(DynamoResultSink sink) {
+        long start = pickUpMetrics.start();
+        BigInteger highWaterMark = sink.highWaterMark();
+        pickUpMetrics.stop(start);
+        return highWaterMark == null ? 0 : highWaterMark.longValue() + 1;
     }
-}
 
+    private static Map<String, AttributeValue> checkpointKey() {
+        Map<String, AttributeValue> key = new HashMap<>();
+        key.put("workerId", new AttributeValue().withN("-1"));
+        key.put("order", new AttributeValue().withS("checkpoint"));
+        return key;
+    }
+}
@@ -0,0 +1,209 @@
+package com.company;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.imgscalr.Scalr;
+
+/**
+ * Derives several {@link ImageVariant}s in one pass over the source. The source is walked in tiles of
+ * {@code TILE_WIDTH} columns by a stripe of rows; each tile row is read from the raster once into a small
+ * buffer that stays in L1 and every requested output is written from it. Stripes run on a ForkJoin pool.
+ * <p>
+ * The output matches {@link ImageVariant#transform} pixel for pixel. Grey and monochrome use
+ * {@link PixelKernels}' tables. Brighten and darken use per-channel tables built once from
+ * {@link Scalr#apply}, which {@link ToneKernels} reproduces. Upright is a reversed copy. The last three are
+ * only fused for opaque RGB sources, since their outputs here are INT_RGB: the reference keeps alpha and grey
+ * samples in the source layout, so for other sources those variants are handed to the reference transform.
+ */
+final class FusedVariantKernel {
+
+    private static final ImageEditor REFERENCE = new ImageEditor();
+    private static final int TILE_WIDTH = 1024;
+    private static final int STRIPE_PIXELS = 1 << 16;
+    private static final Set<ImageVariant> RGB_ONLY =
+        Collections.unmodifiableSet(EnumSet.of(ImageVariant.UPRIGHT, ImageVariant.BRIGHTEN, ImageVariant.DARKEN));
+
+    private static final int[] BRIGHTER = channelTable(Scalr.OP_BRIGHTER);
+    private static final int[] DARKER = channelTable(Scalr.OP_DARKER);
+
+    private FusedVariantKernel() {
+    }
+
+    static Map<ImageVariant, BufferedImage> apply(BufferedImage source, Set<ImageVariant> variants) {
+        return apply(source, variants, ForkJoinPool.commonPool());
+    }
+
+    static Map<ImageVariant, BufferedImage> apply(BufferedImage source, Set<ImageVariant> variants,
+                                                  ForkJoinPool pool) {
+        Map<ImageVariant, BufferedImage> result = new EnumMap<>(ImageVariant.class);
+        ArgbRowReader reader = ArgbRowReader.of(source);
+        Set<ImageVariant> fused = EnumSet.noneOf(ImageVariant.class);
+        if (reader != null) {
+            fused.addAll(variants);
+            if (reader.hasAlpha || source.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+                fused.removeAll(RGB_ONLY);
+            }
+        }
+
+        if (!fused.isEmpty()) {
+            Outputs outputs = new Outputs(reader.width, reader.height, fused);
+            pool.invoke(new Stripe(reader, outputs, 0, reader.height));
+            outputs.collect(result);
+        }
+        for (ImageVariant variant : variants) {
+            if (!fused.contains(variant)) {
+                result.put(variant, variant.transform(REFERENCE, source));
+            }
+        }
+        return result;
+    }
+
+    /*
+    RescaleOp scales every channel on its own, so ramping r = g = b through 0..255 captures it fully.
+     */
+    private static int[] channelTable(BufferedImageOp op) {
+        BufferedImage ramp = new BufferedImage(256, 1, BufferedImage.TYPE_INT_RGB);
+        for (int v = 0; v < 256; v++) {
+            ramp.setRGB(v, 0, v << 16 | v << 8 | v);
+        }
+        BufferedImage scaled = Scalr.apply(ramp, op);
+        int[] table = new int[256];
+        for (int v = 0; v < 256; v++) {
+            table[v] = scaled.getRGB(v, 0) & 0xFF;
+        }
+        return table;
+    }
+
+    /**
+     * Destination arrays for the requested variants; a null array means the variant was not requested.
+     */
+    private static class Outputs {
+        private final int width;
+        private final int height;
+        private final BufferedImage grey;
+        private final BufferedImage bw;
+        private final BufferedImage upright;
+        private final BufferedImage brighten;
+        private final BufferedImage darken;
+        private final byte[] greyData;
+        private final byte[] bwData;
+        private final int bwStride;
+        private final int[] uprightData;
+        private final int[] brightenData;
+        private final int[] darkenData;
+
+        private Outputs(int width, int height, Set<ImageVariant> variants) {
+            this.width = width;
+            this.height = height;
+            grey = variants.contains(ImageVariant.GREY)
+                ? new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY) : null;
+            bw = variants.contains(ImageVariant.BW)
+                ? new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY) : null;
+            upright = variants.contains(ImageVariant.UPRIGHT)
+                ? new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB) : null;
+            brighten = variants.contains(ImageVariant.BRIGHTEN)
+                ? new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB) : null;
+            darken = variants.contains(ImageVariant.DARKEN)
+                ? new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB) : null;
+            greyData = grey == null ? null : ((DataBufferByte) grey.getRaster().getDataBuffer()).getData();
+            bwData = bw == null ? null : ((DataBufferByte) bw.getRaster().getDataBuffer()).getData();
+            bwStride = bw == null ? 0 : ((MultiPixelPackedSampleModel) bw.getSampleModel()).getScanlineStride();
+            uprightData = ints(upright);
+            brightenData = ints(brighten);
+            darkenData = ints(darken);
+        }
+
+        private static int[] ints(BufferedImage image) {
+            return image == null ? null : ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        }
+
+        /*
+        Writes one tile row: {@code length} pixels of row y starting at column x, already in argb.
+         */
+        void write(int y, int x, int length, int[] argb) {
+            if (greyData != null) {
+                PixelKernels.greyRow(argb, length, greyData, y * width + x);
+            }
+            if (bwData != null) {
+                PixelKernels.monochromeRow(argb, length, bwData, y * bwStride + (x >> 3));
+            }
+            if (uprightData != null) {
+                int out = (height - 1 - y) * width + (width - 1 - x);
+                for (int i = 0; i < length; i++) {
+                    uprightData[out - i] = argb[i] & 0xFFFFFF;
+                }
+            }
+            if (brightenData != null) {
+                scale(argb, length, BRIGHTER, brightenData, y * width + x);
+            }
+            if (darkenData != null) {
+                scale(argb, length, DARKER, darkenData, y * width + x);
+            }
+        }
+
+        private static void scale(int[] argb, int length, int[] table, int[] out, int offset) {
+            for (int i = 0; i < length; i++) {
+                int pixel = argb[i];
+                out[offset + i] = table[(pixel >> 16) & 0xFF] << 16 | table[(pixel >> 8) & 0xFF] << 8
+                    | table[pixel & 0xFF];
+            }
+        }
+
+        void collect(Map<ImageVariant, BufferedImage> result) {
+            put(result, ImageVariant.GREY, grey);
+            put(result, ImageVariant.BW, bw);
+            put(result, ImageVariant.UPRIGHT, upright);
+            put(result, ImageVariant.BRIGHTEN, brighten);
+            put(result, ImageVariant.DARKEN, darken);
+        }
+
+        private static void put(Map<ImageVariant, BufferedImage> result, ImageVariant variant, BufferedImage image) {
+            if (image != null) {
+                result.put(variant, image);
+            }
+        }
+    }
+
+    private static class Stripe extends RecursiveAction {
+        private final ArgbRowReader reader;
+        private final Outputs outputs;
+        private final int fromRow;
+        private final int toRow;
+
+        private Stripe(ArgbRowReader reader, Outputs outputs, int fromRow, int toRow) {
+            this.reader = reader;
+            this.outputs = outputs;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        @Override
+        protected void compute() {
+            int rows = toRow - fromRow;
+            if (rows > 1 && (long) rows * reader.width > STRIPE_PIXELS) {
+                int middle = fromRow + rows / 2;
+                invokeAll(new Stripe(reader, outputs, fromRow, middle), new Stripe(reader, outputs, middle, toRow));
+                return;
+            }
+            int[] argb = new int[Math.min(TILE_WIDTH, reader.width)];
+            for (int x = 0; x < reader.width; x += TILE_WIDTH) {
+                int length = Math.min(TILE_WIDTH, reader.width - x);
+                for (int y = fromRow; y < toRow; y++) {
+                    reader.read(y, x, length, argb);
+                    outputs.write(y, x, length, argb);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.company;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Decodes and encodes images entirely in memory. ImageIO's stream helpers fall back to a disk
+ * cache when handed a plain stream, so the memory cache streams are wired in explicitly.
+ */
+class ImageCodec {
+
+    static final String FORMAT = "PNG";
+    static final String CONTENT_TYPE = "image/png";
+
+    private ImageCodec() {
+    }
+
+    static BufferedImage decode(InputStream in) throws IOException {
+        ImageInputStream iis = new MemoryCacheImageInputStream(in);
+        BufferedImage image = ImageIO.read(iis);
+        if (image == null) {
+            iis.close();
+            throw new IOException("No image reader found for stream");
+        }
+        return image;
+    }
+
+    /*
+    Decodes only what the planner asks for. It sees the full size before any pixel is read and can set a
+    source region and subsampling on the read param, so the full-resolution raster is never allocated.
+     */
+    static BufferedImage decode(InputStream in, ReadPlanner planner) throws IOException {
+        ImageInputStream iis = new MemoryCacheImageInputStream(in);
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw new IOException("No image reader found for stream");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                planner.plan(reader.getWidth(0), reader.getHeight(0), param);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
+        }
+    }
+
+    static void encode(BufferedImage image, ReusableByteBuffer buffer) throws IOException {
+        buffer.reset();
+        ImageOutputStream ios = new MemoryCacheImageOutputStream(buffer);
+        try {
+            if (!ImageIO.write(image, FORMAT, ios)) {
+                throw new IOException("No image writer found for " + FORMAT);
+            }
+        } finally {
+            ios.close();
+        }
+    }
+
+    interface ReadPlanner {
+        void plan(int width, int height, ImageReadParam param);
+    }
+}
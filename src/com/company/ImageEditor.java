@@ -5,14 +5,36 @@ package com.company;
 // ImageEditor.java
 
 import java.awt.Graphics2D;
-import java.awt.Image;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
 
 import org.imgscalr.Scalr;
 
 public class ImageEditor
 {
 
+    private static final StageMetrics RESIZE_IMAGE = Metrics.stage("editor.resizeImage");
+    private static final StageMetrics RESIZE_FULL_IMAGE = Metrics.stage("editor.resizeFullImage");
+    private static final StageMetrics RESIZE_THUMBNAIL_IMAGE = Metrics.stage("editor.resizeThumbnailImage");
+    private static final StageMetrics DECODE_THUMBNAIL_IMAGE = Metrics.stage("editor.decodeThumbnailImage");
+    private static final StageMetrics BRIGHTEN_IMAGE = Metrics.stage("editor.brightenImage");
+    private static final StageMetrics DARKEN_IMAGE = Metrics.stage("editor.darkenImage");
+    private static final StageMetrics ADJUST_IMAGE = Metrics.stage("editor.adjustImage");
+    private static final StageMetrics CROP_IMAGE = Metrics.stage("editor.cropImage");
+    private static final StageMetrics DECODE_CROP_IMAGE = Metrics.stage("editor.decodeCropImage");
+    private static final StageMetrics ROTATE_RIGHT_90 = Metrics.stage("editor.rotateRight90");
+    private static final StageMetrics ROTATE_RIGHT_180 = Metrics.stage("editor.rotateRight180");
+    private static final StageMetrics ROTATE_RIGHT_270 = Metrics.stage("editor.rotateRight270");
+    private static final StageMetrics MONOCHROME = Metrics.stage("editor.monochrome");
+    private static final StageMetrics GREY = Metrics.stage("editor.grey");
+
+    /* How many source pixels a subsampled thumbnail decode keeps per thumbnail pixel, at least. Point
+     * subsampling aliases, so the final SPEED pass gets a margin to average over.
+     */
+    private static final int THUMBNAIL_OVERSAMPLING = 2;
+
     public ImageEditor()
     {
 
@@ -23,70 +45,170 @@ public class ImageEditor
 	 * 	     width - the desired width
 	 *      height - the desired height
 	 *
+	 * Bilinear, in the color model of the source image.
 	 */
 	public BufferedImage resizeImage(BufferedImage image, int width, int height)
 	{
-		Image tempImage = image.getScaledInstance(width, height, Image.SCALE_FAST);
-		BufferedImage newImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-		Graphics2D g = newImage.createGraphics();
-		g.drawImage(tempImage, 0, 0, null);
-		g.dispose();
+		return resizeImage(image, width, height, ResizeEngine.Filter.BILINEAR);
+	}
+
+	/* resizeImage - same as above with a choice of filter
+	 *      filter - BOX, BILINEAR or LANCZOS3
+	 */
+	public BufferedImage resizeImage(BufferedImage image, int width, int height, ResizeEngine.Filter filter)
+	{
+		long start = RESIZE_IMAGE.start();
+		BufferedImage newImage = ResizeEngine.resize(image, width, height, filter);
+		RESIZE_IMAGE.stop(start);
 		return newImage;
 	}
 
     public BufferedImage resizeFullImage(BufferedImage image, int width, int height)
     {
-        return Scalr.resize(image, Scalr.Method.ULTRA_QUALITY, width, height, Scalr.OP_ANTIALIAS);
+        long start = RESIZE_FULL_IMAGE.start();
+        BufferedImage newImage = Scalr.resize(image, Scalr.Method.ULTRA_QUALITY, width, height, Scalr.OP_ANTIALIAS);
+        RESIZE_FULL_IMAGE.stop(start);
+        return newImage;
     }
 
     public BufferedImage resizeThumbnailImage(BufferedImage image, int size)
     {
-        return Scalr.resize(image, Scalr.Method.SPEED, size, Scalr.OP_ANTIALIAS);
+        long start = RESIZE_THUMBNAIL_IMAGE.start();
+        BufferedImage newImage = Scalr.resize(image, Scalr.Method.SPEED, size, Scalr.OP_ANTIALIAS);
+        RESIZE_THUMBNAIL_IMAGE.stop(start);
+        return newImage;
+    }
+
+    /* resizeThumbnailImage - decodes an encoded image straight to a thumbnail
+     *       source - the encoded image
+     *         size - the longest side of the thumbnail
+     *
+     * Reads every n-th pixel of every n-th row, with the largest n that still leaves THUMBNAIL_OVERSAMPLING
+     * source pixels per thumbnail pixel, then scales to the same size resizeThumbnailImage(BufferedImage)
+     * would give.
+     */
+    public BufferedImage resizeThumbnailImage(InputStream source, int size) throws IOException
+    {
+        long start = DECODE_THUMBNAIL_IMAGE.start();
+        int[] target = new int[2];
+        BufferedImage subsampled = ImageCodec.decode(source, (width, height, param) -> {
+            int factor = Math.max(1, Math.max(width, height) / (THUMBNAIL_OVERSAMPLING * size));
+            param.setSourceSubsampling(factor, factor, 0, 0);
+            float ratio = (float) height / (float) width;
+            target[0] = ratio <= 1 ? size : Math.round((float) size / ratio);
+            target[1] = ratio <= 1 ? (int) Math.ceil((float) size * ratio) : size;
+        });
+        BufferedImage newImage = Scalr.resize(subsampled, Scalr.Method.SPEED, Scalr.Mode.FIT_EXACT,
+            target[0], target[1], Scalr.OP_ANTIALIAS);
+        subsampled.flush();
+        DECODE_THUMBNAIL_IMAGE.stop(start);
+        return newImage;
     }
 
     public BufferedImage brightenImage(BufferedImage image)
     {
-        return Scalr.apply(image, Scalr.OP_BRIGHTER);
+        long start = BRIGHTEN_IMAGE.start();
+        BufferedImage newImage = ToneKernels.apply(image, ToneKernels.BRIGHTER);
+        BRIGHTEN_IMAGE.stop(start);
+        return newImage;
     }
 
     public BufferedImage darkenImage(BufferedImage image)
     {
-        return Scalr.apply(image, Scalr.OP_DARKER);
+        long start = DARKEN_IMAGE.start();
+        BufferedImage newImage = ToneKernels.apply(image, ToneKernels.DARKER);
+        DARKEN_IMAGE.stop(start);
+        return newImage;
+    }
+
+    /* adjustImage - returns a copy with brightness, contrast and gamma applied per channel
+     *   brightness - scale factor, 1.1 and 0.9 are what brightenImage and darkenImage use
+     *     contrast - stretch around mid-grey, 1 leaves it unchanged
+     *        gamma - 255 * (v / 255) ^ (1 / gamma), 1 leaves it unchanged
+     */
+    public BufferedImage adjustImage(BufferedImage image, float brightness, float contrast, double gamma)
+    {
+        long start = ADJUST_IMAGE.start();
+        BufferedImage newImage = ToneKernels.apply(image, ToneKernels.Curve.adjust(brightness, contrast, gamma));
+        ADJUST_IMAGE.stop(start);
+        return newImage;
     }
 
     public BufferedImage cropImage(BufferedImage image, int x, int y, int width, int height)
     {
-        return Scalr.crop(image, x, y, width, height, Scalr.OP_ANTIALIAS);
+        long start = CROP_IMAGE.start();
+        BufferedImage newImage = Scalr.crop(image, x, y, width, height, Scalr.OP_ANTIALIAS);
+        CROP_IMAGE.stop(start);
+        return newImage;
+    }
+
+    /* cropImage - decodes only the given region of an encoded image
+     *       source - the encoded image
+     *         x, y - the top left corner of the region
+     * width, height - the size of the region
+     *
+     * Same result as cropImage(BufferedImage, ...) without decoding the rest of the image.
+     */
+    public BufferedImage cropImage(InputStream source, int x, int y, int width, int height) throws IOException
+    {
+        long start = DECODE_CROP_IMAGE.start();
+        BufferedImage region = ImageCodec.decode(source, (sourceWidth, sourceHeight, param) -> {
+            if (x < 0 || y < 0 || width <= 0 || height <= 0 || x + width > sourceWidth || y + height > sourceHeight)
+            {
+                throw new IllegalArgumentException("Crop region (" + x + ", " + y + ", " + width + ", " + height
+                    + ") is outside the " + sourceWidth + "x" + sourceHeight + " image");
+            }
+            param.setSourceRegion(new Rectangle(x, y, width, height));
+        });
+        BufferedImage newImage = Scalr.apply(region, Scalr.OP_ANTIALIAS);
+        region.flush();
+        DECODE_CROP_IMAGE.stop(start);
+        return newImage;
     }
 
     public BufferedImage rotateRight90(BufferedImage image)
     {
-        return Scalr.rotate(image, Scalr.Rotation.CW_90);
+        long start = ROTATE_RIGHT_90.start();
+        BufferedImage newImage = RotationEngine.rotate(image, RotationEngine.Turn.CW_90);
+        ROTATE_RIGHT_90.stop(start);
+        return newImage;
     }
 
     public BufferedImage rotateRight180(BufferedImage image)
     {
-        return Scalr.rotate(image, Scalr.Rotation.CW_180);
+        long start = ROTATE_RIGHT_180.start();
+        BufferedImage newImage = RotationEngine.rotate(image, RotationEngine.Turn.CW_180);
+        ROTATE_RIGHT_180.stop(start);
+        return newImage;
     }
 
     public BufferedImage rotateRight270(BufferedImage image)
     {
-        return Scalr.rotate(image, Scalr.Rotation.CW_270);
+        long start = ROTATE_RIGHT_270.start();
+        BufferedImage newImage = RotationEngine.rotate(image, RotationEngine.Turn.CW_270);
+        ROTATE_RIGHT_270.stop(start);
+        return newImage;
     }
 
     public BufferedImage monochrome(BufferedImage image)
     {
+        long start = MONOCHROME.start();
         BufferedImage newImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_BINARY);
         Graphics2D graphics = newImage.createGraphics();
         graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        MONOCHROME.stop(start);
         return newImage;
     }
 
     public BufferedImage grey(BufferedImage image)
     {
+        long start = GREY.start();
         BufferedImage newImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
         Graphics2D graphics = newImage.createGraphics();
         graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        GREY.stop(start);
         return newImage;
     }
 
@@ -0,0 +1,244 @@
+package com.company;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.company.ImageProcessor.ImageJob;
+import com.company.ImageProcessor.VariantJob;
+
+/**
+ * Wires {@link ImageProcessor}'s steps into receive -> fetch -> decode -> transform -> encode -> upload -> ack.
+ * Every stage owns its own executor and a bounded input queue, so I/O-bound stages (fetch, upload) and
+ * CPU-bound stages (decode, transform, encode) can be sized independently and the slowest stage sets
+ * the pace for the whole pipeline. The transform stage takes a whole message and derives all of its
+ * variants in one pass; variants served from the {@link VariantCache} go from decode straight to upload.
+ */
+class ImagePipeline {
+
+    private static final Logger logger = LoggerTool.setupLogger("ImagePipeline");
+    static final long RECEIVE_BACKOFF_MILLIS = 100;
+    static final long MAX_RECEIVE_BACKOFF_MILLIS = 30_000;
+
+    private final ImageProcessor processor;
+    private final Settings settings;
+    private final PipelineStage<ImageJob, ImageJob> fetch;
+    private final PipelineStage<ImageJob, ImageJob> decode;
+    private final PipelineStage<ImageJob, VariantJob> transform;
+    private final PipelineStage<VariantJob, VariantJob> encode;
+    private final PipelineStage<VariantJob, ImageJob> upload;
+    private final PipelineStage<ImageJob, Void> ack;
+    private ExecutorService receivers;
+    private volatile boolean running;
+
+    ImagePipeline(ImageProcessor processor, Settings settings) {
+        this.processor = processor;
+        this.settings = settings;
+        int capacity = settings.queueCapacity;
+        ack = new PipelineStage<>("ack", settings.ackThreads, capacity, (job, out) -> processor.ack(job),
+            processor::failed);
+        upload = new PipelineStage<>("upload", settings.uploadThreads, capacity, (variantJob, out) -> {
+            if (processor.upload(variantJob)) {
+                out.emit(variantJob.getJob());
+            }
+        }, processor::failed);
+        encode = new PipelineStage<>("encode", settings.encodeThreads, capacity, (variantJob, out) -> {
+            processor.encode(variantJob);
+            out.emit(variantJob);
+        }, processor::failed);
+        transform = new PipelineStage<>("transform", settings.transformThreads, capacity, (job, out) -> {
+            for (VariantJob variantJob : processor.transform(job)) {
+                out.emit(variantJob);
+            }
+        }, processor::failed);
+        decode = new PipelineStage<>("decode", settings.decodeThreads, capacity, (job, out) -> {
+            List<VariantJob> variantJobs = processor.decode(job);
+            if (variantJobs.isEmpty()) {
+                ack.submit(job);
+            }
+            for (VariantJob variantJob : variantJobs) {
+                if (variantJob.isEncoded()) {
+                    upload.submit(variantJob);
+                }
+            }
+            if (processor.needsTransform(job)) {
+                out.emit(job);
+            }
+        }, processor::failed);
+        fetch = new PipelineStage<>("fetch", settings.fetchThreads, capacity, (job, out) -> {
+            processor.fetch(job);
+            out.emit(job);
+        }, processor::failed);
+    }
+
+    synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        ack.start(null);
+        upload.start(ack::submit);
+        encode.start(upload::submit);
+        transform.start(encode::submit);
+        decode.start(transform::submit);
+        fetch.start(decode::submit);
+
+        receivers = Executors.newFixedThreadPool(settings.receiveThreads,
+            PipelineStage.namedDaemonThreads("receive"));
+        for (int i = 0; i < settings.receiveThreads; i++) {
+            receivers.submit(this::receive);
+        }
+        logger.info("Image pipeline started with " + settings);
+    }
+
+    synchronized void stop() {
+        running = false;
+        if (receivers != null) {
+            receivers.shutdownNow();
+        }
+        for (PipelineStage<?, ?> stage : getStages()) {
+            stage.stop();
+        }
+    }
+
+    void awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        receivers.awaitTermination(timeout, unit);
+    }
+
+    /*
+    Backs off exponentially, up to MAX_RECEIVE_BACKOFF_MILLIS, while receiving keeps failing, so an outage or
+    a bad queue URL does not turn into a hot loop of failing requests and log lines.
+     */
+    private void receive() {
+        int failures = 0;
+        while (running && !Thread.currentThread().isInterrupted()) {
+            try {
+                for (ImageJob job : processor.receive()) {
+                    fetch.submit(job);
+                }
+                failures = 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                failures++;
+                long backoff = Math.min(MAX_RECEIVE_BACKOFF_MILLIS,
+                    RECEIVE_BACKOFF_MILLIS << Math.min(failures - 1, 20));
+                logger.warning("Receive failed " + failures + " time(s) in a row, retrying in " + backoff
+                    + " ms: " + e);
+                try {
+                    TimeUnit.MILLISECONDS.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /*
+    Sizes the fetch, decode, transform, encode and upload stages the way Settings.forWorkers would while the
+    pipeline runs. Receive and ack threads and the queue capacities stay as started.
+     */
+    void resize(int workers) {
+        Settings sized = Settings.forWorkers(workers);
+        fetch.resize(sized.fetchThreads);
+        decode.resize(sized.decodeThreads);
+        transform.resize(sized.transformThreads);
+        encode.resize(sized.encodeThreads);
+        upload.resize(sized.uploadThreads);
+    }
+
+    long getFinishedCount() {
+        return ack.getProcessedCount();
+    }
+
+    /*
+    Handler time of every stage so far, without the time spent waiting in queues or on back pressure.
+     */
+    long getBusyNanos() {
+        long busy = 0;
+        for (PipelineStage<?, ?> stage : getStages()) {
+            busy += stage.getLatency().getTotalNanos();
+        }
+        return busy;
+    }
+
+    List<PipelineStage<?, ?>> getStages() {
+        return Arrays.asList(fetch, decode, transform, encode, upload, ack);
+    }
+
+    /**
+     * Thread and queue sizes for each stage. {@link #forWorkers(int)} derives a balanced default from
+     * the old single worker count: twice as many threads for the network-bound stages as for the CPU ones.
+     */
+    static class Settings {
+
+        private int receiveThreads = 1;
+        private int fetchThreads;
+        private int decodeThreads;
+        private int transformThreads;
+        private int encodeThreads;
+        private int uploadThreads;
+        private int ackThreads = 1;
+        private int queueCapacity;
+
+        static Settings forWorkers(int workers) {
+            return new Settings()
+                .withFetchThreads(workers * 2)
+                .withDecodeThreads(workers)
+                .withTransformThreads(workers)
+                .withEncodeThreads(workers)
+                .withUploadThreads(workers * 2)
+                .withQueueCapacity(workers * 2);
+        }
+
+        Settings withReceiveThreads(int receiveThreads) {
+            this.receiveThreads = receiveThreads;
+            return this;
+        }
+
+        Settings withFetchThreads(int fetchThreads) {
+            this.fetchThreads = fetchThreads;
+            return this;
+        }
+
+        Settings withDecodeThreads(int decodeThreads) {
+            this.decodeThreads = decodeThreads;
+            return this;
+        }
+
+        Settings withTransformThreads(int transformThreads) {
+            this.transformThreads = transformThreads;
+            return this;
+        }
+
+        Settings withEncodeThreads(int encodeThreads) {
+            this.encodeThreads = encodeThreads;
+            return this;
+        }
+
+        Settings withUploadThreads(int uploadThreads) {
+            this.uploadThreads = uploadThreads;
+            return this;
+        }
+
+        Settings withAckThreads(int ackThreads) {
+            this.ackThreads = ackThreads;
+            return this;
+        }
+
+        Settings withQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return "receive=" + receiveThreads + ", fetch=" + fetchThreads + ", decode=" + decodeThreads
+                + ", transform=" + transformThreads + ", encode=" + encodeThreads + ", upload=" + uploadThreads
+                + ", ack=" + ackThreads + ", queueCapacity=" + queueCapacity;
+        }
+    }
+}
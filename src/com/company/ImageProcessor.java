@@ -5,240 +5,598 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import javax.imageio.ImageIO;
 
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.model.PutObjectRequest;
-import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
 import com.amazonaws.services.sqs.model.Message;
-import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
 import com.amazonaws.util.IOUtils;
 
 /**
- * This class has deliberately designed to contain the following anti-pattern for testing purposes.
- *  - Logger is not static, hence, it is created everytime we create a new class.
- *  - S3Client is not shared across the instance.
+ * Turns every queued source image into its {@link ImageVariant}s. The individual steps are run by an
+ * {@link ImagePipeline}, which gives each step its own thread pool and bounded queue.
+ * Each message is decoded once and every variant is derived from that shared copy.
+ * Images up to the in-memory threshold never touch the local disk, and variants already derived from
+ * the same source content are served from a {@link VariantCache} keyed by the source ETag. Sources with
+ * more than {@code processor.tiledThresholdPixels} pixels, going by their header, are never decoded whole,
+ * however small the file; a {@link TiledVariantEncoder} streams them band by band instead. In-memory sources and encoded variants
+ * live in pooled {@link ReusableByteBuffer}s that are handed from stage to stage without copying and go back
+ * to the pool once decoded or uploaded.
  */
 public class ImageProcessor {
 
     private static final String bucket = "dummy-application";
-    private static final String bwFolder = "bw-images/";
-    private static final String uprightFolder = "upright-images/";
-    private static final String greyFolder = "grey-images/";
-    private static final String darkenFolder = "darken-images/";
-    private static final String brightenFolder = "brighten-images/";
+    static final long DEFAULT_IN_MEMORY_THRESHOLD_BYTES = 16L * 1024 * 1024;
+    static final long DEFAULT_TILED_THRESHOLD_PIXELS = 16L * 1024 * 1024;
+    static final long DEFAULT_BUFFER_POOL_BYTES = 64L * 1024 * 1024;
 
     private static String sqsQueueURL = "";
 
     private static final Logger logger = LoggerTool.setupLogger("ImageProcessor");
     private final ImageEditor ie = new ImageEditor();
-    private final AmazonSQS amazonSQS = AmazonSQSClientBuilder.defaultClient();
+    private final VariantFanOut fanOut = new VariantFanOut(ie);
+    private final AmazonSQS amazonSQS;
+    private final AmazonS3 amazonS3;
+    private final S3Uploader uploader;
+    private final ReusableByteBuffer.Pool buffers = new ReusableByteBuffer.Pool(1024 * 1024,
+        Long.getLong("processor.bufferPoolBytes", DEFAULT_BUFFER_POOL_BYTES));
+    private final long inMemoryThresholdBytes;
+    private final long tiledThresholdPixels =
+        Long.getLong("processor.tiledThresholdPixels", DEFAULT_TILED_THRESHOLD_PIXELS);
+    private final TiledVariantEncoder tiledEncoder = new TiledVariantEncoder(
+        Integer.getInteger("processor.tiledBandPixels", TiledVariantEncoder.DEFAULT_BAND_PIXELS),
+        ForkJoinPool.commonPool());
+    private final SqsBatchConsumer consumer;
+    private final VariantCache cache;
+    private final StageMetrics getMetrics = Metrics.stage("s3.get");
+    private final StageMetrics decodeMetrics = Metrics.stage("decode");
+    private final StageMetrics transformMetrics = Metrics.stage("transform");
+    private final StageMetrics tiledMetrics = Metrics.stage("tiled");
+    private final Map<ImageVariant, StageMetrics> encodeMetrics = variantMetrics("encode.");
+    private final Map<ImageVariant, StageMetrics> putMetrics = variantMetrics("s3.put.");
 
     ImageProcessor(String sqsQueueURL) {
+        this(sqsQueueURL, DEFAULT_IN_MEMORY_THRESHOLD_BYTES);
+    }
+
+    ImageProcessor(String sqsQueueURL, long inMemoryThresholdBytes) {
+        this(sqsQueueURL, inMemoryThresholdBytes, new VariantCache(new VariantCache.Settings()));
+    }
+
+    ImageProcessor(String sqsQueueURL, long inMemoryThresholdBytes, VariantCache cache) {
+        this(AwsClients.shared().sqs(), AwsClients.shared().s3(), AwsClients.shared().uploader(), sqsQueueURL,
+            inMemoryThresholdBytes, cache);
+    }
+
+    /*
+    Takes the clients from the caller, e.g. the local stand-ins used by the LoadDriver. The uploader is
+    shared, so the caller shuts it down rather than the processor.
+     */
+    ImageProcessor(AmazonSQS amazonSQS, AmazonS3 amazonS3, S3Uploader uploader, String sqsQueueURL,
+                   long inMemoryThresholdBytes, VariantCache cache) {
+        this.amazonSQS = amazonSQS;
+        this.amazonS3 = amazonS3;
+        this.uploader = uploader;
         this.sqsQueueURL = sqsQueueURL;
+        this.inMemoryThresholdBytes = inMemoryThresholdBytes;
+        this.cache = cache;
+        this.consumer = new SqsBatchConsumer(amazonSQS, sqsQueueURL,
+            new SqsBatchConsumer.Settings().withMessageAttributeNames("key"));
+        Metrics.stage("sqs.consumer")
+            .bindQueueDepth(consumer::getBufferedCount)
+            .bindInFlight(consumer::getInFlightCount);
     }
 
-    void parallelStart(int threads) {
-        ExecutorService executorService = Executors.newFixedThreadPool(threads, r -> {
-            Thread t = Executors.defaultThreadFactory().newThread(r);
-            t.setDaemon(true);
-            return t;
-        });
-        for (int i=0; i < threads; i++) {
-            executorService.submit(this::start);
+    private static Map<ImageVariant, StageMetrics> variantMetrics(String prefix) {
+        Map<ImageVariant, StageMetrics> metrics = new EnumMap<>(ImageVariant.class);
+        for (ImageVariant variant : ImageVariant.values()) {
+            metrics.put(variant, Metrics.stage(prefix + variant.name()));
         }
+        return metrics;
+    }
+
+    void parallelStart(int threads) {
+        parallelStart(ImagePipeline.Settings.forWorkers(threads));
+    }
+
+    void parallelStart(ImagePipeline.Settings settings) {
+        ImagePipeline pipeline = start(settings);
         try {
-            executorService.awaitTermination(100L, TimeUnit.HOURS);
+            pipeline.awaitTermination(100L, TimeUnit.HOURS);
         } catch (InterruptedException e) {
-            executorService.shutdown();
+            stop(pipeline);
             e.printStackTrace();
         }
     }
 
-    void start() {
+    /*
+    Starts at the controller's initial worker count and lets it resize the pipeline from then on.
+     */
+    void parallelStart(AdaptiveConcurrency.Settings settings) {
+        ImagePipeline pipeline = start(ImagePipeline.Settings.forWorkers(settings.initialWorkers()));
+        AdaptiveConcurrency concurrency = adapt(pipeline, settings);
+        concurrency.start();
         try {
-            while (true) {
-                List<Message> messages = amazonSQS
-                    .receiveMessage(new ReceiveMessageRequest().withMessageAttributeNames("key").withQueueUrl(sqsQueueURL))
-                    .getMessages();
-                AmazonS3 amazonS3 = AmazonS3ClientBuilder.defaultClient();
-
-                for (Message message: messages) {
-
-                    GreyImageProcessor gip = new GreyImageProcessor();
-                    BWImageProcessor bwip = new BWImageProcessor();
-                    UprightImageProcessor uip = new UprightImageProcessor();
-                    BrightenImageProcessor bip = new BrightenImageProcessor();
-                    DarkenImageProcessor dip = new DarkenImageProcessor();
-
-                    String imageKey = message.getMessageAttributes().get("key").getStringValue();
-                    String imageName = getNameFromKey(imageKey);
-                    String outputFilePath = "/tmp/" + Instant.now().toString() + imageName;
-                    try {
-                        IOUtils.copy(amazonS3.getObject(bucket, imageKey).getObjectContent(),
-                            new FileOutputStream(outputFilePath, false));
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                    bwip.uploadBWImage(outputFilePath, imageName);
-                    TimeUnit.SECONDS.sleep(1);
-                    uip.uploadUprightImage(outputFilePath, imageName);
-                    TimeUnit.SECONDS.sleep(1);
-                    gip.uploadGreyImage(outputFilePath, imageName);
-                    TimeUnit.SECONDS.sleep(1);
-                    bip.uploadBrightenImage(outputFilePath, imageName);
-                    TimeUnit.SECONDS.sleep(1);
-                    dip.uploadDarkenImage(outputFilePath, imageName);
-                    TimeUnit.SECONDS.sleep(1);
-
-                    deleteFile(outputFilePath);
-
-                    amazonSQS.deleteMessage(sqsQueueURL, message.getReceiptHandle());
-                }
-                try {
-                    TimeUnit.SECONDS.sleep(3);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-        } catch (Exception e) {
-            logger.warning("Image Processor failed: " + e);
+            pipeline.awaitTermination(100L, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            concurrency.stop();
+            stop(pipeline);
             e.printStackTrace();
         }
     }
 
-    private String getNameFromKey(String key) {
-        String[] keySplit = key.split("/");
-        return keySplit[keySplit.length-1];
+    AdaptiveConcurrency adapt(ImagePipeline pipeline, AdaptiveConcurrency.Settings settings) {
+        return new AdaptiveConcurrency(pipeline::resize, this::getBacklog, pipeline::getFinishedCount,
+            pipeline::getBusyNanos, settings);
     }
 
-    private class GreyImageProcessor {
-        private final Logger logger = LoggerTool.setupLogger("GreyImageProcessor");
-        private final AmazonS3 amazonS3 = AmazonS3ClientBuilder.defaultClient();
+    ImagePipeline start(ImagePipeline.Settings settings) {
+        ImagePipeline pipeline = new ImagePipeline(this, settings);
+        consumer.start();
+        pipeline.start();
+        return pipeline;
+    }
 
-        private void uploadGreyImage(String filePath, String uploadFileName) {
-            try {
-                String greyFilePath = "/tmp/grey-" + Instant.now().toString() + uploadFileName;
-                BufferedImage dest = ie.grey(ImageIO.read(new File(filePath)));
-                ImageIO.write(dest,"PNG", new File(greyFilePath));
-                PutObjectResult res = amazonS3.putObject(new PutObjectRequest(bucket,
-                    greyFolder + uploadFileName + Instant.now().toString(),
-                    new File(greyFilePath)));
+    void stop(ImagePipeline pipeline) {
+        pipeline.stop();
+        consumer.stop();
+    }
 
-                res.getContentMd5();
-                logger.info("Uploaded grey image successfully.");
-                deleteFile(greyFilePath);
-            } catch (IOException e) {
-                e.printStackTrace();
+    /*
+    Blocks for up to a second waiting on the consumer's local buffer of long-polled messages. A message
+    without a key is abandoned on its own, so SQS hands it out again and its redrive policy can move it aside,
+    while the rest of the batch goes on.
+     */
+    List<ImageJob> receive() throws InterruptedException {
+        List<Message> messages = consumer.take(1, TimeUnit.SECONDS);
+        List<ImageJob> jobs = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            MessageAttributeValue key = message.getMessageAttributes().get("key");
+            if (key == null || key.getStringValue() == null || key.getStringValue().isEmpty()) {
+                consumer.abandon(message);
+                logger.warning("Abandoning message " + message.getMessageId() + " without an image key");
+                continue;
             }
+            jobs.add(new ImageJob(message, key.getStringValue()));
         }
+        return jobs;
     }
 
-    private class UprightImageProcessor {
+    /*
+    Small images are buffered in memory; anything over the threshold is spooled to a temp file to keep
+    heap usage bounded. The cache is looked up by the ETag of this very GET, so the variants derived from
+    the bytes read here are always cached under their own ETag; when nothing is left to derive, the
+    download is aborted before the body is read.
+     */
+    void fetch(ImageJob job) throws IOException {
+        long start = getMetrics.start();
+        try (S3Object s3Object = amazonS3.getObject(bucket, job.imageKey)) {
+            job.etag = s3Object.getObjectMetadata().getETag();
+            if (lookUpCachedVariants(job)) {
+                s3Object.getObjectContent().abort();
+                getMetrics.stop(start);
+                return;
+            }
+            long length = s3Object.getObjectMetadata().getContentLength();
+            if (length <= inMemoryThresholdBytes) {
+                ReusableByteBuffer buffer = buffers.acquire();
+                job.sourceBuffer = buffer;
+                buffer.readFully(s3Object.getObjectContent(), length);
+                getMetrics.stop(start, length, 0);
+                return;
+            }
+            String outputFilePath = "/tmp/" + Instant.now().toString() + job.imageName;
+            job.sourceFile = new File(outputFilePath);
+            try (FileOutputStream out = new FileOutputStream(job.sourceFile, false)) {
+                IOUtils.copy(s3Object.getObjectContent(), out);
+            }
+            getMetrics.stop(start, length, 0);
+        }
+    }
 
-        private final Logger logger = LoggerTool.setupLogger("UprightImageProcessor");
-        private final AmazonS3 amazonS3 = AmazonS3ClientBuilder.defaultClient();
+    /*
+    Looks every variant up by the source's ETag. Returns true when nothing is left to derive, so the
+    download and decode can be skipped.
+     */
+    private boolean lookUpCachedVariants(ImageJob job) {
+        if (cache == null || job.etag == null) {
+            return false;
+        }
+        for (ImageVariant variant : fanOut.getVariants()) {
+            if (cache.isPublished(job.etag, variant) || (cache.isSkipExistingUploads()
+                && amazonS3.doesObjectExist(bucket, derivedKey(job, variant)))) {
+                cache.markPublished(job.etag, variant);
+                cache.recordSkippedUpload();
+                job.publishedVariants.add(variant);
+                continue;
+            }
+            byte[] encoded = cache.get(job.etag, variant);
+            if (encoded != null) {
+                job.cachedVariants.put(variant, encoded);
+            }
+        }
+        return job.publishedVariants.size() + job.cachedVariants.size() == fanOut.getVariants().size();
+    }
 
-        private void uploadUprightImage(String filePath, String uploadFileName) {
+    /*
+    Variants served from the cache come back already encoded and go straight to upload; variants that
+    are already in S3 are left out. An empty list means the message can be acknowledged right away.
+    The rest wait on the job until {@link #transform(ImageJob)} derives them in one pass, except for
+    sources above the tiled threshold: those are never decoded whole, their variants are encoded band by
+    band into files here and go straight to upload as well. The pixel count comes from the header of every
+    source, since a well compressed scan can be small on disk and still huge once decoded.
+     */
+    List<VariantJob> decode(ImageJob job) throws IOException {
+        List<VariantJob> variantJobs = new ArrayList<>();
+        for (ImageVariant variant : fanOut.getVariants()) {
+            if (job.publishedVariants.contains(variant)) {
+                continue;
+            }
+            VariantJob variantJob = new VariantJob(job, variant);
+            byte[] cached = job.cachedVariants.remove(variant);
+            if (cached != null) {
+                variantJob.encodedBytes = cached;
+                variantJob.encodedLength = cached.length;
+            }
+            if (!variantJob.isEncoded()) {
+                job.toTransform.add(variantJob);
+            }
+            variantJobs.add(variantJob);
+        }
+        job.pendingUploads.set(variantJobs.size());
+
+        if (!job.toTransform.isEmpty() && pixelCount(job) > tiledThresholdPixels) {
+            if (job.isInMemory()) {
+                spool(job);
+            }
+            encodeTiled(job);
+        } else if (!job.toTransform.isEmpty()) {
+            long start = decodeMetrics.start();
             try {
-                String uprightFilePath = "/tmp/upright-" + Instant.now().toString() + uploadFileName;
-                BufferedImage dest = ie.rotateRight180(ImageIO.read(new File(filePath)));
-                ImageIO.write(dest,"PNG", new File(uprightFilePath));
-                PutObjectResult res = amazonS3.putObject(new PutObjectRequest(bucket,
-                    uprightFolder + uploadFileName + Instant.now().toString(),
-                    new File(uprightFilePath)));
+                long length = job.isInMemory() ? job.sourceBuffer.size() : job.sourceFile.length();
+                job.source = job.isInMemory()
+                    ? fanOut.decode(job.sourceBuffer.toInputStream())
+                    : fanOut.decode(job.sourceFile);
+                decodeMetrics.stop(start, length, 0);
+            } finally {
+                releaseEncodedSource(job);
+            }
+        }
+        return variantJobs;
+    }
+
+    private static long pixelCount(ImageJob job) throws IOException {
+        return job.isInMemory()
+            ? TiledVariantEncoder.pixelCount(job.sourceBuffer.toInputStream())
+            : TiledVariantEncoder.pixelCount(job.sourceFile);
+    }
 
-                res.getContentMd5();
-                logger.info("Uploaded upright image successfully.");
-                deleteFile(uprightFilePath);
-            } catch (IOException e) {
-                e.printStackTrace();
+    /*
+    Moves an in-memory source to a temp file for the tiled encoder, which reads from files only.
+     */
+    private void spool(ImageJob job) throws IOException {
+        job.sourceFile = new File("/tmp/" + Instant.now().toString() + job.imageName);
+        try (FileOutputStream out = new FileOutputStream(job.sourceFile, false)) {
+            job.sourceBuffer.writeTo(out);
+        }
+        ReusableByteBuffer buffer = job.takeSourceBuffer();
+        if (buffer != null) {
+            buffers.release(buffer);
+        }
+    }
+
+    private void encodeTiled(ImageJob job) throws IOException {
+        Map<ImageVariant, File> outputs = new EnumMap<>(ImageVariant.class);
+        for (VariantJob variantJob : job.toTransform) {
+            outputs.put(variantJob.variant, encodedFile(variantJob));
+        }
+        long start = tiledMetrics.start();
+        try {
+            long length = job.sourceFile.length();
+            tiledEncoder.encode(job.sourceFile, outputs);
+            long written = 0;
+            for (VariantJob variantJob : job.toTransform) {
+                variantJob.encodedFile = outputs.get(variantJob.variant);
+                written += variantJob.encodedFile.length();
+                cacheEncodedFile(variantJob);
             }
+            job.toTransform.clear();
+            tiledMetrics.stop(start, length, written);
+        } finally {
+            releaseEncodedSource(job);
         }
     }
 
-    private class BWImageProcessor {
+    boolean needsTransform(ImageJob job) {
+        return !job.toTransform.isEmpty();
+    }
 
-        private final Logger logger = LoggerTool.setupLogger("BWImageProcessor");
-        private final AmazonS3 amazonS3 = AmazonS3ClientBuilder.defaultClient();
+    /*
+    Derives every outstanding variant of the job from a single walk over the source, then drops the source.
+     */
+    List<VariantJob> transform(ImageJob job) {
+        Set<ImageVariant> variants = EnumSet.noneOf(ImageVariant.class);
+        for (VariantJob variantJob : job.toTransform) {
+            variants.add(variantJob.variant);
+        }
+        long start = transformMetrics.start();
+        try {
+            Map<ImageVariant, BufferedImage> images = fanOut.transform(job.source, variants);
+            for (VariantJob variantJob : job.toTransform) {
+                variantJob.image = images.get(variantJob.variant);
+            }
+            transformMetrics.stop(start);
+            return job.toTransform;
+        } finally {
+            job.source = null;
+        }
+    }
 
-        private void uploadBWImage(String filePath, String uploadFileName) {
+    void encode(VariantJob variantJob) throws IOException {
+        StageMetrics metrics = encodeMetrics.get(variantJob.variant);
+        long start = metrics.start();
+        if (variantJob.job.isInMemory()) {
+            ReusableByteBuffer buffer = buffers.acquire();
             try {
-                String bwFilePath = "/tmp/bw-" + Instant.now().toString() + uploadFileName;
-                BufferedImage dest = ie.monochrome(ImageIO.read(new File(filePath)));
-                ImageIO.write(dest,"PNG", new File(bwFilePath));
-                PutObjectResult res = amazonS3.putObject(new PutObjectRequest(bucket,
-                    bwFolder + uploadFileName + Instant.now().toString(),
-                    new File(bwFilePath)));
+                ImageCodec.encode(variantJob.image, buffer);
+            } catch (IOException | RuntimeException e) {
+                buffers.release(buffer);
+                throw e;
+            }
+            variantJob.encodedBuffer = buffer;
+            variantJob.encodedBytes = buffer.array();
+            variantJob.encodedLength = buffer.size();
+            if (cache != null && variantJob.job.etag != null) {
+                cache.put(variantJob.job.etag, variantJob.variant, buffer.toByteArray());
+            }
+            metrics.stop(start, 0, variantJob.encodedLength);
+        } else {
+            variantJob.encodedFile = encodedFile(variantJob);
+            ImageIO.write(variantJob.image, ImageCodec.FORMAT, variantJob.encodedFile);
+            cacheEncodedFile(variantJob);
+            metrics.stop(start, 0, variantJob.encodedFile.length());
+        }
+        variantJob.image = null;
+    }
 
-                res.getContentMd5();
-                logger.info("Uploaded black and white image successfully.");
-                deleteFile(bwFilePath);
-            } catch (IOException e) {
-                e.printStackTrace();
+    private void cacheEncodedFile(VariantJob variantJob) {
+        if (cache != null && variantJob.job.etag != null) {
+            cache.put(variantJob.job.etag, variantJob.variant, variantJob.encodedFile);
+        }
+    }
+
+    /*
+    Returns true once the last variant of a message that has not failed is uploaded, i.e. when the
+    message is ready to be acknowledged. The variants of a message reach the upload stage's threads one by
+    one and are sent side by side; large ones go up in parallel parts through the S3Uploader.
+     */
+    boolean upload(VariantJob variantJob) {
+        String key = derivedKey(variantJob.job, variantJob.variant);
+        StageMetrics metrics = putMetrics.get(variantJob.variant);
+        long start = metrics.start();
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(ImageCodec.CONTENT_TYPE);
+        if (variantJob.encodedBytes != null) {
+            try {
+                int length = variantJob.encodedLength;
+                uploader.upload(bucket, key, variantJob.encodedBytes, length, metadata);
+                metrics.stop(start, 0, length);
+            } finally {
+                releaseEncodedBytes(variantJob);
             }
+        } else {
+            try {
+                long length = variantJob.encodedFile.length();
+                uploader.upload(bucket, key, variantJob.encodedFile, metadata);
+                metrics.stop(start, 0, length);
+            } finally {
+                deleteFile(variantJob.encodedFile.getPath());
+            }
+        }
+
+        if (cache != null && variantJob.job.etag != null) {
+            cache.markPublished(variantJob.job.etag, variantJob.variant);
         }
+        logger.info("Uploaded " + variantJob.variant.getDescription() + " image successfully.");
+        return variantJob.job.pendingUploads.decrementAndGet() == 0 && !variantJob.job.failed;
     }
 
-    private class BrightenImageProcessor {
+    /*
+    Hands an in-memory source back to the pool, or deletes a spooled one. Safe to call more than once.
+     */
+    private void releaseEncodedSource(ImageJob job) {
+        ReusableByteBuffer buffer = job.takeSourceBuffer();
+        if (buffer != null) {
+            buffers.release(buffer);
+        }
+        File sourceFile = job.sourceFile;
+        if (sourceFile != null && sourceFile.exists() && !sourceFile.delete()) {
+            logger.warning("Fail to remove file in : " + sourceFile);
+        }
+    }
 
-        private final Logger logger = LoggerTool.setupLogger("BrightenImageProcessor");
-        private final AmazonS3 amazonS3 = AmazonS3ClientBuilder.defaultClient();
+    private void releaseEncodedBytes(VariantJob variantJob) {
+        ReusableByteBuffer buffer = variantJob.takeEncodedBuffer();
+        if (buffer != null) {
+            buffers.release(buffer);
+        }
+    }
 
-        private void uploadBrightenImage(String filePath, String uploadFileName) {
-            try {
-                String brightFilePath = "/tmp/bright-" + Instant.now().toString() + uploadFileName;
-                BufferedImage dest = ie.brightenImage(ImageIO.read(new File(filePath)));
-                ImageIO.write(dest,"PNG", new File(brightFilePath));
-                PutObjectResult res = amazonS3.putObject(new PutObjectRequest(bucket,
-                    brightenFolder + uploadFileName + Instant.now().toString(),
-                    new File(brightFilePath)));
+    private static File encodedFile(VariantJob variantJob) {
+        return new File("/tmp/" + variantJob.variant.getFilePrefix() + "-" + Instant.now().toString()
+            + variantJob.job.imageName);
+    }
 
-                res.getContentMd5();
-                logger.info("Uploaded brighten image successfully.");
-                deleteFile(brightFilePath);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    private String derivedKey(ImageJob job, ImageVariant variant) {
+        if (cache != null && cache.isSkipExistingUploads() && job.etag != null) {
+            return variant.getFolder() + job.imageName + "-" + job.etag;
         }
+        return variant.getFolder() + job.imageName + Instant.now().toString();
     }
 
-    private class DarkenImageProcessor {
+    void ack(ImageJob job) {
+        consumer.ack(job.message);
+    }
 
-        private final Logger logger = LoggerTool.setupLogger("DarkenImageProcessor");
-        private final AmazonS3 amazonS3 = AmazonS3ClientBuilder.defaultClient();
+    /*
+    A failed message is never acknowledged, so SQS hands it out again once its visibility timeout expires.
+     */
+    void failed(ImageJob job, Exception e) {
+        job.failed = true;
+        consumer.abandon(job.message);
+        releaseEncodedSource(job);
+        job.source = null;
+        logger.warning("Image Processor failed on " + job.imageKey + ": " + e);
+    }
 
-        private void uploadDarkenImage(String filePath, String uploadFileName) {
-            try {
-                String darkFilePath = "/tmp/dark-" + Instant.now().toString() + uploadFileName;
-                BufferedImage dest = ie.darkenImage(ImageIO.read(new File(filePath)));
-                ImageIO.write(dest,"PNG", new File(darkFilePath));
-                PutObjectResult res = amazonS3.putObject(new PutObjectRequest(bucket,
-                    darkenFolder + uploadFileName + Instant.now().toString(),
-                    new File(darkFilePath)));
+    void failed(VariantJob variantJob, Exception e) {
+        ImageJob job = variantJob.job;
+        job.failed = true;
+        consumer.abandon(job.message);
+        if (variantJob.encodedFile != null && variantJob.encodedFile.exists()) {
+            deleteFile(variantJob.encodedFile.getPath());
+        }
+        variantJob.image = null;
+        releaseEncodedBytes(variantJob);
+        job.pendingUploads.decrementAndGet();
+        logger.warning("Image Processor failed on " + variantJob.variant + " of " + job.imageKey + ": " + e);
+    }
 
-                res.getContentMd5();
-                logger.info("Uploaded darken image successfully.");
-                deleteFile(darkFilePath);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    /*
+    Messages waiting in SQS plus those already received but not yet picked up, or -1 if SQS cannot be asked.
+     */
+    long getBacklog() {
+        try {
+            String waiting = amazonSQS.getQueueAttributes(sqsQueueURL,
+                Collections.singletonList("ApproximateNumberOfMessages"))
+                .getAttributes().get("ApproximateNumberOfMessages");
+            return Long.parseLong(waiting) + consumer.getBufferedCount();
+        } catch (RuntimeException e) {
+            logger.warning("Unable to read the queue backlog: " + e);
+            return -1;
         }
     }
 
+    long getDecodeCount() {
+        return fanOut.getDecodeCount();
+    }
+
+    SqsBatchConsumer getConsumer() {
+        return consumer;
+    }
+
+    VariantCache getCache() {
+        return cache;
+    }
+
+    private static String getNameFromKey(String key) {
+        String[] keySplit = key.split("/");
+        return keySplit[keySplit.length-1];
+    }
+
     private void deleteFile(String filePath) {
         if(!new File(filePath).delete()) {
             logger.warning("Fail to remove file in : " + filePath);
         }
     }
+
+    /**
+     * One SQS message on its way through the pipeline. The decoded source is read once by the fused
+     * transform, which fills in the image of every {@link VariantJob} still to be derived, and dropped after.
+     */
+    static class ImageJob {
+        private final Message message;
+        private final String imageKey;
+        private final String imageName;
+        private final List<VariantJob> toTransform = new ArrayList<>();
+        private final AtomicInteger pendingUploads = new AtomicInteger();
+        private final Set<ImageVariant> publishedVariants = EnumSet.noneOf(ImageVariant.class);
+        private final Map<ImageVariant, byte[]> cachedVariants = new EnumMap<>(ImageVariant.class);
+        private volatile String etag;
+        private volatile ReusableByteBuffer sourceBuffer;
+        private volatile File sourceFile;
+        private volatile BufferedImage source;
+        private volatile boolean failed;
+
+        ImageJob(Message message, String imageKey) {
+            this.message = message;
+            this.imageKey = imageKey;
+            this.imageName = getNameFromKey(imageKey);
+        }
+
+        Message getMessage() {
+            return message;
+        }
+
+        String getImageKey() {
+            return imageKey;
+        }
+
+        boolean isInMemory() {
+            return sourceFile == null;
+        }
+
+        /*
+        The buffer goes to whichever caller asks first, so a failure racing a successful decode cannot hand it
+        back to the pool twice.
+         */
+        private synchronized ReusableByteBuffer takeSourceBuffer() {
+            ReusableByteBuffer buffer = sourceBuffer;
+            sourceBuffer = null;
+            return buffer;
+        }
+    }
+
+    static class VariantJob {
+        private final ImageJob job;
+        private final ImageVariant variant;
+        private volatile BufferedImage image;
+        private volatile byte[] encodedBytes;
+        private volatile int encodedLength;
+        private volatile File encodedFile;
+        private volatile ReusableByteBuffer encodedBuffer;
+
+        VariantJob(ImageJob job, ImageVariant variant) {
+            this.job = job;
+            this.variant = variant;
+        }
+
+        ImageJob getJob() {
+            return job;
+        }
+
+        ImageVariant getVariant() {
+            return variant;
+        }
+
+        boolean isEncoded() {
+            return encodedBytes != null || encodedFile != null;
+        }
+
+        /*
+        Clears the in-memory encoding and returns its pooled buffer, if it has one and nobody took it yet.
+        Variants served from the cache own their bytes and have no buffer.
+         */
+        private synchronized ReusableByteBuffer takeEncodedBuffer() {
+            ReusableByteBuffer buffer = encodedBuffer;
+            encodedBuffer = null;
+            encodedBytes = null;
+            return buffer;
+        }
+    }
 }
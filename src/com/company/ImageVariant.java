@@ -0,0 +1,66 @@
+package com.company;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Registry of the derived images produced for every source image.
+ * Adding a constant here is all that is needed to publish a new output; the transform must treat
+ * the source as read-only because the same decoded image is shared by every variant.
+ */
+enum ImageVariant {
+
+    BW("bw", "bw-images/", "black and white") {
+        @Override
+        BufferedImage transform(ImageEditor ie, BufferedImage source) {
+            return ie.monochrome(source);
+        }
+    },
+    UPRIGHT("upright", "upright-images/", "upright") {
+        @Override
+        BufferedImage transform(ImageEditor ie, BufferedImage source) {
+            return ie.rotateRight180(source);
+        }
+    },
+    GREY("grey", "grey-images/", "grey") {
+        @Override
+        BufferedImage transform(ImageEditor ie, BufferedImage source) {
+            return ie.grey(source);
+        }
+    },
+    BRIGHTEN("bright", "brighten-images/", "brighten") {
+        @Override
+        BufferedImage transform(ImageEditor ie, BufferedImage source) {
+            return ie.brightenImage(source);
+        }
+    },
+    DARKEN("dark", "darken-images/", "darken") {
+        @Override
+        BufferedImage transform(ImageEditor ie, BufferedImage source) {
+            return ie.darkenImage(source);
+        }
+    };
+
+    private final String filePrefix;
+    private final String folder;
+    private final String description;
+
+    ImageVariant(String filePrefix, String folder, String description) {
+        this.filePrefix = filePrefix;
+        this.folder = folder;
+        this.description = description;
+    }
+
+    abstract BufferedImage transform(ImageEditor ie, BufferedImage source);
+
+    String getFilePrefix() {
+        return filePrefix;
+    }
+
+    String getFolder() {
+        return folder;
+    }
+
+    String getDescription() {
+        return description;
+    }
+}
@@ -0,0 +1,186 @@
+package com.company;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+
+/**
+ * Replays a corpus of images through the whole receive -> transform -> upload path against the local
+ * S3 and SQS stand-ins and reports images per second, per-stage p50/p99 latency and heap usage.
+ *
+ *     java -cp ... com.company.LoadDriver [corpus directory]
+ *
+ * Without a directory a synthetic corpus is generated. Tuning comes from system properties:
+ * load.messages (200), load.workers (available processors), load.inMemoryThreshold (bytes),
+ * load.cache (false, so every message does the full work), load.timeoutSeconds (600), load.adaptive
+ * (false; true lets {@link AdaptiveConcurrency} size the workers from its concurrency.* settings), and
+ * load.s3.* / load.sqs.* latencyMillis, jitterMillis and failureRate for fault injection.
+ * With metrics.snapshotFile set, the full {@link Metrics} snapshot is written there at the end.
+ */
+public class LoadDriver {
+
+    private static final Logger logger = LoggerTool.setupLogger("LoadDriver");
+    private static final String BUCKET = "dummy-application";
+    private static final String PREFIX = "sample-images/";
+    private static final int SYNTHETIC_IMAGES = 20;
+
+    public static void main(String[] args) throws Exception {
+        int messages = Integer.getInteger("load.messages", 200);
+        int workers = Integer.getInteger("load.workers", Runtime.getRuntime().availableProcessors());
+        long threshold = Long.getLong("load.inMemoryThreshold", ImageProcessor.DEFAULT_IN_MEMORY_THRESHOLD_BYTES);
+        boolean useCache = Boolean.getBoolean("load.cache");
+        boolean adaptive = Boolean.getBoolean("load.adaptive");
+        long timeoutSeconds = Long.getLong("load.timeoutSeconds", 600L);
+
+        FaultInjector s3Faults = FaultInjector.fromSystemProperties("load.s3");
+        FaultInjector sqsFaults = FaultInjector.fromSystemProperties("load.sqs");
+        LocalS3 s3 = new LocalS3(new LocalS3.Settings().withDiscardedWrites(true).withFaults(s3Faults));
+        LocalSqs sqs = new LocalSqs(sqsFaults);
+        int corpusSize = args.length > 0 ? loadCorpus(s3, new File(args[0])) : syntheticCorpus(s3);
+        String queueUrl = fillQueue(s3, sqs, messages);
+
+        S3Uploader uploader = new S3Uploader(s3, new S3Uploader.Settings());
+        ImageProcessor processor = new ImageProcessor(sqs, s3, uploader, queueUrl, threshold,
+            useCache ? new VariantCache(new VariantCache.Settings()) : null);
+        AdaptiveConcurrency.Settings concurrencySettings = new AdaptiveConcurrency.Settings();
+        ImagePipeline.Settings settings = ImagePipeline.Settings.forWorkers(
+            adaptive ? concurrencySettings.initialWorkers() : workers);
+        logger.info("Replaying " + messages + " messages over " + corpusSize + " images with " + settings
+            + "; S3 " + s3Faults + "; SQS " + sqsFaults);
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+        long peakHeap = 0;
+        long start = System.nanoTime();
+        ImagePipeline pipeline = processor.start(settings);
+        AdaptiveConcurrency concurrency = processor.adapt(pipeline, concurrencySettings);
+        if (adaptive) {
+            concurrency.start();
+        }
+        long deadline = start + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        while (sqs.pendingCount(queueUrl) > 0 && System.nanoTime() < deadline) {
+            peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        long elapsed = System.nanoTime() - start;
+        int unfinished = sqs.pendingCount(queueUrl);
+        concurrency.stop();
+        processor.stop(pipeline);
+        uploader.shutdown();
+
+        double seconds = elapsed / 1e9;
+        int completed = messages - unfinished;
+        System.out.printf("%d of %d messages in %.1f s: %.2f images/s, %.2f variants/s%n", completed, messages,
+            seconds, completed / seconds, completed * ImageVariant.values().length / seconds);
+        for (PipelineStage<?, ?> stage : pipeline.getStages()) {
+            LatencyHistogram latency = stage.getLatency();
+            System.out.printf("  %-10s workers=%-3d processed=%-7d failed=%-5d p50=%8.2f ms p99=%8.2f ms max=%8.2f ms%n",
+                stage.getName(), stage.getWorkers(), stage.getProcessedCount(), stage.getFailedCount(),
+                millis(latency.getPercentileNanos(50)), millis(latency.getPercentileNanos(99)),
+                millis(latency.getMaxNanos()));
+        }
+        SqsBatchConsumer consumer = processor.getConsumer();
+        System.out.printf("  sqs: received=%d redelivered=%d acked=%d ackFailures=%d injectedFailures=%d%n",
+            consumer.getMessagesReceivedCount(), consumer.getRedeliveryCount(), consumer.getAckCount(),
+            consumer.getAckFailureCount(), sqsFaults.getInjectedFailureCount());
+        System.out.printf("  s3: gets=%d puts=%d written=%.1f MB injectedFailures=%d uploadRetries=%d%n",
+            s3.getGetCount(), s3.getPutCount(), s3.getBytesWritten() / 1e6, s3Faults.getInjectedFailureCount(),
+            uploader.getRetryCount());
+        System.out.printf("  heap: peak=%.1f MB max=%.1f MB, gc: %d collections, %d ms%n", peakHeap / 1e6,
+            memory.getHeapMemoryUsage().getMax() / 1e6, gcCount() - gcCountBefore, gcMillis() - gcMillisBefore);
+        if (useCache) {
+            System.out.println("  cache: " + processor.getCache());
+        }
+        String snapshotFile = System.getProperty("metrics.snapshotFile");
+        if (snapshotFile != null) {
+            Metrics.writeSnapshot(Paths.get(snapshotFile));
+        }
+        System.exit(unfinished == 0 ? 0 : 1);
+    }
+
+    private static int loadCorpus(LocalS3 s3, File directory) throws IOException {
+        File[] files = directory.listFiles(File::isFile);
+        if (files == null || files.length == 0) {
+            throw new IOException("No images in " + directory);
+        }
+        for (File file : files) {
+            s3.seed(BUCKET, PREFIX + file.getName(), Files.readAllBytes(file.toPath()));
+        }
+        return files.length;
+    }
+
+    /*
+    Noisy gradients in a few sizes, which encode to roughly the size of real photos as PNG.
+     */
+    private static int syntheticCorpus(LocalS3 s3) throws IOException {
+        Random random = new Random(42);
+        int[][] sizes = {{640, 480}, {1280, 720}, {1920, 1080}};
+        ReusableByteBuffer buffer = new ReusableByteBuffer(1 << 20);
+        for (int i = 0; i < SYNTHETIC_IMAGES; i++) {
+            int[] size = sizes[i % sizes.length];
+            BufferedImage image = new BufferedImage(size[0], size[1], BufferedImage.TYPE_INT_RGB);
+            int[] row = new int[size[0]];
+            for (int y = 0; y < size[1]; y++) {
+                for (int x = 0; x < size[0]; x++) {
+                    int r = (x * 255 / size[0] + random.nextInt(24)) & 0xFF;
+                    int g = (y * 255 / size[1] + random.nextInt(24)) & 0xFF;
+                    row[x] = r << 16 | g << 8 | ((r + g) / 2);
+                }
+                image.setRGB(0, y, size[0], 1, row, 0, size[0]);
+            }
+            ImageCodec.encode(image, buffer);
+            s3.seed(BUCKET, PREFIX + "synthetic-" + i + ".png", buffer.toByteArray());
+        }
+        return SYNTHETIC_IMAGES;
+    }
+
+    /*
+    Keys are drawn through the same S3KeyIndex the producer in Main uses.
+     */
+    private static String fillQueue(LocalS3 s3, LocalSqs sqs, int messages) {
+        String queueUrl = sqs.createQueue(new CreateQueueRequest("image-queue")).getQueueUrl();
+        S3KeyIndex index = new S3KeyIndex(s3, BUCKET, PREFIX, 1, TimeUnit.HOURS, 1);
+        index.refreshIfStale();
+        for (int i = 0; i < messages; i++) {
+            Map<String, MessageAttributeValue> attributes = Collections.singletonMap("key",
+                new MessageAttributeValue().withDataType("String").withStringValue(index.sample()));
+            sqs.seed(queueUrl, "For Image Transformation!", attributes);
+        }
+        index.shutdown();
+        return queueUrl;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
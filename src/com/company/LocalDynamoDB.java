@@ -0,0 +1,221 @@
+package com.company;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.CreateTableResult;
+import com.amazonaws.services.dynamodbv2.model.DeleteTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteTableResult;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.ResourceInUseException;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.TableStatus;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+/**
+ * An in-process stand-in for DynamoDB covering what the result tables need: creating, describing and
+ * deleting tables, single puts and gets, BatchWriteItem and a plain scan. Items are keyed by the table's
+ * key schema, so a put with an existing key replaces the item as it does on DynamoDB. A configurable share
+ * of every batch comes back as unprocessed, the way a throttled table answers, and latency and failures
+ * come from a {@link FaultInjector}.
+ */
+class LocalDynamoDB extends AbstractAmazonDynamoDB {
+
+    private static final String SERVICE_NAME = "AmazonDynamoDBv2";
+    private static final int MAX_BATCH_SIZE = 25;
+
+    private final Settings settings;
+    private final Map<String, LocalTable> tables = new ConcurrentHashMap<>();
+    private final AtomicLong batchWrites = new AtomicLong();
+    private final AtomicLong unprocessedItems = new AtomicLong();
+
+    LocalDynamoDB(Settings settings) {
+        this.settings = settings;
+    }
+
+    /*
+    All items of a table, read without fault injection.
+     */
+    List<Map<String, AttributeValue>> items(String tableName) {
+        return new ArrayList<>(table(tableName).items.values());
+    }
+
+    long getBatchWriteCount() {
+        return batchWrites.get();
+    }
+
+    long getUnprocessedItemCount() {
+        return unprocessedItems.get();
+    }
+
+    @Override
+    public CreateTableResult createTable(CreateTableRequest request) {
+        settings.faults.call(SERVICE_NAME, "CreateTable");
+        TableDescription description = new TableDescription().withTableName(request.getTableName())
+            .withKeySchema(request.getKeySchema())
+            .withAttributeDefinitions(request.getAttributeDefinitions())
+            .withTableStatus(TableStatus.ACTIVE);
+        if (request.getProvisionedThroughput() != null) {
+            description.withProvisionedThroughput(new ProvisionedThroughputDescription()
+                .withReadCapacityUnits(request.getProvisionedThroughput().getReadCapacityUnits())
+                .withWriteCapacityUnits(request.getProvisionedThroughput().getWriteCapacityUnits()));
+        }
+        if (tables.putIfAbsent(request.getTableName(), new LocalTable(description)) != null) {
+            throw new ResourceInUseException("Table already exists: " + request.getTableName());
+        }
+        return new CreateTableResult().withTableDescription(description);
+    }
+
+    @Override
+    public DescribeTableResult describeTable(DescribeTableRequest request) {
+        settings.faults.call(SERVICE_NAME, "DescribeTable");
+        return new DescribeTableResult().withTable(table(request.getTableName()).description);
+    }
+
+    @Override
+    public DeleteTableResult deleteTable(DeleteTableRequest request) {
+        settings.faults.call(SERVICE_NAME, "DeleteTable");
+        LocalTable table = tables.remove(request.getTableName());
+        if (table == null) {
+            throw new ResourceNotFoundException("Requested resource not found: " + request.getTableName());
+        }
+        return new DeleteTableResult().withTableDescription(table.description);
+    }
+
+    @Override
+    public PutItemResult putItem(PutItemRequest request) {
+        settings.faults.call(SERVICE_NAME, "PutItem");
+        table(request.getTableName()).put(request.getItem());
+        return new PutItemResult();
+    }
+
+    @Override
+    public GetItemResult getItem(GetItemRequest request) {
+        settings.faults.call(SERVICE_NAME, "GetItem");
+        LocalTable table = table(request.getTableName());
+        Map<String, AttributeValue> item = table.items.get(table.keyOf(request.getKey()));
+        return new GetItemResult().withItem(item == null ? null : new HashMap<>(item));
+    }
+
+    @Override
+    public BatchWriteItemResult batchWriteItem(BatchWriteItemRequest request) {
+        settings.faults.call(SERVICE_NAME, "BatchWriteItem");
+        batchWrites.incrementAndGet();
+        int size = 0;
+        for (List<WriteRequest> writes : request.getRequestItems().values()) {
+            size += writes.size();
+        }
+        if (size > MAX_BATCH_SIZE) {
+            throw validationError("Too many items requested for the BatchWriteItem call");
+        }
+        Map<String, List<WriteRequest>> unprocessed = new HashMap<>();
+        for (Map.Entry<String, List<WriteRequest>> entry : request.getRequestItems().entrySet()) {
+            LocalTable table = table(entry.getKey());
+            for (WriteRequest write : entry.getValue()) {
+                if (settings.unprocessedRate > 0
+                    && ThreadLocalRandom.current().nextDouble() < settings.unprocessedRate) {
+                    unprocessed.computeIfAbsent(entry.getKey(), name -> new ArrayList<>()).add(write);
+                    unprocessedItems.incrementAndGet();
+                } else if (write.getPutRequest() != null) {
+                    table.put(write.getPutRequest().getItem());
+                } else {
+                    table.items.remove(table.keyOf(write.getDeleteRequest().getKey()));
+                }
+            }
+        }
+        return new BatchWriteItemResult().withUnprocessedItems(unprocessed);
+    }
+
+    /*
+    Returns the whole table in one page; filters, projections and pagination are not modelled.
+     */
+    @Override
+    public ScanResult scan(ScanRequest request) {
+        settings.faults.call(SERVICE_NAME, "Scan");
+        List<Map<String, AttributeValue>> items = items(request.getTableName());
+        return new ScanResult().withItems(items).withCount(items.size()).withScannedCount(items.size());
+    }
+
+    private LocalTable table(String tableName) {
+        LocalTable table = tables.get(tableName);
+        if (table == null) {
+            throw new ResourceNotFoundException("Requested resource not found: " + tableName);
+        }
+        return table;
+    }
+
+    private static AmazonServiceException validationError(String message) {
+        AmazonServiceException e = new AmazonServiceException(message);
+        e.setServiceName(SERVICE_NAME);
+        e.setStatusCode(400);
+        e.setErrorCode("ValidationException");
+        e.setErrorType(AmazonServiceException.ErrorType.Client);
+        return e;
+    }
+
+    private static class LocalTable {
+        private final TableDescription description;
+        private final Map<List<AttributeValue>, Map<String, AttributeValue>> items = new ConcurrentHashMap<>();
+
+        private LocalTable(TableDescription description) {
+            this.description = description;
+        }
+
+        private void put(Map<String, AttributeValue> item) {
+            items.put(keyOf(item), Collections.unmodifiableMap(new HashMap<>(item)));
+        }
+
+        private List<AttributeValue> keyOf(Map<String, AttributeValue> item) {
+            List<AttributeValue> key = new ArrayList<>(2);
+            for (KeySchemaElement element : description.getKeySchema()) {
+                AttributeValue value = item.get(element.getAttributeName());
+                if (value == null) {
+                    throw validationError("Missing the key " + element.getAttributeName() + " in the item");
+                }
+                key.add(value);
+            }
+            return key;
+        }
+    }
+
+    static class Settings {
+
+        private double unprocessedRate;
+        private FaultInjector faults = FaultInjector.NONE;
+
+        /*
+        The share of items in each BatchWriteItem call handed back as unprocessed.
+         */
+        Settings withUnprocessedRate(double unprocessedRate) {
+            this.unprocessedRate = unprocessedRate;
+            return this;
+        }
+
+        Settings withFaults(FaultInjector faults) {
+            this.faults = faults;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,490 @@
+package com.company;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.amazonaws.util.IOUtils;
+
+/**
+ * An in-process stand-in for S3 that implements the calls this project makes: get, head, exists, put,
+ * multipart uploads and paginated listing with prefixes and delimiters. Objects live in memory, or as files under a local
+ * directory laid out as {@code <directory>/<bucket>/<key>}, which is also scanned on start so a folder of
+ * images can be served as a bucket. Latency and failures come from a {@link FaultInjector}.
+ * Anything else throws UnsupportedOperationException, as in {@link AbstractAmazonS3}.
+ */
+class LocalS3 extends AbstractAmazonS3 {
+
+    private static final Logger logger = LoggerTool.setupLogger("LocalS3");
+    private static final String SERVICE_NAME = "Amazon S3";
+    private static final int DEFAULT_MAX_KEYS = 1000;
+
+    private final Settings settings;
+    private final Map<String, NavigableMap<String, StoredObject>> buckets = new ConcurrentHashMap<>();
+    private final Map<String, MultipartUpload> uploads = new ConcurrentHashMap<>();
+    private final AtomicLong gets = new AtomicLong();
+    private final AtomicLong puts = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong partPuts = new AtomicLong();
+
+    LocalS3(Settings settings) {
+        this.settings = settings;
+        if (settings.directory != null) {
+            scan(settings.directory);
+        }
+    }
+
+    /*
+    Stores an object without going through fault injection, e.g. to load a corpus before a run.
+     */
+    void seed(String bucket, String key, byte[] content) {
+        store(bucket, key, content, new ObjectMetadata(), false);
+    }
+
+    @Override
+    public S3Object getObject(GetObjectRequest request) {
+        settings.faults.call(SERVICE_NAME, "GetObject");
+        StoredObject stored = find(request.getBucketName(), request.getKey());
+        if (stored.discarded) {
+            throw notFound(request.getBucketName(), request.getKey(), "content was discarded by LocalS3");
+        }
+        byte[] content = stored.read();
+        long[] range = request.getRange();
+        if (range != null) {
+            int from = (int) Math.min(range[0], content.length);
+            int to = (int) Math.min(range[1] + 1, content.length);
+            byte[] slice = new byte[Math.max(0, to - from)];
+            System.arraycopy(content, from, slice, 0, slice.length);
+            content = slice;
+        }
+        gets.incrementAndGet();
+        S3Object object = new S3Object();
+        object.setBucketName(request.getBucketName());
+        object.setKey(request.getKey());
+        ObjectMetadata metadata = stored.metadata();
+        metadata.setContentLength(content.length);
+        object.setObjectMetadata(metadata);
+        object.setObjectContent(new S3ObjectInputStream(new ByteArrayInputStream(content), null));
+        return object;
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request) {
+        settings.faults.call(SERVICE_NAME, "HeadObject");
+        return find(request.getBucketName(), request.getKey()).metadata();
+    }
+
+    @Override
+    public boolean doesObjectExist(String bucketName, String objectName) {
+        settings.faults.call(SERVICE_NAME, "HeadObject");
+        NavigableMap<String, StoredObject> bucket = buckets.get(bucketName);
+        return bucket != null && bucket.containsKey(objectName);
+    }
+
+    @Override
+    public PutObjectResult putObject(PutObjectRequest request) {
+        settings.faults.call(SERVICE_NAME, "PutObject");
+        byte[] content;
+        try {
+            content = request.getFile() != null
+                ? Files.readAllBytes(request.getFile().toPath())
+                : IOUtils.toByteArray(request.getInputStream());
+        } catch (IOException e) {
+            throw new SdkClientException("Unable to read the object to put: " + e, e);
+        }
+        ObjectMetadata metadata = request.getMetadata() != null ? request.getMetadata() : new ObjectMetadata();
+        StoredObject stored = store(request.getBucketName(), request.getKey(), content, metadata,
+            settings.discardWrites);
+        puts.incrementAndGet();
+        bytesWritten.addAndGet(content.length);
+        PutObjectResult result = new PutObjectResult();
+        result.setETag(stored.etag);
+        result.setMetadata(stored.metadata());
+        return result;
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+        settings.faults.call(SERVICE_NAME, "CreateMultipartUpload");
+        String uploadId = UUID.randomUUID().toString();
+        ObjectMetadata metadata = request.getObjectMetadata() != null
+            ? request.getObjectMetadata() : new ObjectMetadata();
+        uploads.put(uploadId, new MultipartUpload(request.getBucketName(), request.getKey(), metadata));
+        InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setBucketName(request.getBucketName());
+        result.setKey(request.getKey());
+        result.setUploadId(uploadId);
+        return result;
+    }
+
+    /*
+    Reads exactly the part size, from the file offset or from the stream, like the SDK does.
+     */
+    @Override
+    public UploadPartResult uploadPart(UploadPartRequest request) {
+        settings.faults.call(SERVICE_NAME, "UploadPart");
+        MultipartUpload upload = upload(request.getUploadId(), request.getKey());
+        byte[] content = new byte[(int) request.getPartSize()];
+        try {
+            if (request.getFile() != null) {
+                try (RandomAccessFile file = new RandomAccessFile(request.getFile(), "r")) {
+                    file.seek(request.getFileOffset());
+                    file.readFully(content);
+                }
+            } else {
+                new DataInputStream(request.getInputStream()).readFully(content);
+            }
+        } catch (IOException e) {
+            throw new SdkClientException("Unable to read part " + request.getPartNumber() + ": " + e, e);
+        }
+        String etag = md5Hex(content);
+        upload.parts.put(request.getPartNumber(), content);
+        partPuts.incrementAndGet();
+        UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag(etag);
+        return result;
+    }
+
+    /*
+    Only the parts named in the request make up the object, in the order given, as in S3.
+     */
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        settings.faults.call(SERVICE_NAME, "CompleteMultipartUpload");
+        MultipartUpload upload = upload(request.getUploadId(), request.getKey());
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (PartETag part : request.getPartETags()) {
+            byte[] bytes = upload.parts.get(part.getPartNumber());
+            if (bytes == null || !md5Hex(bytes).equals(part.getETag())) {
+                AmazonS3Exception e = new AmazonS3Exception("Part " + part.getPartNumber() + " of "
+                    + request.getKey() + " was not uploaded or has a different ETag");
+                e.setServiceName(SERVICE_NAME);
+                e.setStatusCode(400);
+                e.setErrorCode("InvalidPart");
+                throw e;
+            }
+            content.write(bytes, 0, bytes.length);
+        }
+        uploads.remove(request.getUploadId());
+        StoredObject stored = store(upload.bucketName, upload.key, content.toByteArray(), upload.metadata,
+            settings.discardWrites);
+        puts.incrementAndGet();
+        bytesWritten.addAndGet(content.size());
+        CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+        result.setBucketName(upload.bucketName);
+        result.setKey(upload.key);
+        result.setETag(stored.etag);
+        return result;
+    }
+
+    @Override
+    public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+        settings.faults.call(SERVICE_NAME, "AbortMultipartUpload");
+        upload(request.getUploadId(), request.getKey());
+        uploads.remove(request.getUploadId());
+    }
+
+    /*
+    Continuation tokens are simply the last key or common prefix of the previous page.
+     */
+    @Override
+    public ListObjectsV2Result listObjectsV2(ListObjectsV2Request request) {
+        settings.faults.call(SERVICE_NAME, "ListObjectsV2");
+        String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+        String delimiter = request.getDelimiter();
+        int maxKeys = request.getMaxKeys() == null ? DEFAULT_MAX_KEYS : request.getMaxKeys();
+        String token = request.getContinuationToken() != null ? request.getContinuationToken() : request.getStartAfter();
+
+        ListObjectsV2Result result = new ListObjectsV2Result();
+        result.setBucketName(request.getBucketName());
+        result.setPrefix(request.getPrefix());
+        result.setDelimiter(delimiter);
+        result.setMaxKeys(maxKeys);
+        result.setContinuationToken(request.getContinuationToken());
+        NavigableMap<String, StoredObject> bucket = buckets.get(request.getBucketName());
+        if (bucket == null) {
+            throw notFound(request.getBucketName(), "", "NoSuchBucket");
+        }
+
+        NavigableMap<String, StoredObject> candidates = token == null || token.compareTo(prefix) < 0
+            ? bucket.tailMap(prefix, true)
+            : bucket.tailMap(token, false);
+        boolean resumeAfterCommonPrefix = token != null && delimiter != null && token.endsWith(delimiter);
+        List<String> commonPrefixes = new ArrayList<>();
+        String last = null;
+        int entries = 0;
+        for (Map.Entry<String, StoredObject> entry : candidates.entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+            if (resumeAfterCommonPrefix && key.startsWith(token)) {
+                continue;
+            }
+            int cut = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+            String commonPrefix = cut < 0 ? null : key.substring(0, cut + delimiter.length());
+            if (commonPrefix != null && commonPrefix.equals(last)) {
+                continue;
+            }
+            if (entries == maxKeys) {
+                result.setTruncated(true);
+                result.setNextContinuationToken(last);
+                break;
+            }
+            if (commonPrefix != null) {
+                commonPrefixes.add(commonPrefix);
+                last = commonPrefix;
+            } else {
+                result.getObjectSummaries().add(entry.getValue().summary(request.getBucketName(), key));
+                last = key;
+            }
+            entries++;
+        }
+        result.setCommonPrefixes(commonPrefixes);
+        result.setKeyCount(entries);
+        return result;
+    }
+
+    long getGetCount() {
+        return gets.get();
+    }
+
+    long getPutCount() {
+        return puts.get();
+    }
+
+    long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    long getPartPutCount() {
+        return partPuts.get();
+    }
+
+    /*
+    Multipart uploads that were started but neither completed nor aborted.
+     */
+    int getOpenUploadCount() {
+        return uploads.size();
+    }
+
+    private StoredObject find(String bucketName, String key) {
+        NavigableMap<String, StoredObject> bucket = buckets.get(bucketName);
+        StoredObject stored = bucket == null ? null : bucket.get(key);
+        if (stored == null) {
+            throw notFound(bucketName, key, "NoSuchKey");
+        }
+        return stored;
+    }
+
+    private MultipartUpload upload(String uploadId, String key) {
+        MultipartUpload upload = uploadId == null ? null : uploads.get(uploadId);
+        if (upload == null) {
+            throw notFound("upload " + uploadId, key, "NoSuchUpload");
+        }
+        return upload;
+    }
+
+    private StoredObject store(String bucketName, String key, byte[] content, ObjectMetadata metadata,
+                               boolean discard) {
+        Path file = null;
+        if (settings.directory != null && !discard) {
+            file = settings.directory.resolve(bucketName).resolve(key);
+            try {
+                Files.createDirectories(file.getParent());
+                Files.write(file, content);
+            } catch (IOException e) {
+                throw new SdkClientException("Unable to store " + key + ": " + e, e);
+            }
+        }
+        StoredObject stored = new StoredObject(file == null && !discard ? content : null, file, content.length,
+            md5Hex(content), metadata.getContentType(), metadata.getUserMetadata(), discard);
+        buckets.computeIfAbsent(bucketName, b -> new ConcurrentSkipListMap<>()).put(key, stored);
+        return stored;
+    }
+
+    private void scan(Path directory) {
+        File[] bucketDirectories = directory.toFile().listFiles(File::isDirectory);
+        if (bucketDirectories == null) {
+            return;
+        }
+        for (File bucketDirectory : bucketDirectories) {
+            Path root = bucketDirectory.toPath();
+            NavigableMap<String, StoredObject> bucket =
+                buckets.computeIfAbsent(bucketDirectory.getName(), b -> new ConcurrentSkipListMap<>());
+            try (Stream<Path> files = Files.walk(root)) {
+                files.filter(Files::isRegularFile).forEach(file -> {
+                    String key = root.relativize(file).toString().replace(File.separatorChar, '/');
+                    try (InputStream in = new FileInputStream(file.toFile())) {
+                        byte[] content = IOUtils.toByteArray(in);
+                        bucket.put(key, new StoredObject(null, file, content.length, md5Hex(content), null,
+                            Collections.emptyMap(), false));
+                    } catch (IOException e) {
+                        logger.warning("Skipping unreadable file " + file + ": " + e);
+                    }
+                });
+            } catch (IOException e) {
+                logger.warning("Unable to scan " + root + ": " + e);
+            }
+        }
+    }
+
+    private static AmazonS3Exception notFound(String bucketName, String key, String errorCode) {
+        AmazonS3Exception e = new AmazonS3Exception("Not found: " + bucketName + "/" + key);
+        e.setServiceName(SERVICE_NAME);
+        e.setStatusCode(404);
+        e.setErrorCode(errorCode);
+        return e;
+    }
+
+    private static String md5Hex(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(content);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class StoredObject {
+        private final byte[] content;
+        private final Path file;
+        private final long length;
+        private final String etag;
+        private final String contentType;
+        private final Map<String, String> userMetadata;
+        private final boolean discarded;
+        private final Date lastModified = new Date();
+
+        private StoredObject(byte[] content, Path file, long length, String etag, String contentType,
+                             Map<String, String> userMetadata, boolean discarded) {
+            this.content = content;
+            this.file = file;
+            this.length = length;
+            this.etag = etag;
+            this.contentType = contentType;
+            this.userMetadata = new HashMap<>(userMetadata);
+            this.discarded = discarded;
+        }
+
+        byte[] read() {
+            if (content != null) {
+                return content;
+            }
+            try {
+                return Files.readAllBytes(file);
+            } catch (IOException e) {
+                throw new SdkClientException("Unable to read " + file + ": " + e, e);
+            }
+        }
+
+        ObjectMetadata metadata() {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(length);
+            metadata.setHeader("ETag", etag);
+            metadata.setLastModified(lastModified);
+            if (contentType != null) {
+                metadata.setContentType(contentType);
+            }
+            metadata.setUserMetadata(new HashMap<>(userMetadata));
+            return metadata;
+        }
+
+        S3ObjectSummary summary(String bucketName, String key) {
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setBucketName(bucketName);
+            summary.setKey(key);
+            summary.setETag(etag);
+            summary.setSize(length);
+            summary.setLastModified(lastModified);
+            return summary;
+        }
+    }
+
+    private static class MultipartUpload {
+        private final String bucketName;
+        private final String key;
+        private final ObjectMetadata metadata;
+        private final Map<Integer, byte[]> parts = new ConcurrentHashMap<>();
+
+        private MultipartUpload(String bucketName, String key, ObjectMetadata metadata) {
+            this.bucketName = bucketName;
+            this.key = key;
+            this.metadata = metadata;
+        }
+    }
+
+    static class Settings {
+
+        private Path directory;
+        private boolean discardWrites;
+        private FaultInjector faults = FaultInjector.NONE;
+
+        Settings withDirectory(Path directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        /*
+        Keeps only the metadata of objects written through putObject, so long load runs do not fill the heap
+        with derived images. Reading such an object back fails as if it did not exist.
+         */
+        Settings withDiscardedWrites(boolean discardWrites) {
+            this.discardWrites = discardWrites;
+            return this;
+        }
+
+        Settings withFaults(FaultInjector faults) {
+            this.faults = faults;
+            return this;
+        }
+    }
+}
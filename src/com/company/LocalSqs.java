@@ -0,0 +1,334 @@
+package com.company;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.amazonaws.services.sqs.AbstractAmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.CreateQueueResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageResult;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
+import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.QueueDoesNotExistException;
+import com.amazonaws.services.sqs.model.ReceiptHandleIsInvalidException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+
+/**
+ * An in-process stand-in for SQS standard queues covering the calls this project makes: send (single and
+ * batch), long-poll receive with visibility timeouts and receive counts, delete and visibility changes in
+ * batches, and the approximate message counts. Messages that are not deleted in time become visible again,
+ * just like on SQS. Latency and failures come from a {@link FaultInjector}.
+ */
+class LocalSqs extends AbstractAmazonSQS {
+
+    private static final String SERVICE_NAME = "AmazonSQS";
+    private static final String URL_PREFIX = "https://local.sqs/queue/";
+    private static final int DEFAULT_VISIBILITY_TIMEOUT_SECONDS = 30;
+
+    private final FaultInjector faults;
+    private final Map<String, LocalQueue> queues = new ConcurrentHashMap<>();
+
+    LocalSqs(FaultInjector faults) {
+        this.faults = faults;
+    }
+
+    /*
+    Sends without going through fault injection, e.g. to fill the queue before a run.
+     */
+    void seed(String queueUrl, String body, Map<String, MessageAttributeValue> attributes) {
+        queue(queueUrl).send(body, attributes);
+    }
+
+    /*
+    Messages not yet deleted, visible or in flight; read without fault injection.
+     */
+    int pendingCount(String queueUrl) {
+        LocalQueue queue = queue(queueUrl);
+        return queue.visibleCount() + queue.inFlightCount();
+    }
+
+    @Override
+    public CreateQueueResult createQueue(CreateQueueRequest request) {
+        faults.call(SERVICE_NAME, "CreateQueue");
+        queues.computeIfAbsent(request.getQueueName(), name -> new LocalQueue());
+        return new CreateQueueResult().withQueueUrl(URL_PREFIX + request.getQueueName());
+    }
+
+    @Override
+    public GetQueueUrlResult getQueueUrl(GetQueueUrlRequest request) {
+        faults.call(SERVICE_NAME, "GetQueueUrl");
+        queue(URL_PREFIX + request.getQueueName());
+        return new GetQueueUrlResult().withQueueUrl(URL_PREFIX + request.getQueueName());
+    }
+
+    @Override
+    public SendMessageResult sendMessage(SendMessageRequest request) {
+        faults.call(SERVICE_NAME, "SendMessage");
+        String id = queue(request.getQueueUrl()).send(request.getMessageBody(), request.getMessageAttributes());
+        return new SendMessageResult().withMessageId(id);
+    }
+
+    @Override
+    public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+        faults.call(SERVICE_NAME, "SendMessageBatch");
+        LocalQueue queue = queue(request.getQueueUrl());
+        List<SendMessageBatchResultEntry> successful = new ArrayList<>();
+        for (SendMessageBatchRequestEntry entry : request.getEntries()) {
+            String id = queue.send(entry.getMessageBody(), entry.getMessageAttributes());
+            successful.add(new SendMessageBatchResultEntry().withId(entry.getId()).withMessageId(id));
+        }
+        return new SendMessageBatchResult().withSuccessful(successful)
+            .withFailed(Collections.<BatchResultErrorEntry>emptyList());
+    }
+
+    @Override
+    public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+        faults.call(SERVICE_NAME, "ReceiveMessage");
+        LocalQueue queue = queue(request.getQueueUrl());
+        int max = request.getMaxNumberOfMessages() == null ? 1 : request.getMaxNumberOfMessages();
+        int waitSeconds = request.getWaitTimeSeconds() == null ? 0 : request.getWaitTimeSeconds();
+        int visibilitySeconds = request.getVisibilityTimeout() == null
+            ? DEFAULT_VISIBILITY_TIMEOUT_SECONDS : request.getVisibilityTimeout();
+        try {
+            return new ReceiveMessageResult().withMessages(queue.receive(max, waitSeconds, visibilitySeconds));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ReceiveMessageResult();
+        }
+    }
+
+    @Override
+    public DeleteMessageResult deleteMessage(DeleteMessageRequest request) {
+        faults.call(SERVICE_NAME, "DeleteMessage");
+        if (!queue(request.getQueueUrl()).delete(request.getReceiptHandle())) {
+            throw new ReceiptHandleIsInvalidException("Unknown receipt handle " + request.getReceiptHandle());
+        }
+        return new DeleteMessageResult();
+    }
+
+    @Override
+    public DeleteMessageBatchResult deleteMessageBatch(DeleteMessageBatchRequest request) {
+        faults.call(SERVICE_NAME, "DeleteMessageBatch");
+        LocalQueue queue = queue(request.getQueueUrl());
+        List<DeleteMessageBatchResultEntry> successful = new ArrayList<>();
+        List<BatchResultErrorEntry> failed = new ArrayList<>();
+        for (DeleteMessageBatchRequestEntry entry : request.getEntries()) {
+            if (queue.delete(entry.getReceiptHandle())) {
+                successful.add(new DeleteMessageBatchResultEntry().withId(entry.getId()));
+            } else {
+                failed.add(invalidReceiptHandle(entry.getId()));
+            }
+        }
+        return new DeleteMessageBatchResult().withSuccessful(successful).withFailed(failed);
+    }
+
+    @Override
+    public ChangeMessageVisibilityBatchResult changeMessageVisibilityBatch(
+        ChangeMessageVisibilityBatchRequest request) {
+        faults.call(SERVICE_NAME, "ChangeMessageVisibilityBatch");
+        LocalQueue queue = queue(request.getQueueUrl());
+        List<ChangeMessageVisibilityBatchResultEntry> successful = new ArrayList<>();
+        List<BatchResultErrorEntry> failed = new ArrayList<>();
+        for (ChangeMessageVisibilityBatchRequestEntry entry : request.getEntries()) {
+            if (queue.changeVisibility(entry.getReceiptHandle(), entry.getVisibilityTimeout())) {
+                successful.add(new ChangeMessageVisibilityBatchResultEntry().withId(entry.getId()));
+            } else {
+                failed.add(invalidReceiptHandle(entry.getId()));
+            }
+        }
+        return new ChangeMessageVisibilityBatchResult().withSuccessful(successful).withFailed(failed);
+    }
+
+    @Override
+    public GetQueueAttributesResult getQueueAttributes(GetQueueAttributesRequest request) {
+        faults.call(SERVICE_NAME, "GetQueueAttributes");
+        LocalQueue queue = queue(request.getQueueUrl());
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("ApproximateNumberOfMessages", String.valueOf(queue.visibleCount()));
+        attributes.put("ApproximateNumberOfMessagesNotVisible", String.valueOf(queue.inFlightCount()));
+        return new GetQueueAttributesResult().withAttributes(attributes);
+    }
+
+    private LocalQueue queue(String queueUrl) {
+        LocalQueue queue = queueUrl != null && queueUrl.startsWith(URL_PREFIX)
+            ? queues.get(queueUrl.substring(URL_PREFIX.length()))
+            : null;
+        if (queue == null) {
+            throw new QueueDoesNotExistException("No local queue at " + queueUrl);
+        }
+        return queue;
+    }
+
+    private static BatchResultErrorEntry invalidReceiptHandle(String id) {
+        return new BatchResultErrorEntry().withId(id).withSenderFault(true).withCode("ReceiptHandleIsInvalid")
+            .withMessage("Unknown or expired receipt handle");
+    }
+
+    private static class StoredMessage {
+        private final String id;
+        private final String body;
+        private final Map<String, MessageAttributeValue> attributes;
+        private int receiveCount;
+        private String receiptHandle;
+        private long visibleAtNanos;
+
+        private StoredMessage(String id, String body, Map<String, MessageAttributeValue> attributes) {
+            this.id = id;
+            this.body = body;
+            this.attributes = attributes == null
+                ? Collections.<String, MessageAttributeValue>emptyMap() : new HashMap<>(attributes);
+        }
+    }
+
+    /**
+     * Visible messages in arrival order, and in-flight ones by receipt handle. Expired in-flight messages
+     * go back to the front of the queue whenever somebody receives.
+     */
+    private static class LocalQueue {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final ArrayDeque<StoredMessage> visible = new ArrayDeque<>();
+        private final Map<String, StoredMessage> inFlight = new LinkedHashMap<>();
+        private final AtomicLong sequence = new AtomicLong();
+
+        String send(String body, Map<String, MessageAttributeValue> attributes) {
+            StoredMessage message = new StoredMessage(UUID.randomUUID().toString(), body, attributes);
+            lock.lock();
+            try {
+                visible.addLast(message);
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+            return message.id;
+        }
+
+        List<Message> receive(int max, int waitSeconds, int visibilitySeconds) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(waitSeconds);
+            lock.lock();
+            try {
+                requeueExpired();
+                while (visible.isEmpty()) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return Collections.emptyList();
+                    }
+                    notEmpty.awaitNanos(Math.min(remaining, TimeUnit.SECONDS.toNanos(1)));
+                    requeueExpired();
+                }
+                List<Message> received = new ArrayList<>(Math.min(max, visible.size()));
+                long visibleAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(visibilitySeconds);
+                while (received.size() < max && !visible.isEmpty()) {
+                    StoredMessage stored = visible.pollFirst();
+                    stored.receiveCount++;
+                    stored.receiptHandle = stored.id + "#" + sequence.incrementAndGet();
+                    stored.visibleAtNanos = visibleAt;
+                    inFlight.put(stored.receiptHandle, stored);
+                    received.add(toMessage(stored));
+                }
+                return received;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean delete(String receiptHandle) {
+            lock.lock();
+            try {
+                return inFlight.remove(receiptHandle) != null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean changeVisibility(String receiptHandle, int visibilitySeconds) {
+            lock.lock();
+            try {
+                StoredMessage stored = inFlight.get(receiptHandle);
+                if (stored == null) {
+                    return false;
+                }
+                stored.visibleAtNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(visibilitySeconds);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int visibleCount() {
+            lock.lock();
+            try {
+                requeueExpired();
+                return visible.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int inFlightCount() {
+            lock.lock();
+            try {
+                requeueExpired();
+                return inFlight.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void requeueExpired() {
+            long now = System.nanoTime();
+            Iterator<StoredMessage> it = inFlight.values().iterator();
+            while (it.hasNext()) {
+                StoredMessage stored = it.next();
+                if (stored.visibleAtNanos - now <= 0) {
+                    it.remove();
+                    visible.addFirst(stored);
+                }
+            }
+        }
+
+        private static Message toMessage(StoredMessage stored) {
+            Map<String, String> systemAttributes = new HashMap<>();
+            systemAttributes.put("ApproximateReceiveCount", String.valueOf(stored.receiveCount));
+            return new Message()
+                .withMessageId(stored.id)
+                .withReceiptHandle(stored.receiptHandle)
+                .withBody(stored.body)
+                .withAttributes(systemAttributes)
+                .withMessageAttributes(new HashMap<>(stored.attributes));
+        }
+    }
+}
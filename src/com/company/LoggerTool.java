@@ -1,26 +1,50 @@
 package com.company;
 
 import java.io.IOException;
-import java.util.logging.FileHandler;
+import java.util.Locale;
+import java.util.logging.Handler;
 import java.util.logging.Logger;
-import java.util.logging.SimpleFormatter;
 
+/**
+ * Hands out loggers that all write through one shared {@link AsyncLogHandler}, created on first use.
+ * Calling setupLogger again for the same name returns the same logger without adding another handler.
+ * The buffer size and what happens when it is full come from the logging.bufferSize and
+ * logging.overflow (drop or block) system properties. Records no longer go on to the root logger's console
+ * handler, which would write them synchronously on the caller's thread; -Dlogging.console=true brings the
+ * console back.
+ */
 public class LoggerTool {
 
-    static Logger setupLogger(String name) {
-        Logger logger = Logger.getLogger(name);
-        FileHandler fh;
-        try {
-            fh = new FileHandler("/tmp/cpu-bound-dummy-application.log", true);
-            logger.addHandler(fh);
-            SimpleFormatter formatter = new SimpleFormatter();
-            fh.setFormatter(formatter);
+    private static final String LOG_FILE = "/tmp/cpu-bound-dummy-application.log";
+    private static Handler handler;
 
-        } catch (SecurityException se) {
-            throw se;
-        } catch (IOException e) {
-            e.printStackTrace();
+    static synchronized Logger setupLogger(String name) {
+        Logger logger = Logger.getLogger(name);
+        Handler shared = sharedHandler();
+        if (shared == null) {
+            return logger;
+        }
+        for (Handler existing : logger.getHandlers()) {
+            if (existing == shared) {
+                return logger;
+            }
         }
+        logger.addHandler(shared);
+        logger.setUseParentHandlers(Boolean.getBoolean("logging.console"));
         return logger;
     }
+
+    private static Handler sharedHandler() {
+        if (handler == null) {
+            try {
+                AsyncLogHandler.OverflowPolicy policy = AsyncLogHandler.OverflowPolicy.valueOf(
+                    System.getProperty("logging.overflow", "drop").toUpperCase(Locale.ROOT));
+                handler = new AsyncLogHandler(LOG_FILE, Integer.getInteger("logging.bufferSize", 8192), policy);
+                Runtime.getRuntime().addShutdownHook(new Thread(handler::close, "log-flush"));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return handler;
+    }
 }
@@ -1,18 +1,15 @@
 package com.company;
 
 import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.nio.file.Paths;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
 import com.amazonaws.services.dynamodbv2.model.DescribeTableRequest;
@@ -20,17 +17,8 @@ import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
 import com.amazonaws.services.dynamodbv2.model.TableDescription;
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.model.ListObjectsV2Request;
-import com.amazonaws.services.s3.model.ListObjectsV2Result;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
-import com.amazonaws.services.simplesystemsmanagement.AWSSimpleSystemsManagementClient;
 import com.amazonaws.services.simplesystemsmanagement.model.GetParameterRequest;
 import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
-import com.amazonaws.services.sqs.model.MessageAttributeValue;
-import com.amazonaws.services.sqs.model.SendMessageRequest;
 import com.amazonaws.waiters.Waiter;
 import com.amazonaws.waiters.WaiterParameters;
 
@@ -38,16 +26,17 @@ public class Main {
 
     private static final Logger logger = LoggerTool.setupLogger("Main");
     private static String sqsQueueURL = "";
+    private static final String METRICS_SNAPSHOT_FILE = "/tmp/cpu-bound-dummy-application.metrics";
 
     public static void main(String[] args) {
 
-        AWSSimpleSystemsManagementClient awsSimpleSystemsManagementClient =
-            new AWSSimpleSystemsManagementClient();
-
-        sqsQueueURL = awsSimpleSystemsManagementClient
-            .getParameter(new GetParameterRequest().withName("SQSQueueUrl"))
-            .getParameter()
-            .getValue();
+        AdaptiveConcurrency.Settings concurrency = new AdaptiveConcurrency.Settings();
+        AwsClients.install(Boolean.getBoolean("aws.local") ? AwsClients.local()
+            : new AwsClients(new AwsClients.Settings().forWorkers(concurrency.getMaxWorkers())));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> AwsClients.shared().shutdown(), "aws-shutdown"));
+        sqsQueueURL = lookUpQueueUrl();
+        Metrics.startSnapshots(Paths.get(System.getProperty("metrics.snapshotFile", METRICS_SNAPSHOT_FILE)),
+            Long.getLong("metrics.snapshotIntervalSeconds", 60L), TimeUnit.SECONDS);
 
         ExecutorService executorService = Executors.newFixedThreadPool(2);
         ImageProcessor imageProcessor = new ImageProcessor(sqsQueueURL);
@@ -76,7 +65,7 @@ public class Main {
         */
         executorService.submit(Main::createMessageToImageQueue);
 
-        executorService.submit(()-> imageProcessor.parallelStart(4));
+        executorService.submit(()-> imageProcessor.parallelStart(concurrency));
 
         try {
             logger.info("Running for 100 days!");
@@ -86,8 +75,22 @@ public class Main {
         }
     }
 
+    /*
+    The sqs.queueUrl system property overrides the SSM parameter, so the queue can be chosen without AWS access.
+     */
+    private static String lookUpQueueUrl() {
+        String override = System.getProperty("sqs.queueUrl");
+        if (override != null) {
+            return override;
+        }
+        return AwsClients.shared().ssm()
+            .getParameter(new GetParameterRequest().withName("SQSQueueUrl"))
+            .getParameter()
+            .getValue();
+    }
+
     private static void rebuildTable(String tableName) {
-        AmazonDynamoDB client = AmazonDynamoDBClientBuilder.defaultClient();
+        AmazonDynamoDB client = AwsClients.shared().dynamoDB();
         TableDescription tableDescription = client.describeTable(tableName).getTable();
         List<KeySchemaElement> keySchema = tableDescription.getKeySchema();
         List<AttributeDefinition> keyAttributeDefinition = tableDescription.getAttributeDefinitions();
@@ -100,47 +103,29 @@ public class Main {
                 provisionedThroughputDescription.getWriteCapacityUnits())));
     }
 
-    private static List<String> buildListOfItemsInBucket() {
-        AmazonS3 amazonS3 = AmazonS3ClientBuilder.defaultClient();
+    /*
+    Rate and concurrency come from the producer.rate (messages per second) and producer.inFlightBatches
+    system properties so load tests can push far beyond the old one message per 50 ms.
+     */
+    private static void createMessageToImageQueue() {
+        AmazonSQS amazonSQS = AwsClients.shared().sqs();
+        double rate = Double.parseDouble(System.getProperty("producer.rate", "20"));
+        int inFlightBatches = Integer.getInteger("producer.inFlightBatches", 4);
 
-        List<String> result = new ArrayList();
-        ListObjectsV2Request req = new ListObjectsV2Request().withBucketName("dummy-application")
-            .withPrefix("sample-images/");
-        ListObjectsV2Result listing = amazonS3.listObjectsV2(req);
-        for (S3ObjectSummary summary: listing.getObjectSummaries()) {
-            if (summary.getKey().trim().equals("sample-images/")) {
-                continue;
-            }
-            result.add(summary.getKey().trim());
-        }
-        return result;
+        new SqsBatchProducer(amazonSQS, sqsQueueURL, randomKeySupplier(), rate, inFlightBatches,
+            TimeUnit.SECONDS.toMillis(30)).run();
     }
 
-    private static void createMessageToImageQueue() {
-        Random randomGenerator = new Random();
-        AmazonSQS amazonSQS = AmazonSQSClientBuilder.defaultClient();
-
-        while (true) {
-            List<String> list = buildListOfItemsInBucket();
-            for (int i = 0; i < 100; i++) {
-                String key = list.get(randomGenerator.nextInt(list.size()));
-
-                Map<String, MessageAttributeValue> attributeMap = new HashMap();
-                attributeMap.put("key", new MessageAttributeValue()
-                    .withDataType("String")
-                    .withStringValue(key));
-
-                amazonSQS.sendMessage(new SendMessageRequest()
-                    .withMessageAttributes(attributeMap)
-                    .withMessageBody("For Image Transformation!")
-                    .withQueueUrl(sqsQueueURL));
-                try {
-                    TimeUnit.MILLISECONDS.sleep(50);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+    /*
+    Picks a random sample image from an index of the whole prefix that refreshes itself in the background.
+     */
+    private static Supplier<String> randomKeySupplier() {
+        S3KeyIndex keyIndex = new S3KeyIndex(AwsClients.shared().s3(), "dummy-application",
+            "sample-images/", 10, TimeUnit.MINUTES, 8);
+        return () -> {
+            keyIndex.refreshIfStale();
+            return keyIndex.sample();
+        };
     }
 
 }
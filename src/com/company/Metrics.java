@@ -0,0 +1,160 @@
+package com.company;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Process-wide registry of {@link StageMetrics}. Every stage is registered as the MBean
+ * {@code com.company:type=Stage,name=<stage>} when first asked for, and {@link #startSnapshots} writes
+ * all of them to a file at a fixed interval. Callers look their stages up once and keep the reference,
+ * so the registry itself is never on a hot path. Connection pools are registered the same way, as
+ * {@code com.company:type=ConnectionPool,name=<pool>}, and caches as {@code com.company:type=Cache,name=<cache>};
+ * both are listed after the stages.
+ */
+final class Metrics {
+
+    private static final Logger logger = LoggerTool.setupLogger("Metrics");
+    private static final Map<String, StageMetrics> stages = new ConcurrentSkipListMap<>();
+    private static final Map<String, ConnectionPoolMBean> pools = new ConcurrentSkipListMap<>();
+    private static final Map<String, VariantCacheMBean> caches = new ConcurrentSkipListMap<>();
+    private static ScheduledExecutorService snapshots;
+
+    private Metrics() {
+    }
+
+    static StageMetrics stage(String name) {
+        StageMetrics metrics = stages.get(name);
+        if (metrics != null) {
+            return metrics;
+        }
+        return stages.computeIfAbsent(name, Metrics::register);
+    }
+
+    /*
+    A pool registered again under the same name, e.g. for a rebuilt client, replaces the old one.
+     */
+    static void pool(ConnectionPoolMBean pool) {
+        pools.put(pool.getName(), pool);
+        replaceMBean(pool, ConnectionPoolMBean.class, "com.company:type=ConnectionPool,name="
+            + ObjectName.quote(pool.getName()));
+    }
+
+    private static <T> void replaceMBean(T bean, Class<T> type, String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(new StandardMBean(bean, type), objectName);
+        } catch (JMException e) {
+            logger.warning("Unable to register " + name + " with JMX: " + e);
+        }
+    }
+
+    /*
+    A cache registered again under the same name, e.g. by a second processor, replaces the old one.
+     */
+    static void cache(VariantCacheMBean cache) {
+        caches.put(cache.getName(), cache);
+        replaceMBean(cache, VariantCacheMBean.class, "com.company:type=Cache,name="
+            + ObjectName.quote(cache.getName()));
+    }
+
+    /*
+    Rewrites the whole file every interval through a temp file and a rename, so readers never see half a snapshot.
+     */
+    static synchronized void startSnapshots(Path file, long interval, TimeUnit unit) {
+        if (snapshots != null) {
+            return;
+        }
+        snapshots = Executors.newSingleThreadScheduledExecutor(PipelineStage.namedDaemonThreads("metrics"));
+        snapshots.scheduleAtFixedRate(() -> {
+            try {
+                writeSnapshot(file);
+            } catch (IOException | RuntimeException e) {
+                logger.warning("Writing metrics snapshot to " + file + " failed: " + e);
+            }
+        }, interval, interval, unit);
+        logger.info("Writing metrics snapshots to " + file + " every " + interval + " " + unit);
+    }
+
+    static synchronized void stopSnapshots() {
+        if (snapshots != null) {
+            snapshots.shutdownNow();
+            snapshots = null;
+        }
+    }
+
+    static void writeSnapshot(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            out.write(snapshot());
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static String snapshot() {
+        StringBuilder out = new StringBuilder();
+        out.append("# ").append(Instant.now()).append('\n');
+        out.append(String.format("%-28s %10s %8s %10s %10s %10s %10s %14s %14s %7s %8s  %s%n", "stage", "count",
+            "errors", "mean_ms", "p50_ms", "p99_ms", "max_ms", "bytes_in", "bytes_out", "queue", "inflight",
+            "errors_by_type"));
+        for (StageMetrics metrics : stages.values()) {
+            out.append(String.format("%-28s %10d %8d %10.3f %10.3f %10.3f %10.3f %14d %14d %7d %8d  %s%n",
+                metrics.getName(), metrics.getCount(), metrics.getErrorCount(), metrics.getMeanMillis(),
+                metrics.getP50Millis(), metrics.getP99Millis(), metrics.getMaxMillis(), metrics.getBytesIn(),
+                metrics.getBytesOut(), metrics.getQueueDepth(), metrics.getInFlight(), metrics.getErrorsByType()));
+        }
+        if (!pools.isEmpty()) {
+            out.append(String.format("%n%-28s %10s %10s %10s %10s%n", "pool", "leased", "pending", "available",
+                "max"));
+            for (ConnectionPoolMBean pool : pools.values()) {
+                out.append(String.format("%-28s %10d %10d %10d %10d%n", pool.getName(), pool.getLeased(),
+                    pool.getPending(), pool.getAvailable(), pool.getMax()));
+            }
+        }
+        if (!caches.isEmpty()) {
+            out.append(String.format("%n%-28s %10s %10s %10s %10s %10s %10s %14s %14s%n", "cache", "mem_hits",
+                "disk_hits", "misses", "mem_evict", "disk_evict", "skipped", "mem_bytes", "disk_bytes"));
+            for (VariantCacheMBean cache : caches.values()) {
+                out.append(String.format("%-28s %10d %10d %10d %10d %10d %10d %14d %14d%n", cache.getName(),
+                    cache.getMemoryHitCount(), cache.getDiskHitCount(), cache.getMissCount(),
+                    cache.getMemoryEvictionCount(), cache.getDiskEvictionCount(), cache.getSkippedUploadCount(),
+                    cache.getMemoryBytes(), cache.getDiskBytes()));
+            }
+        }
+        return out.toString();
+    }
+
+    private static StageMetrics register(String name) {
+        StageMetrics metrics = new StageMetrics(name);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("com.company:type=Stage,name=" + ObjectName.quote(name));
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(metrics, objectName);
+            }
+        } catch (JMException e) {
+            logger.warning("Unable to register metrics for " + name + " with JMX: " + e);
+        }
+        return metrics;
+    }
+}
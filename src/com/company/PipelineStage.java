@@ -0,0 +1,221 @@
+package com.company;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * One stage of a staged pipeline: a pool of workers that take items from a bounded input queue,
+ * process them and hand results to the next stage. A full downstream queue blocks the workers, so
+ * this stage's own queue fills up and the back pressure travels upstream instead of piling up work.
+ * The pool can be resized while running; surplus workers retire after their current item.
+ */
+class PipelineStage<I, O> {
+
+    private static final Logger logger = LoggerTool.setupLogger("PipelineStage");
+    private static final long IDLE_CHECK_MILLIS = 1000L;
+
+    private final String name;
+    private volatile int workers;
+    private final AtomicInteger running = new AtomicInteger();
+    private final BlockingQueue<I> input;
+    private final Handler<I, O> handler;
+    private final ErrorHandler<I> errorHandler;
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final StageMetrics metrics;
+    private ExecutorService executorService;
+    private Downstream<O> downstream;
+
+    PipelineStage(String name, int workers, int queueCapacity, Handler<I, O> handler, ErrorHandler<I> errorHandler) {
+        if (workers < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Stage " + name + " needs at least one worker and one queue slot");
+        }
+        this.name = name;
+        this.workers = workers;
+        this.input = new ArrayBlockingQueue<>(queueCapacity);
+        this.handler = handler;
+        this.errorHandler = errorHandler;
+        this.metrics = Metrics.stage("pipeline." + name).bindQueueDepth(input::size);
+    }
+
+    synchronized void start(Downstream<O> downstream) {
+        if (executorService != null) {
+            throw new IllegalStateException("Stage " + name + " already started");
+        }
+        this.downstream = downstream;
+        executorService = Executors.newCachedThreadPool(namedDaemonThreads(name));
+        spawn();
+    }
+
+    /*
+    New workers start right away. When shrinking, busy workers finish their item first and idle ones notice
+    within a second.
+     */
+    synchronized void resize(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Stage " + name + " needs at least one worker");
+        }
+        this.workers = workers;
+        if (executorService != null && !executorService.isShutdown()) {
+            spawn();
+        }
+    }
+
+    synchronized void stop() {
+        if (executorService != null) {
+            executorService.shutdownNow();
+        }
+    }
+
+    void submit(I item) throws InterruptedException {
+        input.put(item);
+    }
+
+    private void spawn() {
+        while (running.get() < workers) {
+            running.incrementAndGet();
+            executorService.submit(() -> work(downstream));
+        }
+    }
+
+    private boolean retire() {
+        int current;
+        do {
+            current = running.get();
+            if (current <= workers) {
+                return false;
+            }
+        } while (!running.compareAndSet(current, current - 1));
+        return true;
+    }
+
+    /*
+    Latency is the handler's own time per item. Time spent blocked on a full downstream queue is
+    back pressure from a later stage and is left out. Errors count as failures too: an OutOfMemoryError on
+    one oversized image fails that item, and the worker moves on to the next one. A worker that leaves for
+    any reason other than retiring gives its place back, so resize() can replace it.
+     */
+    private void work(Downstream<O> downstream) {
+        TimedDownstream<O> timed = new TimedDownstream<>(downstream);
+        boolean retired = false;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (retire()) {
+                    retired = true;
+                    return;
+                }
+                I item;
+                try {
+                    item = input.poll(IDLE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (item == null) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                timed.blockedNanos = 0;
+                try {
+                    handler.handle(item, timed);
+                    metrics.record(System.nanoTime() - start - timed.blockedNanos);
+                    processed.incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    reportFailure(item, e);
+                    return;
+                } catch (Throwable e) {
+                    failed.incrementAndGet();
+                    metrics.error(e);
+                    reportFailure(item, e instanceof Exception ? (Exception) e
+                        : new ExecutionException("Stage " + name + " failed with " + e, e));
+                }
+            }
+        } finally {
+            if (!retired) {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    private void reportFailure(I item, Exception e) {
+        try {
+            errorHandler.failed(item, e);
+        } catch (RuntimeException handlerFailure) {
+            logger.warning("Stage " + name + " error handler failed: " + handlerFailure);
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getWorkers() {
+        return workers;
+    }
+
+    int getQueueDepth() {
+        return input.size();
+    }
+
+    long getProcessedCount() {
+        return processed.get();
+    }
+
+    long getFailedCount() {
+        return failed.get();
+    }
+
+    LatencyHistogram getLatency() {
+        return metrics.getLatency();
+    }
+
+    static ThreadFactory namedDaemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = Executors.defaultThreadFactory().newThread(r);
+            t.setName(prefix + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    interface Handler<I, O> {
+        void handle(I item, Downstream<O> downstream) throws Exception;
+    }
+
+    interface Downstream<O> {
+        void emit(O item) throws InterruptedException;
+    }
+
+    interface ErrorHandler<I> {
+        void failed(I item, Exception e);
+    }
+
+    private static class TimedDownstream<O> implements Downstream<O> {
+        private final Downstream<O> downstream;
+        private long blockedNanos;
+
+        private TimedDownstream(Downstream<O> downstream) {
+            this.downstream = downstream;
+        }
+
+        @Override
+        public void emit(O item) throws InterruptedException {
+            long start = System.nanoTime();
+            try {
+                downstream.emit(item);
+            } finally {
+                blockedNanos += System.nanoTime() - start;
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.company;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Grey and monochrome conversion that works on the raster arrays directly and splits the image into row
+ * stripes across a ForkJoin pool. {@link ImageEditor#grey} and {@link ImageEditor#monochrome} are the
+ * reference: the output is pixel-for-pixel identical, and images with a layout {@link ArgbRowReader}
+ * does not cover are handed to them unchanged.
+ */
+final class PixelKernels {
+
+    private static final ImageEditor REFERENCE = new ImageEditor();
+    private static final int STRIPE_PIXELS = 1 << 16;
+
+    /*
+    Java2D's ByteGray conversion is (77r + 150g + 29b + 128) / 256, split here into per-channel tables.
+     */
+    private static final int[] LUMA_RED = new int[256];
+    private static final int[] LUMA_GREEN = new int[256];
+    private static final int[] LUMA_BLUE = new int[256];
+    /*
+    Java2D blends translucent pixels onto the black destination with round(a * v / 255).
+     */
+    private static final byte[] MUL8 = new byte[256 * 256];
+    /*
+    Java2D picks the black or white palette entry from the top five bits of each channel; the table is
+    taken from the reference path itself so it always agrees with the running JDK.
+     */
+    private static final byte[] MONOCHROME_CUBE = new byte[32 * 32 * 32];
+
+    static {
+        for (int v = 0; v < 256; v++) {
+            LUMA_RED[v] = 77 * v;
+            LUMA_GREEN[v] = 150 * v;
+            LUMA_BLUE[v] = 29 * v + 128;
+        }
+        for (int a = 0; a < 256; a++) {
+            for (int v = 0; v < 256; v++) {
+                MUL8[a << 8 | v] = (byte) ((a * v + 127) / 255);
+            }
+        }
+        BufferedImage cube = new BufferedImage(32 * 32, 32, BufferedImage.TYPE_INT_RGB);
+        for (int r = 0; r < 32; r++) {
+            for (int g = 0; g < 32; g++) {
+                for (int b = 0; b < 32; b++) {
+                    cube.setRGB(r * 32 + g, b, r << 19 | g << 11 | b << 3);
+                }
+            }
+        }
+        Raster bits = REFERENCE.monochrome(cube).getRaster();
+        for (int r = 0; r < 32; r++) {
+            for (int g = 0; g < 32; g++) {
+                for (int b = 0; b < 32; b++) {
+                    MONOCHROME_CUBE[r << 10 | g << 5 | b] = (byte) bits.getSample(r * 32 + g, b, 0);
+                }
+            }
+        }
+    }
+
+    private PixelKernels() {
+    }
+
+    static BufferedImage grey(BufferedImage image) {
+        return grey(image, ForkJoinPool.commonPool());
+    }
+
+    static BufferedImage grey(BufferedImage image, ForkJoinPool pool) {
+        ArgbRowReader reader = ArgbRowReader.of(image);
+        if (reader == null) {
+            return REFERENCE.grey(image);
+        }
+        BufferedImage newImage = new BufferedImage(reader.width, reader.height, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] out = ((DataBufferByte) newImage.getRaster().getDataBuffer()).getData();
+        pool.invoke(new Stripe(reader, 0, reader.height,
+            (y, argb) -> greyRow(argb, reader.width, out, y * reader.width)));
+        return newImage;
+    }
+
+    static BufferedImage monochrome(BufferedImage image) {
+        return monochrome(image, ForkJoinPool.commonPool());
+    }
+
+    static BufferedImage monochrome(BufferedImage image, ForkJoinPool pool) {
+        ArgbRowReader reader = ArgbRowReader.of(image);
+        if (reader == null) {
+            return REFERENCE.monochrome(image);
+        }
+        BufferedImage newImage = new BufferedImage(reader.width, reader.height, BufferedImage.TYPE_BYTE_BINARY);
+        byte[] out = ((DataBufferByte) newImage.getRaster().getDataBuffer()).getData();
+        int stride = ((MultiPixelPackedSampleModel) newImage.getSampleModel()).getScanlineStride();
+        pool.invoke(new Stripe(reader, 0, reader.height,
+            (y, argb) -> monochromeRow(argb, reader.width, out, y * stride)));
+        return newImage;
+    }
+
+    static void greyRow(int[] argb, int width, byte[] out, int offset) {
+        for (int x = 0; x < width; x++) {
+            int pixel = argb[x];
+            int grey = (LUMA_RED[(pixel >> 16) & 0xFF] + LUMA_GREEN[(pixel >> 8) & 0xFF]
+                + LUMA_BLUE[pixel & 0xFF]) >> 8;
+            int alpha = pixel >>> 24;
+            out[offset + x] = alpha == 0xFF ? (byte) grey : MUL8[alpha << 8 | grey];
+        }
+    }
+
+    /*
+    Packs eight pixels per byte, most significant bit first, as TYPE_BYTE_BINARY expects.
+     */
+    static void monochromeRow(int[] argb, int width, byte[] out, int offset) {
+        int bits = 0;
+        for (int x = 0; x < width; x++) {
+            bits = bits << 1 | monochromeBit(argb[x]);
+            if ((x & 7) == 7) {
+                out[offset + (x >> 3)] = (byte) bits;
+                bits = 0;
+            }
+        }
+        int tail = width & 7;
+        if (tail != 0) {
+            out[offset + (width >> 3)] = (byte) (bits << (8 - tail));
+        }
+    }
+
+    static int monochromeBit(int pixel) {
+        int alpha = pixel >>> 24;
+        int r = (pixel >> 16) & 0xFF;
+        int g = (pixel >> 8) & 0xFF;
+        int b = pixel & 0xFF;
+        if (alpha != 0xFF) {
+            r = MUL8[alpha << 8 | r] & 0xFF;
+            g = MUL8[alpha << 8 | g] & 0xFF;
+            b = MUL8[alpha << 8 | b] & 0xFF;
+        }
+        return MONOCHROME_CUBE[(r >> 3) << 10 | (g >> 3) << 5 | (b >> 3)];
+    }
+
+    interface RowKernel {
+        void row(int y, int[] argb);
+    }
+
+    /**
+     * Splits rows in half until a stripe holds roughly {@code STRIPE_PIXELS} pixels, then reads each row
+     * of the stripe into one reused buffer and hands it to the kernel.
+     */
+    static final class Stripe extends RecursiveAction {
+        private final ArgbRowReader reader;
+        private final int fromRow;
+        private final int toRow;
+        private final RowKernel kernel;
+
+        Stripe(ArgbRowReader reader, int fromRow, int toRow, RowKernel kernel) {
+            this.reader = reader;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.kernel = kernel;
+        }
+
+        @Override
+        protected void compute() {
+            int rows = toRow - fromRow;
+            if (rows > 1 && (long) rows * reader.width > STRIPE_PIXELS) {
+                int middle = fromRow + rows / 2;
+                invokeAll(new Stripe(reader, fromRow, middle, kernel), new Stripe(reader, middle, toRow, kernel));
+                return;
+            }
+            int[] argb = new int[reader.width];
+            for (int y = fromRow; y < toRow; y++) {
+                reader.read(y, argb);
+                kernel.row(y, argb);
+            }
+        }
+    }
+}
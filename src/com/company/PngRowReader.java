@@ -0,0 +1,269 @@
+package com.company;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.imageio.ImageTypeSpecifier;
+
+/**
+ * Decodes a PNG file one band of rows at a time in a single forward pass, so memory stays at one band
+ * however tall the image is. ImageIO can read a source region, but for PNG it inflates everything above
+ * the region again on every call.
+ * <p>
+ * Only the layouts that dominate in practice are streamed: non-interlaced 8-bit grey, RGB and RGBA without
+ * a transparency or ICC chunk. Bands are laid out exactly as ImageIO would decode them, given by its image
+ * type, so everything derived from them matches the whole-image path. {@link #open} returns null for any
+ * other file.
+ */
+class PngRowReader implements Closeable {
+
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
+    final int width;
+    final int height;
+    private final ImageTypeSpecifier type;
+    private final int channels;
+    private final int rowBytes;
+    private final DataInputStream file;
+    private final Inflater inflater = new Inflater();
+    private final DataInputStream pixels;
+    private byte[] previous;
+    private byte[] current;
+    private int row;
+
+    private PngRowReader(DataInputStream file, int width, int height, int channels, ImageTypeSpecifier type) {
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.type = type;
+        this.rowBytes = width * channels;
+        this.previous = new byte[rowBytes + 1];
+        this.current = new byte[rowBytes + 1];
+        this.pixels = new DataInputStream(new InflaterInputStream(new IdatStream(file), inflater, 64 * 1024));
+    }
+
+    /*
+    type is the image type ImageIO picks for the file, i.e. the first of its reader's getImageTypes(0).
+     */
+    static PngRowReader open(File source, ImageTypeSpecifier type) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(source), 64 * 1024));
+        try {
+            byte[] signature = new byte[SIGNATURE.length];
+            in.readFully(signature);
+            if (!Arrays.equals(signature, SIGNATURE) || in.readInt() != 13 || !"IHDR".equals(readType(in))) {
+                in.close();
+                return null;
+            }
+            int width = in.readInt();
+            int height = in.readInt();
+            int bitDepth = in.readUnsignedByte();
+            int colorType = in.readUnsignedByte();
+            skipFully(in, 2);
+            int interlace = in.readUnsignedByte();
+            skipFully(in, 4);
+            int channels = colorType == 0 ? 1 : colorType == 2 ? 3 : colorType == 6 ? 4 : 0;
+            if (bitDepth != 8 || channels == 0 || interlace != 0 || !matches(type, channels)) {
+                in.close();
+                return null;
+            }
+            while (true) {
+                in.mark(8);
+                int length = in.readInt();
+                String chunkType = readType(in);
+                if ("IDAT".equals(chunkType)) {
+                    in.reset();
+                    return new PngRowReader(in, width, height, channels, type);
+                }
+                if ("tRNS".equals(chunkType) || "iCCP".equals(chunkType) || "IEND".equals(chunkType)) {
+                    in.close();
+                    return null;
+                }
+                skipFully(in, length + 4L);
+            }
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /*
+    ImageIO's band layout has to be plain interleaved bytes for the rows to be copied into it.
+     */
+    private static boolean matches(ImageTypeSpecifier type, int channels) {
+        SampleModel sampleModel = type.getSampleModel(1, 1);
+        return sampleModel instanceof PixelInterleavedSampleModel
+            && sampleModel.getDataType() == DataBuffer.TYPE_BYTE
+            && sampleModel.getNumBands() == channels
+            && ((PixelInterleavedSampleModel) sampleModel).getPixelStride() == channels
+            && !type.getColorModel().isAlphaPremultiplied();
+    }
+
+    int rowsLeft() {
+        return height - row;
+    }
+
+    /*
+    The next min(rows, rowsLeft()) rows as an image of ImageIO's type for this file.
+     */
+    BufferedImage readBand(int rows) throws IOException {
+        int count = Math.min(rows, rowsLeft());
+        BufferedImage band = type.createBufferedImage(width, count);
+        PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) band.getSampleModel();
+        byte[] data = ((DataBufferByte) band.getRaster().getDataBuffer()).getData();
+        int[] bandOffsets = sampleModel.getBandOffsets();
+        boolean inOrder = true;
+        for (int k = 0; k < channels; k++) {
+            inOrder &= bandOffsets[k] == k;
+        }
+        int stride = sampleModel.getScanlineStride();
+        for (int y = 0; y < count; y++) {
+            readRow();
+            int offset = y * stride;
+            if (inOrder) {
+                System.arraycopy(current, 1, data, offset, rowBytes);
+            } else {
+                for (int x = 0, in = 1; x < width; x++, in += channels) {
+                    int out = offset + x * channels;
+                    for (int k = 0; k < channels; k++) {
+                        data[out + bandOffsets[k]] = current[in + k];
+                    }
+                }
+            }
+        }
+        return band;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        file.close();
+    }
+
+    /*
+    Undoes the row's filter in place; byte 0 of each buffer is the filter type. Before the first row the
+    previous buffer is all zeros, as the specification has it.
+     */
+    private void readRow() throws IOException {
+        byte[] swap = previous;
+        previous = current;
+        current = swap;
+        pixels.readFully(current);
+        byte[] x = current;
+        byte[] up = previous;
+        switch (x[0]) {
+            case 0:
+                break;
+            case 1:
+                for (int i = 1 + channels; i <= rowBytes; i++) {
+                    x[i] += x[i - channels];
+                }
+                break;
+            case 2:
+                for (int i = 1; i <= rowBytes; i++) {
+                    x[i] += up[i];
+                }
+                break;
+            case 3:
+                for (int i = 1; i <= rowBytes; i++) {
+                    int a = i > channels ? x[i - channels] & 0xFF : 0;
+                    x[i] += (a + (up[i] & 0xFF)) >>> 1;
+                }
+                break;
+            case 4:
+                for (int i = 1; i <= rowBytes; i++) {
+                    int a = i > channels ? x[i - channels] & 0xFF : 0;
+                    int c = i > channels ? up[i - channels] & 0xFF : 0;
+                    x[i] += PngRowWriter.paethPredictor(a, up[i] & 0xFF, c);
+                }
+                break;
+            default:
+                throw new IOException("Unknown PNG filter type " + x[0] + " in row " + row);
+        }
+        row++;
+    }
+
+    private static String readType(DataInputStream in) throws IOException {
+        byte[] type = new byte[4];
+        in.readFully(type);
+        return new String(type, StandardCharsets.US_ASCII);
+    }
+
+    private static void skipFully(InputStream in, long bytes) throws IOException {
+        while (bytes > 0) {
+            long skipped = in.skip(bytes);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Truncated PNG chunk");
+                }
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+
+    /**
+     * The payload of consecutive IDAT chunks as one stream, with chunk headers and CRCs left out.
+     */
+    private static class IdatStream extends InputStream {
+        private final DataInputStream in;
+        private int remaining;
+        private boolean done;
+
+        private IdatStream(DataInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            while (remaining == 0) {
+                if (done) {
+                    return -1;
+                }
+                nextChunk();
+            }
+            int read = in.read(buffer, offset, Math.min(length, remaining));
+            if (read < 0) {
+                throw new EOFException("Truncated IDAT chunk");
+            }
+            remaining -= read;
+            if (remaining == 0) {
+                skipFully(in, 4);
+            }
+            return read;
+        }
+
+        private void nextChunk() throws IOException {
+            int length = in.readInt();
+            if (!"IDAT".equals(readType(in))) {
+                done = true;
+                return;
+            }
+            remaining = length;
+            if (length == 0) {
+                skipFully(in, 4);
+            }
+        }
+    }
+}
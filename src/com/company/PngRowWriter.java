@@ -0,0 +1,210 @@
+package com.company;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes a non-interlaced PNG one row at a time, so an image of any height can be written while only
+ * two rows are held in memory. Every row gets the adaptive filter the PNG specification recommends, the
+ * one with the smallest sum of absolute differences, and compressed data goes out in IDAT chunks of
+ * {@code CHUNK_BYTES} as soon as it is available.
+ */
+class PngRowWriter {
+
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    private static final int CHUNK_BYTES = 64 * 1024;
+    /*
+    The level ImageIO's own PNG writer uses by default.
+     */
+    private static final int COMPRESSION_LEVEL = 4;
+
+    private final OutputStream out;
+    private final int height;
+    private final int rowBytes;
+    private final int bytesPerPixel;
+    private final Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+    private final CRC32 crc = new CRC32();
+    private final byte[] chunk = new byte[CHUNK_BYTES];
+    private final byte[][] filtered = new byte[5][];
+    private byte[] previous;
+    private byte[] current;
+    private int rows;
+
+    PngRowWriter(OutputStream out, int width, int height, Format format) throws IOException {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Empty image " + width + "x" + height);
+        }
+        this.out = out;
+        this.height = height;
+        this.rowBytes = format.rowBytes(width);
+        this.bytesPerPixel = Math.max(1, format.bitsPerPixel / 8);
+        this.previous = new byte[rowBytes];
+        this.current = new byte[rowBytes];
+        for (int i = 0; i < filtered.length; i++) {
+            filtered[i] = new byte[rowBytes + 1];
+            filtered[i][0] = (byte) i;
+        }
+        out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = (byte) format.bitDepth;
+        header[9] = (byte) format.colorType;
+        writeChunk("IHDR", header, header.length);
+    }
+
+    int rowBytes() {
+        return rowBytes;
+    }
+
+    /*
+    Takes one row as packed PNG samples, rowBytes() long, starting at offset.
+     */
+    void writeRow(byte[] row, int offset) throws IOException {
+        if (rows == height) {
+            throw new IllegalStateException("All " + height + " rows are already written");
+        }
+        System.arraycopy(row, offset, current, 0, rowBytes);
+        byte[] best = filter();
+        deflater.setInput(best, 0, rowBytes + 1);
+        drain(false);
+        byte[] swap = previous;
+        previous = current;
+        current = swap;
+        rows++;
+    }
+
+    /*
+    Flushes the compressed tail and writes IEND. The stream itself is left open for the caller.
+     */
+    void finish() throws IOException {
+        if (rows != height) {
+            throw new IllegalStateException("Only " + rows + " of " + height + " rows were written");
+        }
+        deflater.finish();
+        drain(true);
+        deflater.end();
+        writeChunk("IEND", chunk, 0);
+        out.flush();
+    }
+
+    private byte[] filter() {
+        byte[] none = filtered[0];
+        byte[] sub = filtered[1];
+        byte[] up = filtered[2];
+        byte[] average = filtered[3];
+        byte[] paeth = filtered[4];
+        long noneSum = 0;
+        long subSum = 0;
+        long upSum = 0;
+        long averageSum = 0;
+        long paethSum = 0;
+        for (int i = 0; i < rowBytes; i++) {
+            int x = current[i] & 0xFF;
+            int a = i >= bytesPerPixel ? current[i - bytesPerPixel] & 0xFF : 0;
+            int b = previous[i] & 0xFF;
+            int c = i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xFF : 0;
+            byte n = (byte) x;
+            byte s = (byte) (x - a);
+            byte u = (byte) (x - b);
+            byte v = (byte) (x - ((a + b) >>> 1));
+            byte p = (byte) (x - paethPredictor(a, b, c));
+            none[i + 1] = n;
+            sub[i + 1] = s;
+            up[i + 1] = u;
+            average[i + 1] = v;
+            paeth[i + 1] = p;
+            noneSum += Math.abs((int) n);
+            subSum += Math.abs((int) s);
+            upSum += Math.abs((int) u);
+            averageSum += Math.abs((int) v);
+            paethSum += Math.abs((int) p);
+        }
+        byte[] best = none;
+        long bestSum = noneSum;
+        if (subSum < bestSum) {
+            best = sub;
+            bestSum = subSum;
+        }
+        if (upSum < bestSum) {
+            best = up;
+            bestSum = upSum;
+        }
+        if (averageSum < bestSum) {
+            best = average;
+            bestSum = averageSum;
+        }
+        if (paethSum < bestSum) {
+            best = paeth;
+        }
+        return best;
+    }
+
+    static int paethPredictor(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    private void drain(boolean finishing) throws IOException {
+        while (finishing ? !deflater.finished() : !deflater.needsInput()) {
+            int length = deflater.deflate(chunk);
+            if (length > 0) {
+                writeChunk("IDAT", chunk, length);
+            }
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        byte[] word = new byte[4];
+        putInt(word, 0, length);
+        out.write(word);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        crc.reset();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        putInt(word, 0, (int) crc.getValue());
+        out.write(word);
+    }
+
+    private static void putInt(byte[] target, int offset, int value) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+
+    /**
+     * The sample layouts the tiled mode writes.
+     */
+    enum Format {
+        GREY1(0, 1, 1),
+        GREY8(0, 8, 8),
+        RGB8(2, 8, 24),
+        RGBA8(6, 8, 32);
+
+        private final int colorType;
+        private final int bitDepth;
+        private final int bitsPerPixel;
+
+        Format(int colorType, int bitDepth, int bitsPerPixel) {
+            this.colorType = colorType;
+            this.bitDepth = bitDepth;
+            this.bitsPerPixel = bitsPerPixel;
+        }
+
+        int rowBytes(int width) {
+            return (int) (((long) width * bitsPerPixel + 7) / 8);
+        }
+    }
+}
@@ -1,96 +1,122 @@
 package com.company;
 
 import java.math.BigInteger;
-import java.util.concurrent.TimeUnit;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
-import com.amazonaws.services.dynamodbv2.document.DynamoDB;
-import com.amazonaws.services.dynamodbv2.document.Item;
-import com.amazonaws.services.dynamodbv2.document.ItemCollection;
-import com.amazonaws.services.dynamodbv2.document.QueryOutcome;
-import com.amazonaws.services.dynamodbv2.document.Table;
-import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 
 public class PrimeTool {
 
     private static final Logger logger = LoggerTool.setupLogger("PrimeTool");
     public static final String PRIME_TABLE = "prime-table";
+    private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+    private static final StageMetrics segmentMetrics = Metrics.stage("prime.segment");
+    private static final StageMetrics searchMetrics = Metrics.stage("prime.search");
+    private static final StageMetrics putMetrics = Metrics.stage("prime.put");
+    private static final StageMetrics pickUpMetrics = Metrics.stage("prime.pickUpFrom");
 
-    /*
-    from startFrom exclusively.
-     */
-    private static BigInteger findNextPrime(BigInteger startFrom) {
-        BigInteger number = startFrom;
-        while(true) {
-            number = number.add(BigInteger.ONE);
-            if(isPrime(number)) {
-                return number;
-            }
-        }
+    static void populatePrimeUpTo(BigInteger max) {
+        populatePrimeUpTo(AwsClients.shared().dynamoDB(), max);
     }
 
-    private static boolean isPrime(BigInteger number) {
+    /*
+    Primes up to Long.MAX_VALUE come from the segmented sieve, resuming after the high-water mark in the
+    table's checkpoint item. Only primes beyond that are found with BigInteger.
+     */
+    static void populatePrimeUpTo(AmazonDynamoDB client, BigInteger max) {
         try {
-            if (!number.isProbablePrime(1024))
-                return false;
-
-            //check if even
-            BigInteger two = new BigInteger("2");
-            if (!two.equals(number) && BigInteger.ZERO.equals(number.mod(two)))
-                return false;
+            DynamoResultSink sink = new DynamoResultSink(client, PRIME_TABLE, new DynamoResultSink.Settings()
+                .withShards(Integer.getInteger("prime.shards", 16))
+                .withCheckpointKey(checkpointKey()));
 
-            //find divisor if any from 3 to 'number'
-            for (BigInteger i = new BigInteger("3"); i.multiply(i).compareTo(number) < 1; i = i.add(two)) {
-                //start from 3, 5, etc. the odd number, and look for a divisor if any
-                if (BigInteger.ZERO.equals(number.mod(i))) //check if 'i' is divisor of 'number'
-                    return false;
+            BigInteger from = pickUpFrom(sink).add(BigInteger.ONE);
+            if (from.compareTo(LONG_MAX) < 0) {
+                long to = max.compareTo(LONG_MAX) < 0 ? max.longValue() + 1 : Long.MAX_VALUE;
+                SegmentedSieve sieve = new SegmentedSieve(ForkJoinPool.commonPool(),
+                    Integer.getInteger("prime.segmentBytes", SegmentedSieve.DEFAULT_SEGMENT_BYTES));
+                sieve.sieve(from.longValue(), to, prime -> putPrime(sink, BigInteger.valueOf(prime)),
+                    timed(sink));
+            }
+            if (max.compareTo(LONG_MAX) > 0) {
+                BigInteger previousPrime = pickUpFrom(sink).max(LONG_MAX);
+                int sinceCheckpoint = 0;
+                while (true) {
+                    long start = searchMetrics.start();
+                    BigInteger nextPrime = previousPrime.nextProbablePrime();
+                    searchMetrics.stop(start);
+                    if (nextPrime.compareTo(max) > 0) {
+                        break;
+                    }
+                    putPrime(sink, nextPrime);
+                    previousPrime = nextPrime;
+                    if (++sinceCheckpoint == DynamoResultSink.MAX_BATCH_SIZE) {
+                        sink.checkpoint(previousPrime);
+                        sinceCheckpoint = 0;
+                    }
+                }
+                sink.checkpoint(previousPrime);
             }
-            return true;
         } catch (Exception e) {
-            logger.warning("isPrime check failed " + e);
-            return false;
+            logger.warning("PrimeTool failed due to :" + e);
         }
     }
 
-    static void populatePrimeUpTo(BigInteger max) {
+    /*
+    Primes are spread over the shards by value; the partition key keeps its old name because the table's
+    key schema is fixed.
+     */
+    private static void putPrime(DynamoResultSink sink, BigInteger prime) {
+        long start = putMetrics.start();
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put("key-not-used", new AttributeValue().withS(String.valueOf(sink.shardOf(prime.longValue()))));
+        item.put("prime", new AttributeValue().withS(prime.toString()));
         try {
-            AmazonDynamoDB client = AmazonDynamoDBClientBuilder.defaultClient();
-            DynamoDB dynamoDB = new DynamoDB(client);
-            Table table = dynamoDB.getTable(PRIME_TABLE);
-
-            BigInteger previousPrime = pickUpFrom(table);
-            while (true) {
-                TimeUnit.SECONDS.sleep(5);
-                BigInteger nextPrime = findNextPrime(previousPrime);
-                table.putItem(new Item().withString("key-not-used","1")
-                    .withString("prime", nextPrime.toString()));
-                previousPrime = nextPrime;
-                try {
-                    TimeUnit.MILLISECONDS.sleep(100);
-                } catch (InterruptedException e) {
-                    logger.warning("Interrupted during prime calculation.");
-                }
-                if (nextPrime.compareTo(max)==1) {
-                    break;
-                }
-            }
-        } catch (Exception e) {
-            logger.warning("PrimeTool failed due to :" + e);
+            sink.put(item);
+        } catch (RuntimeException e) {
+            putMetrics.error(e);
+            throw e;
         }
+        putMetrics.stop(start);
     }
 
-    private static BigInteger pickUpFrom(Table table) {
-        BigInteger largestPrime = BigInteger.ONE;
-        ItemCollection<QueryOutcome> results = table.query(new QuerySpec()
-            .withHashKey("key-not-used", "1"));
-        for (Item result : results) {
-            BigInteger number = new BigInteger(result.getString("prime"));
-            if (number.compareTo(largestPrime) == 1) {
-                largestPrime = number;
+    /*
+    After each segment every number below its end has been searched and its primes stored, so that is
+    the new high-water mark. Also records how long each segment took end to end, storing included.
+     */
+    private static SegmentedSieve.Checkpoint timed(DynamoResultSink sink) {
+        return new SegmentedSieve.Checkpoint() {
+            private long last = System.nanoTime();
+
+            @Override
+            public long resumeFrom(long from) {
+                return from;
+            }
+
+            @Override
+            public void segmentDone(long nextFrom) {
+                sink.checkpoint(BigInteger.valueOf(nextFrom - 1));
+                long now = System.nanoTime();
+                segmentMetrics.record(now - last);
+                last = now;
             }
         };
-        return largestPrime;
+    }
+
+    private static BigInteger pickUpFrom(DynamoResultSink sink) {
+        long start = pickUpMetrics.start();
+        BigInteger highWaterMark = sink.highWaterMark();
+        pickUpMetrics.stop(start);
+        return highWaterMark == null ? BigInteger.ONE : highWaterMark;
+    }
+
+    private static Map<String, AttributeValue> checkpointKey() {
+        Map<String, AttributeValue> key = new HashMap<>();
+        key.put("key-not-used", new AttributeValue().withS("checkpoint"));
+        key.put("prime", new AttributeValue().withS("checkpoint"));
+        return key;
     }
 }
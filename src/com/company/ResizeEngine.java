@@ -0,0 +1,599 @@
+package com.company;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Resizes images with a separable filter: each band of output rows filters the source rows it needs
+ * horizontally, then combines them vertically, so no full-size intermediate is ever allocated. The filter
+ * weights for a source and target length are computed once and cached. Large downscales are first halved
+ * with a 2x2 box until at most a factor of two is left, which keeps the filter support, and the cost, small.
+ * <p>
+ * The result has the source's color model. Samples are filtered as they are stored, with straight alpha
+ * premultiplied for the duration so transparent pixels do not bleed into their neighbours. Palette images
+ * have no samples that could be averaged; they are resized as ARGB and mapped back to their palette.
+ */
+final class ResizeEngine {
+
+    private static final int BAND_PIXELS = 1 << 16;
+    private static final int MAX_CACHED_TABLES = 64;
+    /*
+    Byte samples as floats. A table lookup is several times faster than the int to float conversion in
+    the row readers' loops.
+     */
+    private static final float[] BYTE_VALUES = new float[256];
+
+    static {
+        for (int v = 0; v < 256; v++) {
+            BYTE_VALUES[v] = v;
+        }
+    }
+
+    private static final Map<TableKey, WeightTable> TABLES =
+        new LinkedHashMap<TableKey, WeightTable>(MAX_CACHED_TABLES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<TableKey, WeightTable> eldest) {
+                return size() > MAX_CACHED_TABLES;
+            }
+        };
+
+    private ResizeEngine() {
+    }
+
+    /**
+     * The reconstruction filters, by their radius at a scale of one.
+     */
+    enum Filter {
+        BOX(0.5) {
+            @Override
+            double weight(double x) {
+                return x >= -0.5 && x < 0.5 ? 1 : 0;
+            }
+        },
+        BILINEAR(1) {
+            @Override
+            double weight(double x) {
+                x = Math.abs(x);
+                return x < 1 ? 1 - x : 0;
+            }
+        },
+        LANCZOS3(3) {
+            @Override
+            double weight(double x) {
+                x = Math.abs(x);
+                if (x < 1e-9) {
+                    return 1;
+                }
+                if (x >= 3) {
+                    return 0;
+                }
+                double px = Math.PI * x;
+                return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+            }
+        };
+
+        private final double radius;
+
+        Filter(double radius) {
+            this.radius = radius;
+        }
+
+        abstract double weight(double x);
+    }
+
+    static BufferedImage resize(BufferedImage image, int width, int height, Filter filter) {
+        return resize(image, width, height, filter, ForkJoinPool.commonPool());
+    }
+
+    static BufferedImage resize(BufferedImage image, int width, int height, Filter filter, ForkJoinPool pool) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Cannot resize to " + width + "x" + height);
+        }
+        ColorModel colorModel = image.getColorModel();
+        int transferType = colorModel.getTransferType();
+        if (!(colorModel instanceof ComponentColorModel || colorModel instanceof DirectColorModel)
+            || transferType == DataBuffer.TYPE_FLOAT || transferType == DataBuffer.TYPE_DOUBLE) {
+            return resizeAsArgb(image, width, height, filter, pool);
+        }
+        BufferedImage current = image;
+        while (current.getWidth() > 2 * width || current.getHeight() > 2 * height) {
+            int halfWidth = current.getWidth() > 2 * width ? current.getWidth() / 2 : current.getWidth();
+            int halfHeight = current.getHeight() > 2 * height ? current.getHeight() / 2 : current.getHeight();
+            current = pass(current, halfWidth, halfHeight, Filter.BOX, pool);
+        }
+        if (current != image && current.getWidth() == width && current.getHeight() == height) {
+            return current;
+        }
+        return pass(current, width, height, filter, pool);
+    }
+
+    /*
+    Palette and floating point images are filtered in ARGB, then drawn into an image with the source's
+    color model; for a palette that picks the nearest entry.
+     */
+    private static BufferedImage resizeAsArgb(BufferedImage image, int width, int height, Filter filter,
+        ForkJoinPool pool) {
+        boolean alpha = image.getColorModel().hasAlpha();
+        BufferedImage argb = new BufferedImage(image.getWidth(), image.getHeight(),
+            alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = argb.createGraphics();
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        BufferedImage resized = resize(argb, width, height, filter, pool);
+        BufferedImage newImage = compatible(image, width, height);
+        graphics = newImage.createGraphics();
+        graphics.drawImage(resized, 0, 0, null);
+        graphics.dispose();
+        return newImage;
+    }
+
+    private static BufferedImage pass(BufferedImage source, int width, int height, Filter filter, ForkJoinPool pool) {
+        BufferedImage target = compatible(source, width, height);
+        SampleRows in = SampleRows.of(source);
+        SampleRows out = SampleRows.of(target);
+        WeightTable columns = table(filter, source.getWidth(), width);
+        WeightTable rows = table(filter, source.getHeight(), height);
+        pool.invoke(new Band(in, out, columns, rows, 0, height));
+        return target;
+    }
+
+    /*
+    Same color model and sample layout as the image, so a standard image type stays that type.
+     */
+    private static BufferedImage compatible(BufferedImage image, int width, int height) {
+        ColorModel colorModel = image.getColorModel();
+        WritableRaster raster = image.getRaster().createCompatibleWritableRaster(width, height);
+        return new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+    }
+
+    private static WeightTable table(Filter filter, int sourceLength, int targetLength) {
+        TableKey key = new TableKey(filter, sourceLength, targetLength);
+        synchronized (TABLES) {
+            WeightTable table = TABLES.get(key);
+            if (table != null) {
+                return table;
+            }
+        }
+        WeightTable table = new WeightTable(filter, sourceLength, targetLength);
+        synchronized (TABLES) {
+            TABLES.put(key, table);
+        }
+        return table;
+    }
+
+    private static final class TableKey {
+        private final Filter filter;
+        private final int sourceLength;
+        private final int targetLength;
+
+        private TableKey(Filter filter, int sourceLength, int targetLength) {
+            this.filter = filter;
+            this.sourceLength = sourceLength;
+            this.targetLength = targetLength;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TableKey)) {
+                return false;
+            }
+            TableKey other = (TableKey) o;
+            return filter == other.filter && sourceLength == other.sourceLength && targetLength == other.targetLength;
+        }
+
+        @Override
+        public int hashCode() {
+            return (filter.hashCode() * 31 + sourceLength) * 31 + targetLength;
+        }
+    }
+
+    /**
+     * For every target position, the first source position it reads and the normalized weights of the
+     * {@code taps} positions from there. Positions past either edge are folded onto the edge pixel.
+     */
+    static final class WeightTable {
+        final int taps;
+        final int[] start;
+        final float[] weights;
+
+        WeightTable(Filter filter, int sourceLength, int targetLength) {
+            double scale = (double) targetLength / sourceLength;
+            double filterScale = Math.min(scale, 1);
+            double support = filter.radius / filterScale;
+            double[][] rows = new double[targetLength][];
+            int[] first = new int[targetLength];
+            int taps = 1;
+            for (int i = 0; i < targetLength; i++) {
+                double center = (i + 0.5) / scale;
+                int left = Math.max(0, (int) Math.floor(center - support));
+                int right = Math.min(sourceLength - 1, (int) Math.ceil(center + support));
+                double[] row = new double[right - left + 1];
+                double sum = 0;
+                for (int j = (int) Math.floor(center - support); j <= (int) Math.ceil(center + support); j++) {
+                    double weight = filter.weight((j + 0.5 - center) * filterScale);
+                    int k = Math.max(left, Math.min(right, j)) - left;
+                    row[k] += weight;
+                    sum += weight;
+                }
+                int from = 0;
+                int to = row.length - 1;
+                while (from < to && row[from] == 0) {
+                    from++;
+                }
+                while (to > from && row[to] == 0) {
+                    to--;
+                }
+                if (sum == 0) {
+                    row = new double[] {1};
+                    from = 0;
+                    to = 0;
+                    left = Math.max(0, Math.min(sourceLength - 1, (int) center));
+                    sum = 1;
+                }
+                for (int k = from; k <= to; k++) {
+                    row[k] /= sum;
+                }
+                rows[i] = Arrays.copyOfRange(row, from, to + 1);
+                first[i] = left + from;
+                taps = Math.max(taps, rows[i].length);
+            }
+            this.taps = taps;
+            this.start = new int[targetLength];
+            this.weights = new float[targetLength * taps];
+            for (int i = 0; i < targetLength; i++) {
+                int shift = Math.max(0, first[i] + taps - sourceLength);
+                start[i] = first[i] - shift;
+                for (int k = 0; k < rows[i].length; k++) {
+                    weights[i * taps + shift + k] = (float) rows[i][k];
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits the target rows in half until a band holds roughly {@code BAND_PIXELS} pixels. A band filters
+     * every source row it touches horizontally into its own buffer, one plane per sample band, then
+     * combines those rows vertically into its target rows.
+     */
+    private static final class Band extends RecursiveAction {
+        private final SampleRows in;
+        private final SampleRows out;
+        private final WeightTable columns;
+        private final WeightTable rows;
+        private final int fromRow;
+        private final int toRow;
+
+        private Band(SampleRows in, SampleRows out, WeightTable columns, WeightTable rows, int fromRow, int toRow) {
+            this.in = in;
+            this.out = out;
+            this.columns = columns;
+            this.rows = rows;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        @Override
+        protected void compute() {
+            int count = toRow - fromRow;
+            if (count > 1 && (long) count * out.width > BAND_PIXELS) {
+                int middle = fromRow + count / 2;
+                invokeAll(new Band(in, out, columns, rows, fromRow, middle),
+                    new Band(in, out, columns, rows, middle, toRow));
+                return;
+            }
+            int bands = in.bands;
+            int firstSource = rows.start[fromRow];
+            int lastSource = rows.start[toRow - 1] + rows.taps;
+            float[][] source = new float[bands][in.width];
+            float[][][] filtered = new float[lastSource - firstSource][bands][];
+            for (int y = firstSource; y < lastSource; y++) {
+                in.read(y, source);
+                for (int b = 0; b < bands; b++) {
+                    filtered[y - firstSource][b] = horizontal(source[b]);
+                }
+            }
+            float[][] target = new float[bands][out.width];
+            for (int y = fromRow; y < toRow; y++) {
+                int first = rows.start[y] - firstSource;
+                for (int b = 0; b < bands; b++) {
+                    float[] line = target[b];
+                    float[] firstLine = filtered[first][b];
+                    float firstWeight = rows.weights[y * rows.taps];
+                    for (int x = 0; x < line.length; x++) {
+                        line[x] = firstWeight * firstLine[x];
+                    }
+                    for (int k = 1; k < rows.taps; k++) {
+                        float weight = rows.weights[y * rows.taps + k];
+                        if (weight != 0) {
+                            float[] filteredLine = filtered[first + k][b];
+                            for (int x = 0; x < line.length; x++) {
+                                line[x] += weight * filteredLine[x];
+                            }
+                        }
+                    }
+                }
+                out.write(y, target);
+            }
+        }
+
+        /*
+        The common short filters are unrolled; a loop over a handful of taps costs about twice as much.
+         */
+        private float[] horizontal(float[] source) {
+            int taps = columns.taps;
+            int[] start = columns.start;
+            float[] w = columns.weights;
+            float[] target = new float[out.width];
+            switch (taps) {
+                case 1:
+                    for (int x = 0; x < target.length; x++) {
+                        target[x] = w[x] * source[start[x]];
+                    }
+                    break;
+                case 2:
+                    for (int x = 0, o = 0; x < target.length; x++, o += 2) {
+                        int i = start[x];
+                        target[x] = w[o] * source[i] + w[o + 1] * source[i + 1];
+                    }
+                    break;
+                case 3:
+                    for (int x = 0, o = 0; x < target.length; x++, o += 3) {
+                        int i = start[x];
+                        target[x] = w[o] * source[i] + w[o + 1] * source[i + 1] + w[o + 2] * source[i + 2];
+                    }
+                    break;
+                case 4:
+                    for (int x = 0, o = 0; x < target.length; x++, o += 4) {
+                        int i = start[x];
+                        target[x] = w[o] * source[i] + w[o + 1] * source[i + 1] + w[o + 2] * source[i + 2]
+                            + w[o + 3] * source[i + 3];
+                    }
+                    break;
+                default:
+                    for (int x = 0, o = 0; x < target.length; x++, o += taps) {
+                        float sum = 0;
+                        for (int k = 0, i = start[x]; k < taps; k++, i++) {
+                            sum += w[o + k] * source[i];
+                        }
+                        target[x] = sum;
+                    }
+            }
+            return target;
+        }
+    }
+
+    /**
+     * Reads and writes rows of raw samples as one float plane per band. Straight alpha is premultiplied on
+     * the way in and divided out again on the way out. Plain byte-interleaved and packed-int rasters are
+     * accessed in their arrays; anything else goes through the raster's getSamples and setSamples.
+     */
+    private abstract static class SampleRows {
+        final int width;
+        final int bands;
+        final float[] max;
+        final int alphaBand;
+
+        private SampleRows(BufferedImage image) {
+            ColorModel colorModel = image.getColorModel();
+            this.width = image.getWidth();
+            this.bands = image.getRaster().getNumBands();
+            this.max = new float[bands];
+            for (int b = 0; b < bands; b++) {
+                max[b] = (1 << image.getSampleModel().getSampleSize(b)) - 1;
+            }
+            this.alphaBand = colorModel.hasAlpha() && !colorModel.isAlphaPremultiplied() ? bands - 1 : -1;
+        }
+
+        static SampleRows of(BufferedImage image) {
+            WritableRaster raster = image.getRaster();
+            SampleModel sampleModel = raster.getSampleModel();
+            DataBuffer dataBuffer = raster.getDataBuffer();
+            int originX = -raster.getSampleModelTranslateX();
+            int originY = -raster.getSampleModelTranslateY();
+            if (dataBuffer.getNumBanks() == 1 && dataBuffer instanceof DataBufferByte
+                && sampleModel instanceof PixelInterleavedSampleModel) {
+                PixelInterleavedSampleModel interleaved = (PixelInterleavedSampleModel) sampleModel;
+                boolean bytes = true;
+                for (int bits : sampleModel.getSampleSize()) {
+                    bytes &= bits == 8;
+                }
+                if (bytes) {
+                    return new InterleavedBytes(image, ((DataBufferByte) dataBuffer).getData(),
+                        dataBuffer.getOffset() + interleaved.getOffset(originX, originY)
+                            - interleaved.getBandOffsets()[0], interleaved);
+                }
+            }
+            if (dataBuffer.getNumBanks() == 1 && dataBuffer instanceof DataBufferInt
+                && sampleModel instanceof SinglePixelPackedSampleModel) {
+                SinglePixelPackedSampleModel packed = (SinglePixelPackedSampleModel) sampleModel;
+                return new PackedInts(image, ((DataBufferInt) dataBuffer).getData(),
+                    dataBuffer.getOffset() + packed.getOffset(originX, originY), packed);
+            }
+            return new RasterSamples(image);
+        }
+
+        void read(int y, float[][] planes) {
+            readRaw(y, planes);
+            if (alphaBand >= 0) {
+                float[] alpha = planes[alphaBand];
+                float scale = 1 / max[alphaBand];
+                for (int b = 0; b < alphaBand; b++) {
+                    float[] plane = planes[b];
+                    for (int x = 0; x < width; x++) {
+                        plane[x] *= alpha[x] * scale;
+                    }
+                }
+            }
+        }
+
+        /*
+        Divides premultiplied alpha out again, in place, so planes is left unusable afterwards.
+         */
+        void write(int y, float[][] planes) {
+            if (alphaBand >= 0) {
+                float[] alpha = planes[alphaBand];
+                float alphaMax = max[alphaBand];
+                for (int b = 0; b < alphaBand; b++) {
+                    float[] plane = planes[b];
+                    for (int x = 0; x < width; x++) {
+                        plane[x] = alpha[x] > 0.5f ? plane[x] * alphaMax / alpha[x] : 0;
+                    }
+                }
+            }
+            writeRaw(y, planes);
+        }
+
+        /*
+        Rounds to the nearest sample value in [0, max].
+         */
+        static int clamp(float value, float max) {
+            return value <= 0 ? 0 : value >= max ? (int) max : (int) (value + 0.5f);
+        }
+
+        abstract void readRaw(int y, float[][] planes);
+
+        /*
+        Stores the planes clamped and rounded.
+         */
+        abstract void writeRaw(int y, float[][] planes);
+    }
+
+    private static final class InterleavedBytes extends SampleRows {
+        private final byte[] data;
+        private final int offset;
+        private final int stride;
+        private final int pixelStride;
+        private final int[] bandOffsets;
+
+        private InterleavedBytes(BufferedImage image, byte[] data, int offset, PixelInterleavedSampleModel sampleModel) {
+            super(image);
+            this.data = data;
+            this.offset = offset;
+            this.stride = sampleModel.getScanlineStride();
+            this.pixelStride = sampleModel.getPixelStride();
+            this.bandOffsets = sampleModel.getBandOffsets();
+        }
+
+        @Override
+        void readRaw(int y, float[][] planes) {
+            for (int b = 0; b < bands; b++) {
+                float[] plane = planes[b];
+                for (int x = 0, i = offset + y * stride + bandOffsets[b]; x < width; x++, i += pixelStride) {
+                    plane[x] = BYTE_VALUES[data[i] & 0xFF];
+                }
+            }
+        }
+
+        @Override
+        void writeRaw(int y, float[][] planes) {
+            for (int b = 0; b < bands; b++) {
+                float[] plane = planes[b];
+                for (int x = 0, i = offset + y * stride + bandOffsets[b]; x < width; x++, i += pixelStride) {
+                    float value = plane[x];
+                    data[i] = (byte) (value <= 0 ? 0 : value >= 255 ? 255 : (int) (value + 0.5f));
+                }
+            }
+        }
+    }
+
+    private static final class PackedInts extends SampleRows {
+        private final int[] data;
+        private final int offset;
+        private final int stride;
+        private final int[] masks;
+        private final int[] shifts;
+
+        private PackedInts(BufferedImage image, int[] data, int offset, SinglePixelPackedSampleModel sampleModel) {
+            super(image);
+            this.data = data;
+            this.offset = offset;
+            this.stride = sampleModel.getScanlineStride();
+            this.masks = sampleModel.getBitMasks();
+            this.shifts = sampleModel.getBitOffsets();
+        }
+
+        @Override
+        void readRaw(int y, float[][] planes) {
+            int row = offset + y * stride;
+            for (int b = 0; b < bands; b++) {
+                float[] plane = planes[b];
+                int mask = masks[b];
+                int shift = shifts[b];
+                if (mask >>> shift <= 0xFF) {
+                    for (int x = 0; x < width; x++) {
+                        plane[x] = BYTE_VALUES[(data[row + x] & mask) >>> shift];
+                    }
+                } else {
+                    for (int x = 0; x < width; x++) {
+                        plane[x] = (data[row + x] & mask) >>> shift;
+                    }
+                }
+            }
+        }
+
+        @Override
+        void writeRaw(int y, float[][] planes) {
+            int row = offset + y * stride;
+            Arrays.fill(data, row, row + width, 0);
+            for (int b = 0; b < bands; b++) {
+                float[] plane = planes[b];
+                int shift = shifts[b];
+                float bandMax = max[b];
+                for (int x = 0; x < width; x++) {
+                    data[row + x] |= clamp(plane[x], bandMax) << shift;
+                }
+            }
+        }
+    }
+
+    private static final class RasterSamples extends SampleRows {
+        private final WritableRaster raster;
+        private final ThreadLocal<int[]> buffer;
+
+        private RasterSamples(BufferedImage image) {
+            super(image);
+            this.raster = image.getRaster();
+            this.buffer = ThreadLocal.withInitial(() -> new int[width]);
+        }
+
+        @Override
+        void readRaw(int y, float[][] planes) {
+            int[] samples = buffer.get();
+            for (int b = 0; b < bands; b++) {
+                raster.getSamples(0, y, width, 1, b, samples);
+                float[] plane = planes[b];
+                for (int x = 0; x < width; x++) {
+                    plane[x] = samples[x];
+                }
+            }
+        }
+
+        @Override
+        void writeRaw(int y, float[][] planes) {
+            int[] samples = buffer.get();
+            for (int b = 0; b < bands; b++) {
+                float[] plane = planes[b];
+                float bandMax = max[b];
+                for (int x = 0; x < width; x++) {
+                    samples[x] = clamp(plane[x], bandMax);
+                }
+                raster.setSamples(0, y, width, 1, b, samples);
+            }
+        }
+    }
+}
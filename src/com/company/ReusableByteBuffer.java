@@ -0,0 +1,100 @@
+package com.company;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * A byte buffer that is reset and refilled for every encoded image instead of being reallocated.
+ * The backing array only grows, so a worker settles on one buffer sized for its largest output.
+ * Buffers that travel between threads with the image they hold come from a {@link Pool} and go back to
+ * it once their contents are no longer needed.
+ */
+class ReusableByteBuffer extends ByteArrayOutputStream {
+
+    ReusableByteBuffer(int initialCapacity) {
+        super(initialCapacity);
+    }
+
+    /*
+    Reads the current contents without copying. Only valid until the next reset or write.
+     */
+    InputStream toInputStream() {
+        return new ByteArrayInputStream(buf, 0, count);
+    }
+
+    /*
+    The backing array itself; the contents are its first size() bytes. Only valid until the next reset or
+    write.
+     */
+    byte[] array() {
+        return buf;
+    }
+
+    int capacity() {
+        return buf.length;
+    }
+
+    /*
+    Replaces the contents with the rest of the stream, read straight into the backing array. The expected
+    length, if known, sizes the array up front; a longer stream still grows it.
+     */
+    void readFully(InputStream in, long expectedLength) throws IOException {
+        reset();
+        if (expectedLength > buf.length && expectedLength < Integer.MAX_VALUE) {
+            buf = new byte[(int) expectedLength];
+        }
+        while (true) {
+            if (count == buf.length) {
+                int peek = in.read();
+                if (peek < 0) {
+                    return;
+                }
+                buf = Arrays.copyOf(buf, Math.max(16, buf.length * 2));
+                buf[count++] = (byte) peek;
+            }
+            int read = in.read(buf, count, buf.length - count);
+            if (read < 0) {
+                return;
+            }
+            count += read;
+        }
+    }
+
+    /**
+     * Buffers handed from one pipeline stage to the next. Released buffers are kept, most recently used
+     * first, while their combined capacity stays within the limit; the rest are left to the collector.
+     */
+    static final class Pool {
+        private final int initialCapacity;
+        private final long maxIdleBytes;
+        private final Deque<ReusableByteBuffer> idle = new ArrayDeque<>();
+        private long idleBytes;
+
+        Pool(int initialCapacity, long maxIdleBytes) {
+            this.initialCapacity = initialCapacity;
+            this.maxIdleBytes = maxIdleBytes;
+        }
+
+        synchronized ReusableByteBuffer acquire() {
+            ReusableByteBuffer buffer = idle.pollFirst();
+            if (buffer == null) {
+                return new ReusableByteBuffer(initialCapacity);
+            }
+            idleBytes -= buffer.capacity();
+            buffer.reset();
+            return buffer;
+        }
+
+        synchronized void release(ReusableByteBuffer buffer) {
+            if (idleBytes + buffer.capacity() <= maxIdleBytes) {
+                idle.addFirst(buffer);
+                idleBytes += buffer.capacity();
+            }
+        }
+    }
+}
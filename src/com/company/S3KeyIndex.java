@@ -0,0 +1,294 @@
+package com.company;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * In-memory index of every key under a bucket prefix, used by the producer to pick sample images.
+ * <p>
+ * The prefix is split into shards, one per sub-prefix found with a "/" delimiter plus one for the keys
+ * directly under the prefix. Shards are listed in parallel and each one is paged through to the end.
+ * A shard stores its sub-prefix once and the UTF-8 suffixes of its keys in a single byte array. Each
+ * shard is re-listed on its own TTL, so a refresh only touches the shards that went stale.
+ * Sampling picks a shard with an alias table weighted by shard size and then a key within that shard,
+ * both in constant time.
+ */
+class S3KeyIndex {
+
+    private static final Logger logger = LoggerTool.setupLogger("S3KeyIndex");
+    private static final String DELIMITER = "/";
+
+    private final AmazonS3 amazonS3;
+    private final String bucket;
+    private final String prefix;
+    private final long ttlNanos;
+    private final ExecutorService listers;
+    private final Map<String, KeyTable> shards = new HashMap<>();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    S3KeyIndex(AmazonS3 amazonS3, String bucket, String prefix, long ttl, TimeUnit unit, int parallelism) {
+        this.amazonS3 = amazonS3;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.listers = Executors.newFixedThreadPool(parallelism, PipelineStage.namedDaemonThreads("s3-key-index"));
+    }
+
+    /*
+    Re-lists the stale shards. The top level listing is always repeated because it is what finds new and
+    removed sub-prefixes; it is also the listing for the keys directly under the prefix.
+     */
+    synchronized void refresh() {
+        long now = System.nanoTime();
+        List<String> subPrefixes = new ArrayList<>();
+        KeyTable root = listRoot(subPrefixes, now);
+
+        Map<String, CompletableFuture<KeyTable>> pending = new HashMap<>();
+        for (String subPrefix : subPrefixes) {
+            KeyTable current = shards.get(subPrefix);
+            if (current == null || now - current.listedAt > ttlNanos) {
+                pending.put(subPrefix, CompletableFuture.supplyAsync(() -> listShard(subPrefix), listers));
+            }
+        }
+
+        Map<String, KeyTable> refreshed = new HashMap<>();
+        refreshed.put(prefix, root);
+        for (String subPrefix : subPrefixes) {
+            CompletableFuture<KeyTable> future = pending.get(subPrefix);
+            KeyTable table = shards.get(subPrefix);
+            if (future != null) {
+                try {
+                    table = future.join();
+                } catch (RuntimeException e) {
+                    logger.warning("Listing " + subPrefix + " failed, keeping previous listing: " + e);
+                }
+            }
+            if (table != null) {
+                refreshed.put(subPrefix, table);
+            }
+        }
+        shards.clear();
+        shards.putAll(refreshed);
+        snapshot = new Snapshot(new ArrayList<>(shards.values()));
+        logger.info("Indexed " + snapshot.size + " keys under " + prefix + " in " + shards.size()
+            + " shards, re-listed " + pending.size() + " sub-prefixes.");
+    }
+
+    /*
+    The first listing happens on the caller's thread; after that stale shards are re-listed in the
+    background so sampling never waits on S3.
+     */
+    void refreshIfStale() {
+        Snapshot current = snapshot;
+        if (current.size == 0) {
+            refresh();
+        } else if (System.nanoTime() - current.oldestListedAt > ttlNanos && refreshing.compareAndSet(false, true)) {
+            listers.execute(() -> {
+                try {
+                    refresh();
+                } catch (RuntimeException e) {
+                    logger.warning("Refreshing key index for " + prefix + " failed: " + e);
+                } finally {
+                    refreshing.set(false);
+                }
+            });
+        }
+    }
+
+    String sample() {
+        Snapshot current = snapshot;
+        if (current.size == 0) {
+            throw new IllegalStateException("No keys indexed under " + prefix);
+        }
+        return current.sample(ThreadLocalRandom.current());
+    }
+
+    int size() {
+        return snapshot.size;
+    }
+
+    void shutdown() {
+        listers.shutdownNow();
+    }
+
+    private KeyTable listRoot(List<String> subPrefixes, long now) {
+        KeyTable.Builder builder = new KeyTable.Builder(prefix);
+        ListObjectsV2Request request = new ListObjectsV2Request()
+            .withBucketName(bucket)
+            .withPrefix(prefix)
+            .withDelimiter(DELIMITER);
+        ListObjectsV2Result listing;
+        do {
+            listing = amazonS3.listObjectsV2(request);
+            addKeys(builder, listing);
+            subPrefixes.addAll(listing.getCommonPrefixes());
+            request.setContinuationToken(listing.getNextContinuationToken());
+        } while (listing.isTruncated());
+        return builder.build(now);
+    }
+
+    private KeyTable listShard(String subPrefix) {
+        KeyTable.Builder builder = new KeyTable.Builder(subPrefix);
+        ListObjectsV2Request request = new ListObjectsV2Request()
+            .withBucketName(bucket)
+            .withPrefix(subPrefix);
+        ListObjectsV2Result listing;
+        do {
+            listing = amazonS3.listObjectsV2(request);
+            addKeys(builder, listing);
+            request.setContinuationToken(listing.getNextContinuationToken());
+        } while (listing.isTruncated());
+        return builder.build(System.nanoTime());
+    }
+
+    private static void addKeys(KeyTable.Builder builder, ListObjectsV2Result listing) {
+        for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+            String key = summary.getKey().trim();
+            if (key.endsWith(DELIMITER)) {
+                continue;
+            }
+            builder.add(key);
+        }
+    }
+
+    /**
+     * All keys of one shard: the shared prefix once, then the UTF-8 suffixes back to back.
+     */
+    private static class KeyTable {
+        private final String prefix;
+        private final byte[] suffixes;
+        private final int[] offsets;
+        private final long listedAt;
+
+        private KeyTable(String prefix, byte[] suffixes, int[] offsets, long listedAt) {
+            this.prefix = prefix;
+            this.suffixes = suffixes;
+            this.offsets = offsets;
+            this.listedAt = listedAt;
+        }
+
+        int size() {
+            return offsets.length - 1;
+        }
+
+        String get(int index) {
+            return prefix + new String(suffixes, offsets[index], offsets[index + 1] - offsets[index],
+                StandardCharsets.UTF_8);
+        }
+
+        private static class Builder {
+            private final String prefix;
+            private final ByteArrayOutputStream suffixes = new ByteArrayOutputStream();
+            private int[] offsets = new int[64];
+            private int count;
+
+            private Builder(String prefix) {
+                this.prefix = prefix;
+            }
+
+            void add(String key) {
+                byte[] suffix = key.substring(prefix.length()).getBytes(StandardCharsets.UTF_8);
+                suffixes.write(suffix, 0, suffix.length);
+                if (count + 2 > offsets.length) {
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                }
+                offsets[++count] = suffixes.size();
+            }
+
+            KeyTable build(long listedAt) {
+                return new KeyTable(prefix, suffixes.toByteArray(), Arrays.copyOf(offsets, count + 1), listedAt);
+            }
+        }
+    }
+
+    /**
+     * Immutable view used for sampling, with a Vose alias table so picking a shard in proportion to its
+     * size costs one random draw and one comparison.
+     */
+    private static class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(new ArrayList<>());
+
+        private final KeyTable[] tables;
+        private final double[] probability;
+        private final int[] alias;
+        private final int size;
+        private final long oldestListedAt;
+
+        private Snapshot(List<KeyTable> nonEmpty) {
+            long oldest = System.nanoTime();
+            for (KeyTable table : nonEmpty) {
+                oldest = Math.min(oldest, table.listedAt);
+            }
+            oldestListedAt = oldest;
+            nonEmpty.removeIf(table -> table.size() == 0);
+            tables = nonEmpty.toArray(new KeyTable[0]);
+            int n = tables.length;
+            probability = new double[n];
+            alias = new int[n];
+            int total = 0;
+            for (KeyTable table : tables) {
+                total += table.size();
+            }
+            size = total;
+            if (n == 0) {
+                return;
+            }
+
+            double[] scaled = new double[n];
+            int[] small = new int[n];
+            int[] large = new int[n];
+            int smallCount = 0;
+            int largeCount = 0;
+            for (int i = 0; i < n; i++) {
+                scaled[i] = (double) tables[i].size() * n / total;
+                if (scaled[i] < 1.0) {
+                    small[smallCount++] = i;
+                } else {
+                    large[largeCount++] = i;
+                }
+            }
+            while (smallCount > 0 && largeCount > 0) {
+                int less = small[--smallCount];
+                int more = large[--largeCount];
+                probability[less] = scaled[less];
+                alias[less] = more;
+                scaled[more] = scaled[more] + scaled[less] - 1.0;
+                if (scaled[more] < 1.0) {
+                    small[smallCount++] = more;
+                } else {
+                    large[largeCount++] = more;
+                }
+            }
+            while (largeCount > 0) {
+                probability[large[--largeCount]] = 1.0;
+            }
+            while (smallCount > 0) {
+                probability[small[--smallCount]] = 1.0;
+            }
+        }
+
+        String sample(ThreadLocalRandom random) {
+            int column = random.nextInt(tables.length);
+            KeyTable table = tables[random.nextDouble() < probability[column] ? column : alias[column]];
+            return table.get(random.nextInt(table.size()));
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.company;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * Writes objects to S3, switching to a multipart upload above {@code upload.multipartThresholdBytes}.
+ * The parts of one object are sent at the same time on a bounded pool of {@code upload.partThreads}
+ * threads shared by every caller, and a failed part is retried on its own with exponential backoff and
+ * jitter, so a single bad request never resends the whole object. An upload that still fails is aborted,
+ * which lets S3 drop the parts it already holds.
+ * <p>
+ * Every request is retried here, up to {@code upload.maxAttempts} attempts in all, so the client should be
+ * built without SDK retries, as {@link AwsClients#uploader()} does; otherwise the two multiply. One instance
+ * is meant to serve the whole process and be shut down with it.
+ */
+class S3Uploader {
+
+    private static final Logger logger = LoggerTool.setupLogger("S3Uploader");
+    static final long MIN_PART_SIZE_BYTES = 5L * 1024 * 1024;
+
+    private final AmazonS3 amazonS3;
+    private final Settings settings;
+    private final ExecutorService parts;
+    private final StageMetrics partMetrics = Metrics.stage("s3.part");
+    private final StageMetrics multipartMetrics = Metrics.stage("s3.multipart");
+    private final AtomicLong retries = new AtomicLong();
+
+    S3Uploader(AmazonS3 amazonS3, Settings settings) {
+        this.amazonS3 = amazonS3;
+        this.settings = settings;
+        this.parts = Executors.newFixedThreadPool(settings.partThreads,
+            PipelineStage.namedDaemonThreads("s3-part"));
+    }
+
+    /*
+    The metadata needs its content type; the length is taken from the content.
+     */
+    void upload(String bucket, String key, byte[] content, ObjectMetadata metadata) {
+        upload(bucket, key, content, content.length, metadata);
+    }
+
+    /*
+    Sends only the first length bytes of content, so a pooled buffer's backing array can go out as it is.
+     */
+    void upload(String bucket, String key, byte[] content, int length, ObjectMetadata metadata) {
+        metadata.setContentLength(length);
+        if (length < settings.multipartThresholdBytes) {
+            put(key, () -> new PutObjectRequest(bucket, key, new ByteArrayInputStream(content, 0, length),
+                metadata));
+            return;
+        }
+        multipart(bucket, key, length, metadata, part -> part.request
+            .withInputStream(new ByteArrayInputStream(content, (int) part.offset, (int) part.length)));
+    }
+
+    void upload(String bucket, String key, File file, ObjectMetadata metadata) {
+        long length = file.length();
+        if (length < settings.multipartThresholdBytes) {
+            put(key, () -> new PutObjectRequest(bucket, key, file).withMetadata(metadata));
+            return;
+        }
+        multipart(bucket, key, length, metadata, part -> part.request
+            .withFile(file)
+            .withFileOffset(part.offset));
+    }
+
+    /*
+    Attempts beyond the first, of puts and of every multipart request.
+     */
+    long getRetryCount() {
+        return retries.get();
+    }
+
+    void shutdown() {
+        parts.shutdownNow();
+    }
+
+    /*
+    Blocks the calling thread until every part is in, but never runs a part on it, so callers on a pipeline
+    stage cannot starve the part pool.
+     */
+    private void multipart(String bucket, String key, long length, ObjectMetadata metadata,
+                           Function<Part, UploadPartRequest> body) {
+        long start = multipartMetrics.start();
+        String uploadId;
+        try {
+            uploadId = send("initiating " + key, () -> amazonS3.initiateMultipartUpload(
+                new InitiateMultipartUploadRequest(bucket, key, metadata)).getUploadId());
+        } catch (InterruptedException e) {
+            throw interrupted(key, e);
+        }
+        List<Future<PartETag>> futures = new ArrayList<>();
+        try {
+            int number = 1;
+            for (long offset = 0; offset < length; offset += settings.partSizeBytes, number++) {
+                Part part = new Part(new UploadPartRequest()
+                    .withBucketName(bucket)
+                    .withKey(key)
+                    .withUploadId(uploadId)
+                    .withPartNumber(number), offset, Math.min(settings.partSizeBytes, length - offset));
+                futures.add(parts.submit(() -> uploadPart(part, body)));
+            }
+            List<PartETag> etags = new ArrayList<>(futures.size());
+            for (Future<PartETag> future : futures) {
+                etags.add(future.get());
+            }
+            send("completing " + key, () -> amazonS3.completeMultipartUpload(
+                new CompleteMultipartUploadRequest(bucket, key, uploadId, etags)));
+            multipartMetrics.stop(start, futures.size(), length);
+        } catch (InterruptedException | ExecutionException | RuntimeException e) {
+            for (Future<PartETag> future : futures) {
+                future.cancel(true);
+            }
+            abort(bucket, key, uploadId);
+            multipartMetrics.error(e);
+            if (e instanceof InterruptedException) {
+                throw interrupted(key, (InterruptedException) e);
+            }
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SdkClientException("Unable to upload " + key + ": " + cause, cause);
+        }
+    }
+
+    private PartETag uploadPart(Part part, Function<Part, UploadPartRequest> body) throws InterruptedException {
+        return send("part " + part.request.getPartNumber() + " of " + part.request.getKey(), () -> {
+            long start = partMetrics.start();
+            try {
+                PartETag etag = amazonS3.uploadPart(body.apply(part).withPartSize(part.length)).getPartETag();
+                partMetrics.stop(start, 0, part.length);
+                return etag;
+            } catch (SdkClientException e) {
+                partMetrics.error(e);
+                throw e;
+            }
+        });
+    }
+
+    /*
+    The request is built anew for every attempt, so a stream body starts over from its first byte.
+     */
+    private void put(String key, Supplier<PutObjectRequest> request) {
+        try {
+            send(key, () -> amazonS3.putObject(request.get()));
+        } catch (InterruptedException e) {
+            throw interrupted(key, e);
+        }
+    }
+
+    /*
+    Runs the request up to maxAttempts times in all, with exponential backoff and full jitter in between,
+    for as long as it fails in a way worth retrying.
+     */
+    private <T> T send(String description, Supplier<T> request) throws InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return request.get();
+            } catch (SdkClientException e) {
+                if (attempt >= settings.maxAttempts || !isRetryable(e)) {
+                    throw e;
+                }
+            }
+            retries.incrementAndGet();
+            long backoff = settings.retryBackoffMillis << Math.min(attempt - 1, 20);
+            logger.fine("Retrying " + description + " in up to " + backoff + " ms");
+            TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(backoff + 1));
+        }
+    }
+
+    private static SdkClientException interrupted(String key, InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return new SdkClientException("Interrupted while uploading " + key, e);
+    }
+
+    private void abort(String bucket, String key, String uploadId) {
+        try {
+            amazonS3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+        } catch (RuntimeException e) {
+            logger.warning("Unable to abort the multipart upload of " + key + ": " + e);
+        }
+    }
+
+    /*
+    Client-side failures (timeouts, resets) and server or throttling errors are worth another try; any other
+    4xx would fail the same way again.
+     */
+    private static boolean isRetryable(SdkClientException e) {
+        if (!(e instanceof AmazonServiceException)) {
+            return e.isRetryable();
+        }
+        int status = ((AmazonServiceException) e).getStatusCode();
+        return status >= 500 || status == 429;
+    }
+
+    private static final class Part {
+        private final UploadPartRequest request;
+        private final long offset;
+        private final long length;
+
+        private Part(UploadPartRequest request, long offset, long length) {
+            this.request = request;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Thresholds and retry limits; defaults come from {@code upload.*} system properties. S3 rejects parts
+     * below 5 MB other than the last, so smaller part sizes are raised to that.
+     */
+    static class Settings {
+
+        private long multipartThresholdBytes = Long.getLong("upload.multipartThresholdBytes", 16L * 1024 * 1024);
+        private long partSizeBytes =
+            Math.max(MIN_PART_SIZE_BYTES, Long.getLong("upload.partSizeBytes", 8L * 1024 * 1024));
+        private int partThreads = Integer.getInteger("upload.partThreads", 8);
+        private int maxAttempts = Integer.getInteger("upload.maxAttempts", 3);
+        private long retryBackoffMillis = Long.getLong("upload.retryBackoffMillis", 200L);
+
+        Settings withMultipartThresholdBytes(long multipartThresholdBytes) {
+            this.multipartThresholdBytes = multipartThresholdBytes;
+            return this;
+        }
+
+        Settings withPartSizeBytes(long partSizeBytes) {
+            this.partSizeBytes = Math.max(MIN_PART_SIZE_BYTES, partSizeBytes);
+            return this;
+        }
+
+        Settings withPartThreads(int partThreads) {
+            this.partThreads = partThreads;
+            return this;
+        }
+
+        /*
+        Attempts per request in all, the first one included.
+         */
+        Settings withMaxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        Settings withRetryBackoffMillis(long retryBackoffMillis) {
+            this.retryBackoffMillis = retryBackoffMillis;
+            return this;
+        }
+
+        int getPartThreads() {
+            return partThreads;
+        }
+
+        @Override
+        public String toString() {
+            return "multipartThreshold=" + multipartThresholdBytes + " B, partSize=" + partSizeBytes
+                + " B, partThreads=" + partThreads + ", maxAttempts=" + maxAttempts
+                + ", retryBackoff=" + retryBackoffMillis + " ms";
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.company;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.LongConsumer;
+
+/**
+ * Segmented Sieve of Eratosthenes over {@code long}. Each segment is a bitset of odd numbers only, sized
+ * to stay in L2 cache while it is crossed off. Segments are sieved in parallel on a fork-join pool, a
+ * bounded window ahead of the caller, and handed back in order, so primes reach the consumer strictly
+ * ascending and memory stays flat however far the sieve runs. After every segment the
+ * {@link Checkpoint} is told where the next one starts, so a restarted run picks up from there.
+ * <p>
+ * Base primes are kept up to 2^26, which sieves exactly up to 2^52. Beyond that the segments are only
+ * crossed off with those, and whatever survives is confirmed by a deterministic Miller-Rabin test, so the
+ * whole {@code long} range stays exact without a base prime table of gigabytes.
+ */
+class SegmentedSieve {
+
+    static final int DEFAULT_SEGMENT_BYTES = 128 * 1024;
+    private static final long MAX_BASE_PRIME = 1L << 26;
+    private static final long EXACT_SIEVE_LIMIT = MAX_BASE_PRIME * MAX_BASE_PRIME;
+    private static final int SMALL_PRIME_LIMIT = 1 << 16;
+    private static final long[] MILLER_RABIN_BASES = {2, 325, 9375, 28178, 450775, 9780504, 1795265022};
+
+    private final ForkJoinPool pool;
+    private final int segmentBits;
+    private final int window;
+    private int[] basePrimes = new int[8192];
+    private int basePrimeCount;
+    private long basePrimesUpTo;
+
+    SegmentedSieve(ForkJoinPool pool, int segmentBytes) {
+        this.pool = pool;
+        this.segmentBits = Math.max(64, segmentBytes / 8 * 64);
+        this.window = 2 * pool.getParallelism();
+        addSmallPrimes();
+    }
+
+    /*
+    Streams every prime p with from <= p < to to the consumer, in order, on the calling thread.
+    Returns where the next run should start, i.e. to unless the checkpoint was already past it.
+     */
+    long sieve(long from, long to, LongConsumer consumer, Checkpoint checkpoint) {
+        long start = Math.max(from, checkpoint.resumeFrom(from));
+        if (start <= 2 && to > 2) {
+            consumer.accept(2);
+        }
+        long lo = Math.max(3, start | 1);
+        long span = 2L * segmentBits;
+        Deque<ForkJoinTask<Segment>> pending = new ArrayDeque<>(window);
+        while (lo < to || !pending.isEmpty()) {
+            while (pending.size() < window && lo < to) {
+                long hi = to - lo > span ? lo + span : to;
+                extendBasePrimes(hi);
+                pending.add(pool.submit(new SegmentTask(lo, hi, basePrimes, basePrimeCount,
+                    hi - 1 > EXACT_SIEVE_LIMIT)));
+                lo = hi | 1;
+            }
+            Segment segment = pending.poll().join();
+            segment.emit(consumer);
+            checkpoint.segmentDone(segment.hi);
+        }
+        return Math.max(start, to);
+    }
+
+    /*
+    Base primes only need to reach sqrt(hi). New ones are found by sieving the next stretch with the
+    ones already known, which always reach far enough because a stretch at most doubles the bound.
+     */
+    private void extendBasePrimes(long hi) {
+        long needed = Math.min(sqrtFloor(hi - 1), MAX_BASE_PRIME);
+        while (basePrimesUpTo < needed) {
+            long lo = (basePrimesUpTo + 1) | 1;
+            long top = Math.min(Math.min(basePrimesUpTo * 2, needed), lo + 2L * segmentBits) + 1;
+            Segment segment = new Segment(lo, top);
+            segment.crossOff(basePrimes, basePrimeCount);
+            segment.emit(this::addBasePrime);
+            basePrimesUpTo = top - 1;
+        }
+    }
+
+    private void addBasePrime(long prime) {
+        if (basePrimeCount == basePrimes.length) {
+            basePrimes = Arrays.copyOf(basePrimes, basePrimeCount * 2);
+        }
+        basePrimes[basePrimeCount++] = (int) prime;
+    }
+
+    private void addSmallPrimes() {
+        boolean[] composite = new boolean[SMALL_PRIME_LIMIT + 1];
+        for (int i = 3; i <= SMALL_PRIME_LIMIT; i += 2) {
+            if (composite[i]) {
+                continue;
+            }
+            addBasePrime(i);
+            for (long j = (long) i * i; j <= SMALL_PRIME_LIMIT; j += 2 * i) {
+                composite[(int) j] = true;
+            }
+        }
+        basePrimesUpTo = SMALL_PRIME_LIMIT;
+    }
+
+    static long sqrtFloor(long n) {
+        long r = (long) Math.sqrt((double) n);
+        while (r * r > n) {
+            r--;
+        }
+        while (r < 3037000499L && (r + 1) * (r + 1) <= n) {
+            r++;
+        }
+        return r;
+    }
+
+    /*
+    Deterministic for every n below 2^64 with these seven bases (Jim Sinclair's set).
+     */
+    static boolean isPrime(long n) {
+        if (n < 2) {
+            return false;
+        }
+        if ((n & 1) == 0) {
+            return n == 2;
+        }
+        long d = n - 1;
+        int shift = Long.numberOfTrailingZeros(d);
+        d >>= shift;
+        for (long base : MILLER_RABIN_BASES) {
+            long a = base % n;
+            if (a == 0) {
+                continue;
+            }
+            long x = powMod(a, d, n);
+            if (x == 1 || x == n - 1) {
+                continue;
+            }
+            boolean composite = true;
+            for (int r = 1; r < shift && composite; r++) {
+                x = mulMod(x, x, n);
+                composite = x != n - 1;
+            }
+            if (composite) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long powMod(long base, long exponent, long m) {
+        long result = 1;
+        while (exponent > 0) {
+            if ((exponent & 1) == 1) {
+                result = mulMod(result, base, m);
+            }
+            base = mulMod(base, base, m);
+            exponent >>= 1;
+        }
+        return result;
+    }
+
+    /*
+    a * b mod m for 0 <= a, b < m without overflow; Java 8 has no multiplyHigh, so large operands
+    fall back to doubling and adding.
+     */
+    private static long mulMod(long a, long b, long m) {
+        if ((a | b) >>> 31 == 0) {
+            return a * b % m;
+        }
+        long result = 0;
+        while (b > 0) {
+            if ((b & 1) == 1) {
+                result = result >= m - a ? result - (m - a) : result + a;
+            }
+            a = a >= m - a ? a - (m - a) : a + a;
+            b >>= 1;
+        }
+        return result;
+    }
+
+    /**
+     * Told after each segment, once all of its primes have gone to the consumer.
+     */
+    interface Checkpoint {
+
+        Checkpoint NONE = new Checkpoint() {
+            @Override
+            public long resumeFrom(long from) {
+                return from;
+            }
+
+            @Override
+            public void segmentDone(long nextFrom) {
+            }
+        };
+
+        long resumeFrom(long from);
+
+        void segmentDone(long nextFrom);
+    }
+
+    /**
+     * The odd numbers lo, lo + 2, ... below hi; bit i stands for lo + 2i and is set when that number is
+     * composite.
+     */
+    private static class Segment {
+        private final long lo;
+        private final long hi;
+        private final int bits;
+        private final long[] composite;
+
+        private Segment(long lo, long hi) {
+            this.lo = lo;
+            this.hi = hi;
+            this.bits = (int) ((hi - lo + 1) / 2);
+            this.composite = new long[(bits + 63) >>> 6];
+        }
+
+        void crossOff(int[] primes, int count) {
+            for (int k = 0; k < count; k++) {
+                long p = primes[k];
+                long square = p * p;
+                if (square >= hi) {
+                    break;
+                }
+                long first;
+                if (square >= lo) {
+                    first = square;
+                } else {
+                    long remainder = lo % p;
+                    first = remainder == 0 ? lo : lo + (p - remainder);
+                    if ((first & 1) == 0) {
+                        first += p;
+                    }
+                }
+                for (long i = (first - lo) >>> 1; i < bits; i += p) {
+                    composite[(int) (i >>> 6)] |= 1L << i;
+                }
+            }
+        }
+
+        /*
+        Clears every survivor that is not actually prime; only needed when the base primes stop short
+        of sqrt(hi).
+         */
+        void verify() {
+            for (int w = 0; w < composite.length; w++) {
+                long survivors = ~composite[w];
+                while (survivors != 0) {
+                    int bit = Long.numberOfTrailingZeros(survivors);
+                    long index = (long) w * 64 + bit;
+                    if (index < bits && !isPrime(lo + 2 * index)) {
+                        composite[w] |= 1L << bit;
+                    }
+                    survivors &= survivors - 1;
+                }
+            }
+        }
+
+        void emit(LongConsumer consumer) {
+            for (int w = 0; w < composite.length; w++) {
+                long primes = ~composite[w];
+                if (w == composite.length - 1 && (bits & 63) != 0) {
+                    primes &= (1L << (bits & 63)) - 1;
+                }
+                while (primes != 0) {
+                    int bit = Long.numberOfTrailingZeros(primes);
+                    consumer.accept(lo + 2 * ((long) w * 64 + bit));
+                    primes &= primes - 1;
+                }
+            }
+        }
+    }
+
+    private static class SegmentTask extends RecursiveTask<Segment> {
+        private final long lo;
+        private final long hi;
+        private final int[] primes;
+        private final int count;
+        private final boolean verify;
+
+        private SegmentTask(long lo, long hi, int[] primes, int count, boolean verify) {
+            this.lo = lo;
+            this.hi = hi;
+            this.primes = primes;
+            this.count = count;
+            this.verify = verify;
+        }
+
+        @Override
+        protected Segment compute() {
+            Segment segment = new Segment(lo, hi);
+            segment.crossOff(primes, count);
+            if (verify) {
+                segment.verify();
+            }
+            return segment;
+        }
+    }
+}
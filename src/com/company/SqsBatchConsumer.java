@@ -0,0 +1,421 @@
+package com.company;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+
+/**
+ * Long-polls SQS for up to ten messages per call and buffers them locally for the workers.
+ * Acknowledgements are collected and sent through deleteMessageBatch, either when a full batch is ready
+ * or after the flush interval. Until a message is acknowledged or abandoned its visibility timeout is
+ * extended in the background, so slow images are not handed to a second worker. A message is given up once
+ * it has been held for {@code maxExtensionSeconds} or SQS refuses to extend it. It then becomes visible again
+ * and counts towards the queue's redrive policy, even if its worker never reported back.
+ */
+class SqsBatchConsumer {
+
+    private static final Logger logger = LoggerTool.setupLogger("SqsBatchConsumer");
+    private static final int MAX_BATCH = 10;
+    private static final String RECEIVE_COUNT = "ApproximateReceiveCount";
+
+    private final AmazonSQS amazonSQS;
+    private final String queueUrl;
+    private final Settings settings;
+    private final BlockingQueue<Message> buffer;
+    private final BlockingQueue<PendingAck> pendingAcks = new LinkedBlockingQueue<>();
+    private final Map<String, InFlight> inFlight = new ConcurrentHashMap<>();
+    private final ExecutorService poller = Executors.newSingleThreadExecutor(
+        PipelineStage.namedDaemonThreads("sqs-poller"));
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1,
+        PipelineStage.namedDaemonThreads("sqs-heartbeat"));
+    private volatile boolean running;
+
+    private final AtomicLong receives = new AtomicLong();
+    private final AtomicLong emptyReceives = new AtomicLong();
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong redeliveries = new AtomicLong();
+    private final AtomicLong acks = new AtomicLong();
+    private final AtomicLong ackBatches = new AtomicLong();
+    private final AtomicLong ackFailures = new AtomicLong();
+    private final AtomicLong ackLatencySamples = new AtomicLong();
+    private final AtomicLong ackLatencyTotalMillis = new AtomicLong();
+    private final AtomicLong ackLatencyMaxMillis = new AtomicLong();
+    private final AtomicLong visibilityExtensions = new AtomicLong();
+    private final AtomicLong expiredLeases = new AtomicLong();
+
+    SqsBatchConsumer(AmazonSQS amazonSQS, String queueUrl, Settings settings) {
+        this.amazonSQS = amazonSQS;
+        this.queueUrl = queueUrl;
+        this.settings = settings;
+        this.buffer = new LinkedBlockingQueue<>(Math.max(settings.bufferCapacity, settings.maxMessages));
+    }
+
+    synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        poller.submit(this::poll);
+        scheduler.scheduleWithFixedDelay(this::flushAcks, settings.ackFlushIntervalMillis,
+            settings.ackFlushIntervalMillis, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::extendVisibility, settings.heartbeatIntervalSeconds,
+            settings.heartbeatIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    synchronized void stop() {
+        running = false;
+        poller.shutdownNow();
+        flushAcks();
+        scheduler.shutdownNow();
+    }
+
+    /*
+    Waits up to the timeout for the first message and then drains whatever else is already buffered,
+    at most one SQS batch worth.
+     */
+    List<Message> take(long timeout, TimeUnit unit) throws InterruptedException {
+        List<Message> messages = new ArrayList<>(MAX_BATCH);
+        Message first = buffer.poll(timeout, unit);
+        if (first == null) {
+            return messages;
+        }
+        messages.add(first);
+        buffer.drainTo(messages, MAX_BATCH - 1);
+        return messages;
+    }
+
+    void ack(Message message) {
+        InFlight entry = inFlight.remove(message.getReceiptHandle());
+        pendingAcks.add(new PendingAck(message, System.currentTimeMillis()));
+        if (entry == null) {
+            logger.warning("Acknowledging message that is not in flight: " + message.getMessageId());
+        }
+        if (pendingAcks.size() >= MAX_BATCH || !running) {
+            try {
+                scheduler.execute(this::flushAcks);
+            } catch (RejectedExecutionException e) {
+                // stopped: nothing else will flush, so delete on this thread
+                flushAcks();
+            }
+        }
+    }
+
+    /*
+    Stops the heartbeat for a message that could not be processed so it becomes visible again once its
+    current visibility timeout runs out.
+     */
+    void abandon(Message message) {
+        inFlight.remove(message.getReceiptHandle());
+    }
+
+    private void poll() {
+        ReceiveMessageRequest request = new ReceiveMessageRequest()
+            .withQueueUrl(queueUrl)
+            .withMaxNumberOfMessages(settings.maxMessages)
+            .withWaitTimeSeconds(settings.waitTimeSeconds)
+            .withVisibilityTimeout(settings.visibilityTimeoutSeconds)
+            .withAttributeNames(RECEIVE_COUNT)
+            .withMessageAttributeNames(settings.messageAttributeNames);
+        while (running && !Thread.currentThread().isInterrupted()) {
+            try {
+                waitForRoom();
+                List<Message> messages = amazonSQS.receiveMessage(request).getMessages();
+                receives.incrementAndGet();
+                if (messages.isEmpty()) {
+                    emptyReceives.incrementAndGet();
+                    continue;
+                }
+                long now = System.currentTimeMillis();
+                for (Message message : messages) {
+                    messagesReceived.incrementAndGet();
+                    if (isRedelivery(message)) {
+                        redeliveries.incrementAndGet();
+                    }
+                    inFlight.put(message.getReceiptHandle(), new InFlight(message, now));
+                    buffer.put(message);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                logger.warning("Receiving from " + queueUrl + " failed: " + e);
+                sleepQuietly(settings.errorBackoffMillis);
+            }
+        }
+    }
+
+    /*
+    Only ask for another batch once it fits in the local buffer, so messages do not sit unprocessed
+    while their visibility clock is running.
+     */
+    private void waitForRoom() throws InterruptedException {
+        while (buffer.remainingCapacity() < settings.maxMessages) {
+            TimeUnit.MILLISECONDS.sleep(settings.ackFlushIntervalMillis);
+        }
+    }
+
+    private boolean isRedelivery(Message message) {
+        String receiveCount = message.getAttributes().get(RECEIVE_COUNT);
+        return receiveCount != null && Integer.parseInt(receiveCount) > 1;
+    }
+
+    private synchronized void flushAcks() {
+        while (!pendingAcks.isEmpty()) {
+            List<PendingAck> batch = new ArrayList<>(MAX_BATCH);
+            pendingAcks.drainTo(batch, MAX_BATCH);
+            List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                entries.add(new DeleteMessageBatchRequestEntry(String.valueOf(i),
+                    batch.get(i).message.getReceiptHandle()));
+            }
+            try {
+                DeleteMessageBatchResult result = amazonSQS.deleteMessageBatch(queueUrl, entries);
+                ackBatches.incrementAndGet();
+                long now = System.currentTimeMillis();
+                for (PendingAck pendingAck : batch) {
+                    recordAckLatency(now - pendingAck.requestedAt);
+                }
+                acks.addAndGet(result.getSuccessful().size());
+                for (BatchResultErrorEntry error : result.getFailed()) {
+                    ackFailures.incrementAndGet();
+                    logger.warning("Failed to delete message: " + error.getCode() + " " + error.getMessage());
+                }
+            } catch (Exception e) {
+                ackFailures.addAndGet(batch.size());
+                logger.warning("Deleting message batch failed: " + e);
+            }
+        }
+    }
+
+    private void recordAckLatency(long millis) {
+        ackLatencySamples.incrementAndGet();
+        ackLatencyTotalMillis.addAndGet(millis);
+        long max;
+        do {
+            max = ackLatencyMaxMillis.get();
+        } while (millis > max && !ackLatencyMaxMillis.compareAndSet(max, millis));
+    }
+
+    /*
+    Pushes the visibility timeout out again for every message that has used up more than the heartbeat
+    interval of its current lease. Messages held longer than maxExtensionSeconds are dropped instead, and
+    so are those SQS refuses to extend, e.g. for an expired receipt handle; a failed call is tried again on
+    the next heartbeat.
+     */
+    private void extendVisibility() {
+        long now = System.currentTimeMillis();
+        long dueAfterMillis = TimeUnit.SECONDS.toMillis(settings.heartbeatIntervalSeconds);
+        long maxHeldMillis = TimeUnit.SECONDS.toMillis(settings.maxExtensionSeconds);
+        List<InFlight> due = new ArrayList<>();
+        for (InFlight entry : inFlight.values()) {
+            if (now - entry.receivedAt >= maxHeldMillis) {
+                inFlight.remove(entry.message.getReceiptHandle());
+                expiredLeases.incrementAndGet();
+                logger.warning("Giving up message " + entry.message.getMessageId() + " after holding it for "
+                    + TimeUnit.MILLISECONDS.toSeconds(now - entry.receivedAt) + " s");
+            } else if (now - entry.lastExtendedAt >= dueAfterMillis) {
+                due.add(entry);
+            }
+        }
+        Iterator<InFlight> iterator = due.iterator();
+        while (iterator.hasNext()) {
+            List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(MAX_BATCH);
+            List<InFlight> batch = new ArrayList<>(MAX_BATCH);
+            while (iterator.hasNext() && entries.size() < MAX_BATCH) {
+                InFlight entry = iterator.next();
+                batch.add(entry);
+                entries.add(new ChangeMessageVisibilityBatchRequestEntry(String.valueOf(entries.size()),
+                    entry.message.getReceiptHandle()).withVisibilityTimeout(settings.visibilityTimeoutSeconds));
+            }
+            try {
+                ChangeMessageVisibilityBatchResult result =
+                    amazonSQS.changeMessageVisibilityBatch(queueUrl, entries);
+                visibilityExtensions.addAndGet(result.getSuccessful().size());
+                for (InFlight entry : batch) {
+                    entry.lastExtendedAt = now;
+                }
+                for (BatchResultErrorEntry error : result.getFailed()) {
+                    InFlight entry = batch.get(Integer.parseInt(error.getId()));
+                    inFlight.remove(entry.message.getReceiptHandle());
+                    logger.warning("Failed to extend visibility of " + entry.message.getMessageId()
+                        + ", no longer holding it: " + error.getCode() + " " + error.getMessage());
+                }
+            } catch (Exception e) {
+                logger.warning("Extending visibility failed: " + e);
+            }
+        }
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    int getBufferedCount() {
+        return buffer.size();
+    }
+
+    int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    long getReceiveCount() {
+        return receives.get();
+    }
+
+    long getEmptyReceiveCount() {
+        return emptyReceives.get();
+    }
+
+    long getMessagesReceivedCount() {
+        return messagesReceived.get();
+    }
+
+    long getRedeliveryCount() {
+        return redeliveries.get();
+    }
+
+    long getAckCount() {
+        return acks.get();
+    }
+
+    long getAckBatchCount() {
+        return ackBatches.get();
+    }
+
+    long getAckFailureCount() {
+        return ackFailures.get();
+    }
+
+    double getAverageAckLatencyMillis() {
+        long samples = ackLatencySamples.get();
+        return samples == 0 ? 0 : (double) ackLatencyTotalMillis.get() / samples;
+    }
+
+    long getMaxAckLatencyMillis() {
+        return ackLatencyMaxMillis.get();
+    }
+
+    long getVisibilityExtensionCount() {
+        return visibilityExtensions.get();
+    }
+
+    long getExpiredLeaseCount() {
+        return expiredLeases.get();
+    }
+
+    private static class PendingAck {
+        private final Message message;
+        private final long requestedAt;
+
+        private PendingAck(Message message, long requestedAt) {
+            this.message = message;
+            this.requestedAt = requestedAt;
+        }
+    }
+
+    private static class InFlight {
+        private final Message message;
+        private final long receivedAt;
+        private volatile long lastExtendedAt;
+
+        private InFlight(Message message, long receivedAt) {
+            this.message = message;
+            this.receivedAt = receivedAt;
+            this.lastExtendedAt = receivedAt;
+        }
+    }
+
+    /**
+     * Receive, acknowledgement and heartbeat tuning. The heartbeat interval has to stay well below the
+     * visibility timeout so a lease is always renewed before it runs out. SQS never keeps a message
+     * invisible for more than 12 hours after it was received, so the maximum extension stays below that.
+     */
+    static class Settings {
+
+        private int maxMessages = MAX_BATCH;
+        private int waitTimeSeconds = 20;
+        private int visibilityTimeoutSeconds = 30;
+        private int heartbeatIntervalSeconds = 10;
+        private int maxExtensionSeconds = 6 * 60 * 60;
+        private int bufferCapacity = 2 * MAX_BATCH;
+        private long ackFlushIntervalMillis = 200L;
+        private long errorBackoffMillis = 1000L;
+        private String[] messageAttributeNames = {"All"};
+
+        Settings withMaxMessages(int maxMessages) {
+            this.maxMessages = Math.min(maxMessages, MAX_BATCH);
+            return this;
+        }
+
+        Settings withWaitTimeSeconds(int waitTimeSeconds) {
+            this.waitTimeSeconds = waitTimeSeconds;
+            return this;
+        }
+
+        Settings withVisibilityTimeoutSeconds(int visibilityTimeoutSeconds) {
+            this.visibilityTimeoutSeconds = visibilityTimeoutSeconds;
+            return this;
+        }
+
+        Settings withHeartbeatIntervalSeconds(int heartbeatIntervalSeconds) {
+            this.heartbeatIntervalSeconds = heartbeatIntervalSeconds;
+            return this;
+        }
+
+        /*
+        How long a message is held in all before its lease is left to run out, whether or not its worker
+        is done with it.
+         */
+        Settings withMaxExtensionSeconds(int maxExtensionSeconds) {
+            if (maxExtensionSeconds <= 0 || maxExtensionSeconds >= 12 * 60 * 60) {
+                throw new IllegalArgumentException("The maximum extension has to be below SQS's 12 hour cap, got "
+                    + maxExtensionSeconds + " s");
+            }
+            this.maxExtensionSeconds = maxExtensionSeconds;
+            return this;
+        }
+
+        Settings withBufferCapacity(int bufferCapacity) {
+            this.bufferCapacity = bufferCapacity;
+            return this;
+        }
+
+        Settings withAckFlushIntervalMillis(long ackFlushIntervalMillis) {
+            this.ackFlushIntervalMillis = ackFlushIntervalMillis;
+            return this;
+        }
+
+        Settings withErrorBackoffMillis(long errorBackoffMillis) {
+            this.errorBackoffMillis = errorBackoffMillis;
+            return this;
+        }
+
+        Settings withMessageAttributeNames(String... messageAttributeNames) {
+            this.messageAttributeNames = messageAttributeNames;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.company;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+
+/**
+ * Load generator for the image queue. Messages go out ten at a time through sendMessageBatch with
+ * several batches in flight, paced by a {@link TokenBucket} rather than a fixed sleep. The achieved
+ * rate and send latency are logged every report interval.
+ */
+class SqsBatchProducer {
+
+    private static final Logger logger = LoggerTool.setupLogger("SqsBatchProducer");
+    private static final int MAX_BATCH = 10;
+
+    private final AmazonSQS amazonSQS;
+    private final String queueUrl;
+    private final Supplier<String> keySupplier;
+    private final TokenBucket tokenBucket;
+    private final Semaphore inFlight;
+    private final ExecutorService senders;
+    private final long reportIntervalMillis;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong latencyTotalMicros = new AtomicLong();
+    private final AtomicLong latencyMaxMicros = new AtomicLong();
+
+    SqsBatchProducer(AmazonSQS amazonSQS, String queueUrl, Supplier<String> keySupplier,
+                     double messagesPerSecond, int maxInFlightBatches, long reportIntervalMillis) {
+        this.amazonSQS = amazonSQS;
+        this.queueUrl = queueUrl;
+        this.keySupplier = keySupplier;
+        this.tokenBucket = new TokenBucket(messagesPerSecond, Math.max(MAX_BATCH, messagesPerSecond / 10));
+        this.inFlight = new Semaphore(maxInFlightBatches);
+        this.senders = Executors.newFixedThreadPool(maxInFlightBatches,
+            PipelineStage.namedDaemonThreads("sqs-producer"));
+        this.reportIntervalMillis = reportIntervalMillis;
+    }
+
+    /*
+    Runs until interrupted.
+     */
+    void run() {
+        long windowStart = System.nanoTime();
+        long windowSent = 0;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                tokenBucket.acquire(MAX_BATCH);
+                inFlight.acquire();
+                List<SendMessageBatchRequestEntry> entries = nextBatch();
+                senders.execute(() -> {
+                    try {
+                        send(entries);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+
+                long elapsedNanos = System.nanoTime() - windowStart;
+                if (elapsedNanos >= TimeUnit.MILLISECONDS.toNanos(reportIntervalMillis)) {
+                    long total = sent.get();
+                    report(total - windowSent, elapsedNanos);
+                    windowSent = total;
+                    windowStart = System.nanoTime();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            senders.shutdown();
+        }
+    }
+
+    private List<SendMessageBatchRequestEntry> nextBatch() {
+        List<SendMessageBatchRequestEntry> entries = new ArrayList<>(MAX_BATCH);
+        for (int i = 0; i < MAX_BATCH; i++) {
+            Map<String, MessageAttributeValue> attributeMap = new HashMap<>();
+            attributeMap.put("key", new MessageAttributeValue()
+                .withDataType("String")
+                .withStringValue(keySupplier.get()));
+            entries.add(new SendMessageBatchRequestEntry()
+                .withId(String.valueOf(i))
+                .withMessageAttributes(attributeMap)
+                .withMessageBody("For Image Transformation!"));
+        }
+        return entries;
+    }
+
+    private void send(List<SendMessageBatchRequestEntry> entries) {
+        long start = System.nanoTime();
+        try {
+            SendMessageBatchResult result = amazonSQS.sendMessageBatch(
+                new SendMessageBatchRequest().withQueueUrl(queueUrl).withEntries(entries));
+            sent.addAndGet(result.getSuccessful().size());
+            failed.addAndGet(result.getFailed().size());
+        } catch (Exception e) {
+            failed.addAndGet(entries.size());
+            logger.warning("Sending message batch failed: " + e);
+        }
+        batches.incrementAndGet();
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        latencyTotalMicros.addAndGet(micros);
+        long max;
+        do {
+            max = latencyMaxMicros.get();
+        } while (micros > max && !latencyMaxMicros.compareAndSet(max, micros));
+    }
+
+    private void report(long windowSent, long elapsedNanos) {
+        double rate = windowSent / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+        logger.info(String.format("Producer sent %d messages at %.1f msg/s (total %d, failed %d), "
+                + "batch latency avg %.1f ms, max %.1f ms", windowSent, rate, sent.get(), failed.get(),
+            getAverageLatencyMillis(), latencyMaxMicros.get() / 1000.0));
+    }
+
+    long getSentCount() {
+        return sent.get();
+    }
+
+    long getFailedCount() {
+        return failed.get();
+    }
+
+    double getAverageLatencyMillis() {
+        long count = batches.get();
+        return count == 0 ? 0 : latencyTotalMicros.get() / 1000.0 / count;
+    }
+
+    double getMaxLatencyMillis() {
+        return latencyMaxMicros.get() / 1000.0;
+    }
+}
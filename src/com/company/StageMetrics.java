@@ -0,0 +1,163 @@
+package com.company;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Latency histogram and counters for one named stage, e.g. "s3.get" or "encode.GREY". Recording only
+ * bumps atomic counters in preallocated arrays, so it can sit on every hot path:
+ * <pre>
+ *     long start = metrics.start();
+ *     ...
+ *     metrics.stop(start, bytesIn, bytesOut);
+ * </pre>
+ * Errors are counted per exception class; only the first error of a class allocates its counter.
+ * Instances come from {@link Metrics#stage(String)}, which also registers them with JMX.
+ */
+class StageMetrics implements StageMetricsMBean {
+
+    private static final LongSupplier UNBOUND = () -> -1;
+
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final Map<Class<?>, AtomicLong> errorsByType = new ConcurrentHashMap<>();
+    private volatile LongSupplier queueDepth = UNBOUND;
+    private volatile LongSupplier inFlight = UNBOUND;
+
+    StageMetrics(String name) {
+        this.name = name;
+    }
+
+    long start() {
+        return System.nanoTime();
+    }
+
+    void stop(long start) {
+        latency.record(System.nanoTime() - start);
+    }
+
+    void stop(long start, long in, long out) {
+        latency.record(System.nanoTime() - start);
+        bytesIn.addAndGet(in);
+        bytesOut.addAndGet(out);
+    }
+
+    void record(long nanos) {
+        latency.record(nanos);
+    }
+
+    void error(Throwable t) {
+        errors.incrementAndGet();
+        Class<?> type = t.getClass();
+        AtomicLong count = errorsByType.get(type);
+        if (count == null) {
+            count = errorsByType.computeIfAbsent(type, k -> new AtomicLong());
+        }
+        count.incrementAndGet();
+    }
+
+    StageMetrics bindQueueDepth(LongSupplier queueDepth) {
+        this.queueDepth = queueDepth;
+        return this;
+    }
+
+    StageMetrics bindInFlight(LongSupplier inFlight) {
+        this.inFlight = inFlight;
+        return this;
+    }
+
+    LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    @Override
+    public String getErrorsByType() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<Class<?>, AtomicLong> entry : errorsByType.entrySet()) {
+            if (out.length() > 0) {
+                out.append(", ");
+            }
+            out.append(entry.getKey().getSimpleName()).append('=').append(entry.getValue().get());
+        }
+        return out.toString();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return latency.getMeanNanos() / 1e6;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return latency.getPercentileNanos(50) / 1e6;
+    }
+
+    @Override
+    public double getP90Millis() {
+        return latency.getPercentileNanos(90) / 1e6;
+    }
+
+    @Override
+    public double getP99Millis() {
+        return latency.getPercentileNanos(99) / 1e6;
+    }
+
+    @Override
+    public double getP999Millis() {
+        return latency.getPercentileNanos(99.9) / 1e6;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return latency.getMaxNanos() / 1e6;
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return queueDepth.getAsLong();
+    }
+
+    @Override
+    public long getInFlight() {
+        return inFlight.getAsLong();
+    }
+
+    @Override
+    public void reset() {
+        latency.reset();
+        errors.set(0);
+        bytesIn.set(0);
+        bytesOut.set(0);
+        errorsByType.clear();
+    }
+}
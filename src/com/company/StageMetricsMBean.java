@@ -0,0 +1,37 @@
+package com.company;
+
+/**
+ * JMX view of one {@link StageMetrics}. Latencies are in milliseconds; a gauge that is not bound reads -1.
+ */
+public interface StageMetricsMBean {
+
+    String getName();
+
+    long getCount();
+
+    long getErrorCount();
+
+    String getErrorsByType();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP90Millis();
+
+    double getP99Millis();
+
+    double getP999Millis();
+
+    double getMaxMillis();
+
+    long getQueueDepth();
+
+    long getInFlight();
+
+    void reset();
+}
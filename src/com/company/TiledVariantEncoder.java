@@ -0,0 +1,359 @@
+package com.company;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * Derives variants of an image file without ever holding the whole image. The source is read in bands of
+ * full rows, every band goes through {@link FusedVariantKernel}, and each variant's rows are appended to
+ * its own {@link PngRowWriter} straight away, so memory per image is bounded by the band size rather than
+ * the image size. The decoded output matches the whole-image path pixel for pixel, since every variant
+ * is a per-pixel operation.
+ * <p>
+ * Plain PNGs are read in one pass by {@link PngRowReader}. Other files are read band by band through
+ * ImageIO source regions, which keeps memory just as flat but decodes the rows above each band again.
+ * Upright reverses the row order, so its rows are spooled to a raw file at their final position and
+ * encoded from there once the last band is done.
+ */
+class TiledVariantEncoder {
+
+    private static final Logger logger = LoggerTool.setupLogger("TiledVariantEncoder");
+    static final int DEFAULT_BAND_PIXELS = 1 << 20;
+
+    private final int bandPixels;
+    private final ForkJoinPool pool;
+
+    TiledVariantEncoder(int bandPixels, ForkJoinPool pool) {
+        this.bandPixels = bandPixels;
+        this.pool = pool;
+    }
+
+    /*
+    Width times height from the file header, or -1 when no reader knows the format.
+     */
+    static long pixelCount(File source) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(source)) {
+            return pixelCount(iis);
+        }
+    }
+
+    /*
+    The same for an encoded image in memory; only the header is read, and nothing is cached on disk.
+     */
+    static long pixelCount(InputStream source) throws IOException {
+        try (ImageInputStream iis = new MemoryCacheImageInputStream(source)) {
+            return pixelCount(iis);
+        }
+    }
+
+    private static long pixelCount(ImageInputStream iis) throws IOException {
+        ImageReader reader = iis == null ? null : reader(iis);
+        if (reader == null) {
+            return -1;
+        }
+        try {
+            return (long) reader.getWidth(0) * reader.getHeight(0);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /*
+    Writes every variant in outputs to its file as a PNG. On failure the output files are removed again.
+     */
+    void encode(File source, Map<ImageVariant, File> outputs) throws IOException {
+        Map<ImageVariant, VariantOutput> writers = new EnumMap<>(ImageVariant.class);
+        boolean done = false;
+        try (BandSource bands = open(source)) {
+            int bandRows = Math.max(1, bandPixels / bands.width());
+            for (Map.Entry<ImageVariant, File> output : outputs.entrySet()) {
+                writers.put(output.getKey(), new VariantOutput(output.getValue(), bands.width(), bands.height(),
+                    output.getKey() == ImageVariant.UPRIGHT));
+            }
+            for (int y = 0; y < bands.height(); y += bandRows) {
+                BufferedImage band = bands.next(Math.min(bandRows, bands.height() - y));
+                Map<ImageVariant, BufferedImage> derived = FusedVariantKernel.apply(band, outputs.keySet(), pool);
+                for (Map.Entry<ImageVariant, VariantOutput> writer : writers.entrySet()) {
+                    writer.getValue().write(derived.get(writer.getKey()), y);
+                }
+            }
+            for (VariantOutput writer : writers.values()) {
+                writer.finish();
+            }
+            done = true;
+        } finally {
+            for (VariantOutput writer : writers.values()) {
+                writer.close();
+            }
+            if (!done) {
+                for (File file : outputs.values()) {
+                    delete(file);
+                }
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            logger.warning("Fail to remove file in : " + file);
+        }
+    }
+
+    private static BandSource open(File source) throws IOException {
+        ImageInputStream iis = ImageIO.createImageInputStream(source);
+        ImageReader reader = iis == null ? null : reader(iis);
+        if (reader == null) {
+            if (iis != null) {
+                iis.close();
+            }
+            throw new IOException("No image reader found for " + source);
+        }
+        ImageTypeSpecifier type = reader.getImageTypes(0).next();
+        if ("png".equalsIgnoreCase(reader.getFormatName())) {
+            PngRowReader rows = PngRowReader.open(source, type);
+            if (rows != null) {
+                reader.dispose();
+                iis.close();
+                return new StreamedBands(rows);
+            }
+        }
+        return new RegionBands(reader, iis);
+    }
+
+    private static ImageReader reader(ImageInputStream iis) {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(iis, false, true);
+        return reader;
+    }
+
+    private static PngRowWriter.Format formatOf(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+            return PngRowWriter.Format.GREY8;
+        }
+        if (image.getType() == BufferedImage.TYPE_BYTE_BINARY) {
+            IndexColorModel palette = (IndexColorModel) image.getColorModel();
+            if (palette.getMapSize() == 2 && (palette.getRGB(0) & 0xFFFFFF) == 0
+                && (palette.getRGB(1) & 0xFFFFFF) == 0xFFFFFF) {
+                return PngRowWriter.Format.GREY1;
+            }
+        }
+        return image.getColorModel().hasAlpha() ? PngRowWriter.Format.RGBA8 : PngRowWriter.Format.RGB8;
+    }
+
+    private interface BandSource extends Closeable {
+        int width();
+
+        int height();
+
+        BufferedImage next(int rows) throws IOException;
+    }
+
+    private static class StreamedBands implements BandSource {
+        private final PngRowReader rows;
+
+        private StreamedBands(PngRowReader rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public int width() {
+            return rows.width;
+        }
+
+        @Override
+        public int height() {
+            return rows.height;
+        }
+
+        @Override
+        public BufferedImage next(int count) throws IOException {
+            return rows.readBand(count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            rows.close();
+        }
+    }
+
+    private static class RegionBands implements BandSource {
+        private final ImageReader reader;
+        private final ImageInputStream iis;
+        private final int width;
+        private final int height;
+        private int y;
+
+        private RegionBands(ImageReader reader, ImageInputStream iis) throws IOException {
+            this.reader = reader;
+            this.iis = iis;
+            this.width = reader.getWidth(0);
+            this.height = reader.getHeight(0);
+        }
+
+        @Override
+        public int width() {
+            return width;
+        }
+
+        @Override
+        public int height() {
+            return height;
+        }
+
+        @Override
+        public BufferedImage next(int rows) throws IOException {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, y, width, rows));
+            BufferedImage band = reader.read(0, param);
+            y += rows;
+            return band;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.dispose();
+            iis.close();
+        }
+    }
+
+    /**
+     * One variant's PNG. The format is taken from the first band, since it depends on what the transform
+     * produces. Reversed rows are spooled to a raw file first and encoded in order at the end.
+     */
+    private static class VariantOutput implements Closeable {
+        private final File file;
+        private final int width;
+        private final int height;
+        private final boolean reversed;
+        private OutputStream out;
+        private PngRowWriter writer;
+        private PngRowWriter.Format format;
+        private File spoolFile;
+        private RandomAccessFile spool;
+        private byte[] row;
+        private int[] argb;
+
+        private VariantOutput(File file, int width, int height, boolean reversed) {
+            this.file = file;
+            this.width = width;
+            this.height = height;
+            this.reversed = reversed;
+        }
+
+        /*
+        Band rows start at source row y; reversed variants arrive already rotated and land at the mirror
+        position.
+         */
+        void write(BufferedImage band, int y) throws IOException {
+            if (format == null) {
+                format = formatOf(band);
+                out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+                writer = new PngRowWriter(out, width, height, format);
+                row = new byte[writer.rowBytes()];
+                argb = new int[width];
+                if (reversed) {
+                    spoolFile = new File(file.getPath() + ".rows");
+                    spool = new RandomAccessFile(spoolFile, "rw");
+                }
+            }
+            int rows = band.getHeight();
+            ArgbRowReader reader = ArgbRowReader.of(band);
+            if (reversed) {
+                spool.seek((long) (height - y - rows) * row.length);
+            }
+            for (int r = 0; r < rows; r++) {
+                pack(band, reader, r);
+                if (reversed) {
+                    spool.write(row);
+                } else {
+                    writer.writeRow(row, 0);
+                }
+            }
+        }
+
+        void finish() throws IOException {
+            if (reversed) {
+                spool.close();
+                try (DataInputStream rows = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(spoolFile), 64 * 1024))) {
+                    for (int r = 0; r < height; r++) {
+                        rows.readFully(row);
+                        writer.writeRow(row, 0);
+                    }
+                }
+            }
+            writer.finish();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) {
+                out.close();
+            }
+            if (spool != null) {
+                spool.close();
+                delete(spoolFile);
+            }
+        }
+
+        private void pack(BufferedImage band, ArgbRowReader reader, int y) {
+            switch (format) {
+                case GREY8:
+                    band.getRaster().getDataElements(0, y, width, 1, row);
+                    return;
+                case GREY1:
+                    band.getRaster().getSamples(0, y, width, 1, 0, argb);
+                    Arrays.fill(row, (byte) 0);
+                    for (int x = 0; x < width; x++) {
+                        row[x >> 3] |= argb[x] << (7 - (x & 7));
+                    }
+                    return;
+                default:
+                    if (reader != null) {
+                        reader.read(y, argb);
+                    } else {
+                        band.getRGB(0, y, width, 1, argb, 0, width);
+                    }
+                    boolean alpha = format == PngRowWriter.Format.RGBA8;
+                    for (int x = 0, i = 0; x < width; x++) {
+                        int pixel = argb[x];
+                        row[i++] = (byte) (pixel >> 16);
+                        row[i++] = (byte) (pixel >> 8);
+                        row[i++] = (byte) pixel;
+                        if (alpha) {
+                            row[i++] = (byte) (pixel >>> 24);
+                        }
+                    }
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.company;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces callers to a steady rate. Tokens accrue continuously at {@code permitsPerSecond} up to
+ * {@code burst}; {@link #acquire(int)} blocks until enough tokens are available.
+ */
+class TokenBucket {
+
+    private final double permitsPerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    TokenBucket(double permitsPerSecond, double burst) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate must be positive and burst at least one permit");
+        }
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    void acquire(int permits) throws InterruptedException {
+        if (permits > burst) {
+            throw new IllegalArgumentException("Cannot acquire " + permits + " permits with a burst of " + burst);
+        }
+        while (true) {
+            long waitNanos;
+            synchronized (this) {
+                refill();
+                if (tokens >= permits) {
+                    tokens -= permits;
+                    return;
+                }
+                waitNanos = (long) Math.ceil((permits - tokens) / permitsPerNano);
+            }
+            LockSupport.parkNanos(this, waitNanos);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * permitsPerNano);
+        lastRefill = now;
+    }
+}
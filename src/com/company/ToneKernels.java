@@ -0,0 +1,429 @@
+package com.company;
+
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Brightness, contrast and gamma as per-channel 256-entry lookup tables, applied on the image's own raster
+ * layout: 8-bit packed ints (INT_RGB, INT_ARGB, INT_BGR), 8-bit interleaved bytes (3BYTE_BGR, 4BYTE_ABGR)
+ * and 8-bit grey. The result has the layout and type of the source, alpha is left alone, and rows are
+ * split into stripes across a ForkJoin pool. Premultiplied and other layouts are first copied to INT_RGB
+ * or INT_ARGB, as {@link org.imgscalr.Scalr#apply} does.
+ * <p>
+ * {@link #BRIGHTER} and {@link #DARKER} reproduce Scalr's OP_BRIGHTER and OP_DARKER. Compared by
+ * {@code getRGB}, the output is identical to {@code Scalr.apply} for every opaque pixel and for translucent
+ * packed-int pixels. Translucent interleaved pixels are not exact: Scalr copies them to INT_ARGB through
+ * premultiplied values, which keep only alpha + 1 levels per channel, and this does not. They differ by at
+ * most 2 per channel once alpha is above 80, and the color under alpha 0 is kept here while Scalr clears
+ * it. Grey images are compared by sample: Java2D draws grey samples as r = g = b, so the table applies to
+ * the sample itself and matches Scalr's red channel exactly, while {@code getRGB} on TYPE_BYTE_GRAY would
+ * add a linear to sRGB conversion that neither path performs.
+ */
+final class ToneKernels {
+
+    private static final int STRIPE_PIXELS = 1 << 16;
+
+    static final Curve BRIGHTER = Curve.rescale(1.1f, 0);
+    static final Curve DARKER = Curve.rescale(0.9f, 0);
+
+    private ToneKernels() {
+    }
+
+    static BufferedImage apply(BufferedImage image, Curve curve) {
+        return apply(image, curve, ForkJoinPool.commonPool());
+    }
+
+    static BufferedImage apply(BufferedImage image, Curve curve, ForkJoinPool pool) {
+        Rows rows = rows(image, curve, false);
+        if (rows == null) {
+            rows = rows(copyToRgb(image), curve, true);
+        }
+        pool.invoke(new Stripe(rows, 0, rows.height));
+        return rows.target;
+    }
+
+    private static Rows rows(BufferedImage image, Curve curve, boolean inPlace) {
+        ColorModel colorModel = image.getColorModel();
+        WritableRaster raster = image.getRaster();
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        if (colorModel.isAlphaPremultiplied() || dataBuffer.getNumBanks() != 1) {
+            return null;
+        }
+        if (colorModel instanceof DirectColorModel && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+            && dataBuffer instanceof DataBufferInt && colorModel.getColorSpace().isCS_sRGB()) {
+            DirectColorModel direct = (DirectColorModel) colorModel;
+            if (isByteMask(direct.getRedMask()) && isByteMask(direct.getGreenMask())
+                && isByteMask(direct.getBlueMask()) && (!direct.hasAlpha() || isByteMask(direct.getAlphaMask()))) {
+                return new PackedRows(image, inPlace ? image : blank(image), direct, curve);
+            }
+            return null;
+        }
+        if (colorModel instanceof ComponentColorModel && raster.getSampleModel() instanceof PixelInterleavedSampleModel
+            && dataBuffer instanceof DataBufferByte) {
+            for (int bits : colorModel.getComponentSize()) {
+                if (bits != 8) {
+                    return null;
+                }
+            }
+            PixelInterleavedSampleModel interleaved = (PixelInterleavedSampleModel) raster.getSampleModel();
+            if (!isPacked(interleaved.getBandOffsets(), interleaved.getPixelStride())) {
+                return null;
+            }
+            ColorSpace colorSpace = colorModel.getColorSpace();
+            int colors = colorModel.getNumColorComponents();
+            boolean rgb = colors == 3 && colorSpace.isCS_sRGB();
+            boolean grey = colors == 1 && colorSpace.getType() == ColorSpace.TYPE_GRAY && curve.isUniform();
+            if (rgb || grey) {
+                return new InterleavedRows(image, inPlace ? image : blank(image), curve, colors);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isByteMask(int mask) {
+        return mask == 0xFF || mask == 0xFF00 || mask == 0xFF0000 || mask == 0xFF000000;
+    }
+
+    /*
+    Every byte of a pixel belongs to exactly one band, as in all the standard interleaved types.
+     */
+    private static boolean isPacked(int[] bandOffsets, int pixelStride) {
+        if (bandOffsets.length != pixelStride) {
+            return false;
+        }
+        boolean[] seen = new boolean[pixelStride];
+        for (int offset : bandOffsets) {
+            if (offset < 0 || offset >= pixelStride || seen[offset]) {
+                return false;
+            }
+            seen[offset] = true;
+        }
+        return true;
+    }
+
+    private static BufferedImage blank(BufferedImage image) {
+        ColorModel colorModel = image.getColorModel();
+        WritableRaster raster = image.getRaster().createCompatibleWritableRaster(image.getWidth(), image.getHeight());
+        return new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+    }
+
+    /*
+    The same copy Scalr makes before it applies an op.
+     */
+    private static BufferedImage copyToRgb(BufferedImage image) {
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(),
+            image.getTransparency() == Transparency.OPAQUE ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = copy.createGraphics();
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        return copy;
+    }
+
+    /**
+     * One table per color channel. Alpha is never looked up.
+     */
+    static final class Curve {
+        private final byte[] red;
+        private final byte[] green;
+        private final byte[] blue;
+
+        private Curve(byte[] red, byte[] green, byte[] blue) {
+            this.red = red;
+            this.green = green;
+            this.blue = blue;
+        }
+
+        private static Curve uniform(byte[] table) {
+            return new Curve(table, table, table);
+        }
+
+        static Curve of(byte[] red, byte[] green, byte[] blue) {
+            if (red.length != 256 || green.length != 256 || blue.length != 256) {
+                throw new IllegalArgumentException("Channel tables must have 256 entries");
+            }
+            return new Curve(red.clone(), green.clone(), blue.clone());
+        }
+
+        /*
+        v * scale + offset, truncated and clamped the way RescaleOp builds its byte lookup table.
+         */
+        static Curve rescale(float scale, float offset) {
+            byte[] table = new byte[256];
+            for (int v = 0; v < 256; v++) {
+                table[v] = (byte) clamp((int) (v * scale + offset));
+            }
+            return uniform(table);
+        }
+
+        /*
+        Stretches (contrast > 1) or flattens (contrast < 1) values around mid-grey.
+         */
+        static Curve contrast(float contrast) {
+            return rescale(contrast, 127.5f * (1 - contrast));
+        }
+
+        /*
+        255 * (v / 255) ^ (1 / gamma), rounded; gamma > 1 lifts the shadows.
+         */
+        static Curve gamma(double gamma) {
+            if (!(gamma > 0)) {
+                throw new IllegalArgumentException("Gamma must be positive: " + gamma);
+            }
+            byte[] table = new byte[256];
+            for (int v = 0; v < 256; v++) {
+                table[v] = (byte) clamp((int) Math.round(255 * Math.pow(v / 255.0, 1 / gamma)));
+            }
+            return uniform(table);
+        }
+
+        /*
+        Brightness scales like OP_BRIGHTER / OP_DARKER, then contrast, then gamma; 1, 1, 1 is the identity.
+         */
+        static Curve adjust(float brightness, float contrast, double gamma) {
+            return rescale(brightness, 0).then(contrast(contrast)).then(gamma(gamma));
+        }
+
+        /*
+        This curve followed by next, folded into one table per channel.
+         */
+        Curve then(Curve next) {
+            return new Curve(compose(red, next.red), compose(green, next.green), compose(blue, next.blue));
+        }
+
+        private static byte[] compose(byte[] first, byte[] second) {
+            byte[] table = new byte[256];
+            for (int v = 0; v < 256; v++) {
+                table[v] = second[first[v] & 0xFF];
+            }
+            return table;
+        }
+
+        boolean isUniform() {
+            return Arrays.equals(red, green) && Arrays.equals(green, blue);
+        }
+
+        private byte[] channel(int component) {
+            return component == 0 ? red : component == 1 ? green : blue;
+        }
+
+        private static int clamp(int value) {
+            return value < 0 ? 0 : value > 255 ? 255 : value;
+        }
+    }
+
+    private abstract static class Rows {
+        final int width;
+        final int height;
+        final BufferedImage target;
+
+        Rows(BufferedImage source, BufferedImage target) {
+            this.width = source.getWidth();
+            this.height = source.getHeight();
+            this.target = target;
+        }
+
+        abstract void apply(int y);
+    }
+
+    /**
+     * Packed ints: each color channel is looked up in a table already shifted to its position, so a pixel is
+     * three loads and an or, with the alpha bits carried over by mask.
+     */
+    private static final class PackedRows extends Rows {
+        private final int[] in;
+        private final int inOffset;
+        private final int inStride;
+        private final int[] out;
+        private final int outOffset;
+        private final int outStride;
+        private final int redShift;
+        private final int greenShift;
+        private final int blueShift;
+        private final int alphaMask;
+        private final int[] redTable = new int[256];
+        private final int[] greenTable = new int[256];
+        private final int[] blueTable = new int[256];
+
+        private PackedRows(BufferedImage source, BufferedImage target, DirectColorModel colorModel, Curve curve) {
+            super(source, target);
+            WritableRaster from = source.getRaster();
+            WritableRaster to = target.getRaster();
+            SinglePixelPackedSampleModel fromModel = (SinglePixelPackedSampleModel) from.getSampleModel();
+            SinglePixelPackedSampleModel toModel = (SinglePixelPackedSampleModel) to.getSampleModel();
+            this.in = ((DataBufferInt) from.getDataBuffer()).getData();
+            this.inOffset = from.getDataBuffer().getOffset()
+                + fromModel.getOffset(-from.getSampleModelTranslateX(), -from.getSampleModelTranslateY());
+            this.inStride = fromModel.getScanlineStride();
+            this.out = ((DataBufferInt) to.getDataBuffer()).getData();
+            this.outOffset = to.getDataBuffer().getOffset()
+                + toModel.getOffset(-to.getSampleModelTranslateX(), -to.getSampleModelTranslateY());
+            this.outStride = toModel.getScanlineStride();
+            this.redShift = Integer.numberOfTrailingZeros(colorModel.getRedMask());
+            this.greenShift = Integer.numberOfTrailingZeros(colorModel.getGreenMask());
+            this.blueShift = Integer.numberOfTrailingZeros(colorModel.getBlueMask());
+            this.alphaMask = colorModel.getAlphaMask();
+            for (int v = 0; v < 256; v++) {
+                redTable[v] = (curve.red[v] & 0xFF) << redShift;
+                greenTable[v] = (curve.green[v] & 0xFF) << greenShift;
+                blueTable[v] = (curve.blue[v] & 0xFF) << blueShift;
+            }
+        }
+
+        @Override
+        void apply(int y) {
+            int[] in = this.in;
+            int[] out = this.out;
+            int[] redTable = this.redTable;
+            int[] greenTable = this.greenTable;
+            int[] blueTable = this.blueTable;
+            int from = inOffset + y * inStride;
+            int to = outOffset + y * outStride;
+            for (int x = 0; x < width; x++) {
+                int pixel = in[from + x];
+                out[to + x] = (pixel & alphaMask) | redTable[(pixel >>> redShift) & 0xFF]
+                    | greenTable[(pixel >>> greenShift) & 0xFF] | blueTable[(pixel >>> blueShift) & 0xFF];
+            }
+        }
+    }
+
+    /**
+     * Interleaved bytes. Tables are arranged by byte position within a pixel, so a row is one pass over its
+     * bytes; when every position uses the same table, as for grey or an opaque uniform curve, the position
+     * is not even tracked.
+     */
+    private static final class InterleavedRows extends Rows {
+        private static final byte[] IDENTITY = new byte[256];
+
+        static {
+            for (int v = 0; v < 256; v++) {
+                IDENTITY[v] = (byte) v;
+            }
+        }
+
+        private final byte[] in;
+        private final int inOffset;
+        private final int inStride;
+        private final byte[] out;
+        private final int outOffset;
+        private final int outStride;
+        private final int pixelStride;
+        private final byte[][] tables;
+        private final byte[] flat;
+
+        private InterleavedRows(BufferedImage source, BufferedImage target, Curve curve, int colors) {
+            super(source, target);
+            WritableRaster from = source.getRaster();
+            WritableRaster to = target.getRaster();
+            PixelInterleavedSampleModel fromModel = (PixelInterleavedSampleModel) from.getSampleModel();
+            PixelInterleavedSampleModel toModel = (PixelInterleavedSampleModel) to.getSampleModel();
+            this.in = ((DataBufferByte) from.getDataBuffer()).getData();
+            this.inStride = fromModel.getScanlineStride();
+            this.out = ((DataBufferByte) to.getDataBuffer()).getData();
+            this.outStride = toModel.getScanlineStride();
+            this.pixelStride = fromModel.getPixelStride();
+            int[] fromBands = fromModel.getBandOffsets();
+            int[] toBands = toModel.getBandOffsets();
+            this.inOffset = from.getDataBuffer().getOffset()
+                + fromModel.getOffset(-from.getSampleModelTranslateX(), -from.getSampleModelTranslateY()) - fromBands[0];
+            this.outOffset = to.getDataBuffer().getOffset()
+                + toModel.getOffset(-to.getSampleModelTranslateX(), -to.getSampleModelTranslateY()) - toBands[0];
+            if (toModel.getPixelStride() != pixelStride || !Arrays.equals(fromBands, toBands)) {
+                throw new IllegalStateException("Compatible raster changed the pixel layout");
+            }
+            this.tables = new byte[pixelStride][];
+            for (int band = 0; band < fromBands.length; band++) {
+                tables[fromBands[band]] = band < colors ? curve.channel(band) : IDENTITY;
+            }
+            byte[] shared = tables[0];
+            for (byte[] table : tables) {
+                if (table != shared) {
+                    shared = null;
+                    break;
+                }
+            }
+            this.flat = shared;
+        }
+
+        @Override
+        void apply(int y) {
+            byte[] in = this.in;
+            byte[] out = this.out;
+            int from = inOffset + y * inStride;
+            int to = outOffset + y * outStride;
+            int length = width * pixelStride;
+            if (flat != null) {
+                byte[] table = flat;
+                for (int i = 0; i < length; i++) {
+                    out[to + i] = table[in[from + i] & 0xFF];
+                }
+                return;
+            }
+            if (pixelStride == 3) {
+                byte[] t0 = tables[0];
+                byte[] t1 = tables[1];
+                byte[] t2 = tables[2];
+                for (int i = 0; i < length; i += 3) {
+                    out[to + i] = t0[in[from + i] & 0xFF];
+                    out[to + i + 1] = t1[in[from + i + 1] & 0xFF];
+                    out[to + i + 2] = t2[in[from + i + 2] & 0xFF];
+                }
+                return;
+            }
+            if (pixelStride == 4) {
+                byte[] t0 = tables[0];
+                byte[] t1 = tables[1];
+                byte[] t2 = tables[2];
+                byte[] t3 = tables[3];
+                for (int i = 0; i < length; i += 4) {
+                    out[to + i] = t0[in[from + i] & 0xFF];
+                    out[to + i + 1] = t1[in[from + i + 1] & 0xFF];
+                    out[to + i + 2] = t2[in[from + i + 2] & 0xFF];
+                    out[to + i + 3] = t3[in[from + i + 3] & 0xFF];
+                }
+                return;
+            }
+            for (int i = 0; i < length; i++) {
+                out[to + i] = tables[i % pixelStride][in[from + i] & 0xFF];
+            }
+        }
+    }
+
+    private static final class Stripe extends RecursiveAction {
+        private final Rows rows;
+        private final int fromRow;
+        private final int toRow;
+
+        private Stripe(Rows rows, int fromRow, int toRow) {
+            this.rows = rows;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        @Override
+        protected void compute() {
+            int count = toRow - fromRow;
+            if (count > 1 && (long) count * rows.width > STRIPE_PIXELS) {
+                int middle = fromRow + count / 2;
+                invokeAll(new Stripe(rows, fromRow, middle), new Stripe(rows, middle, toRow));
+                return;
+            }
+            for (int y = fromRow; y < toRow; y++) {
+                rows.apply(y);
+            }
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.company;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Content-addressed cache of encoded variants, keyed by the source object's ETag and the variant.
+ * <p>
+ * The first tier is an in-memory LRU bounded by total bytes. Entries evicted from it spill into an
+ * optional directory tier, itself bounded by total bytes and evicted least recently used first; the
+ * directory survives restarts. The cache also remembers which derived objects are already in S3 so
+ * that, with deterministic keys, an upload can be skipped altogether. Its counters are published through
+ * {@link Metrics} as {@code cache.variants}.
+ */
+class VariantCache implements VariantCacheMBean {
+
+    private static final Logger logger = LoggerTool.setupLogger("VariantCache");
+
+    private final long maxMemoryBytes;
+    private final File diskDirectory;
+    private final long maxDiskBytes;
+    private final boolean skipExistingUploads;
+    private final int maxPublishedEntries;
+
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(256, 0.75f, true);
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(256, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> published;
+    private long memoryBytes;
+    private long diskBytes;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong memoryEvictions = new AtomicLong();
+    private final AtomicLong diskEvictions = new AtomicLong();
+    private final AtomicLong skippedUploads = new AtomicLong();
+
+    VariantCache(Settings settings) {
+        this.maxMemoryBytes = settings.maxMemoryBytes;
+        this.diskDirectory = settings.diskDirectory;
+        this.maxDiskBytes = settings.maxDiskBytes;
+        this.skipExistingUploads = settings.skipExistingUploads;
+        this.maxPublishedEntries = settings.maxPublishedEntries;
+        this.published = new LinkedHashMap<String, Boolean>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > maxPublishedEntries;
+            }
+        };
+        if (diskDirectory != null) {
+            loadDiskTier();
+        }
+        Metrics.cache(this);
+    }
+
+    byte[] get(String etag, ImageVariant variant) {
+        String key = cacheKey(etag, variant);
+        synchronized (this) {
+            byte[] bytes = memory.get(key);
+            if (bytes != null) {
+                memoryHits.incrementAndGet();
+                return bytes;
+            }
+            if (disk.get(key) == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(diskFile(key).toPath());
+            diskHits.incrementAndGet();
+            put(key, bytes);
+            return bytes;
+        } catch (IOException e) {
+            logger.warning("Reading cached " + key + " failed: " + e);
+            synchronized (this) {
+                Long size = disk.remove(key);
+                if (size != null) {
+                    diskBytes -= size;
+                }
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    void put(String etag, ImageVariant variant, byte[] encoded) {
+        put(cacheKey(etag, variant), encoded);
+    }
+
+    /*
+    For variants encoded straight to a file. Those that fit the memory tier are read into it; larger ones
+    are copied into the directory tier without passing through the heap.
+     */
+    void put(String etag, ImageVariant variant, File encoded) {
+        String key = cacheKey(etag, variant);
+        long length = encoded.length();
+        if (length > maxMemoryBytes) {
+            spill(key, length, temp -> Files.copy(encoded.toPath(), temp, StandardCopyOption.REPLACE_EXISTING));
+            return;
+        }
+        try {
+            put(key, Files.readAllBytes(encoded.toPath()));
+        } catch (IOException e) {
+            logger.warning("Caching " + key + " from " + encoded + " failed: " + e);
+        }
+    }
+
+    boolean isPublished(String etag, ImageVariant variant) {
+        if (!skipExistingUploads) {
+            return false;
+        }
+        synchronized (published) {
+            return published.get(cacheKey(etag, variant)) != null;
+        }
+    }
+
+    void markPublished(String etag, ImageVariant variant) {
+        if (skipExistingUploads) {
+            synchronized (published) {
+                published.put(cacheKey(etag, variant), Boolean.TRUE);
+            }
+        }
+    }
+
+    void recordSkippedUpload() {
+        skippedUploads.incrementAndGet();
+    }
+
+    /*
+    With skipExistingUploads the derived key no longer carries a timestamp, so the same source and variant
+    always map to the same object.
+     */
+    boolean isSkipExistingUploads() {
+        return skipExistingUploads;
+    }
+
+    private void put(String key, byte[] encoded) {
+        if (encoded.length > maxMemoryBytes) {
+            spill(key, encoded);
+            return;
+        }
+        Map<String, byte[]> evicted = new LinkedHashMap<>();
+        synchronized (this) {
+            byte[] previous = memory.put(key, encoded);
+            memoryBytes += encoded.length - (previous == null ? 0 : previous.length);
+            Iterator<Map.Entry<String, byte[]>> eldest = memory.entrySet().iterator();
+            while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+                Map.Entry<String, byte[]> entry = eldest.next();
+                eldest.remove();
+                memoryBytes -= entry.getValue().length;
+                memoryEvictions.incrementAndGet();
+                evicted.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<String, byte[]> entry : evicted.entrySet()) {
+            spill(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void spill(String key, byte[] encoded) {
+        spill(key, encoded.length, temp -> Files.write(temp, encoded));
+    }
+
+    private void spill(String key, long length, Content content) {
+        if (diskDirectory == null || length > maxDiskBytes) {
+            return;
+        }
+        synchronized (this) {
+            if (disk.containsKey(key)) {
+                return;
+            }
+        }
+        File target = diskFile(key);
+        try {
+            File temp = File.createTempFile("variant", ".tmp", diskDirectory);
+            content.writeTo(temp.toPath());
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warning("Spilling " + key + " to disk failed: " + e);
+            return;
+        }
+        synchronized (this) {
+            Long previous = disk.put(key, length);
+            diskBytes += length - (previous == null ? 0 : previous);
+            evictDisk();
+        }
+    }
+
+    private void evictDisk() {
+        Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+        while (diskBytes > maxDiskBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            eldest.remove();
+            diskBytes -= entry.getValue();
+            diskEvictions.incrementAndGet();
+            if (!diskFile(entry.getKey()).delete()) {
+                logger.warning("Fail to remove cached file for : " + entry.getKey());
+            }
+        }
+    }
+
+    private synchronized void loadDiskTier() {
+        if (!diskDirectory.isDirectory() && !diskDirectory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create cache directory " + diskDirectory);
+        }
+        File[] files = diskDirectory.listFiles((dir, name) -> name.endsWith(".png"));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            String name = file.getName();
+            disk.put(name.substring(0, name.length() - ".png".length()), file.length());
+            diskBytes += file.length();
+        }
+        evictDisk();
+        logger.info("Loaded " + disk.size() + " cached variants (" + diskBytes + " bytes) from " + diskDirectory);
+    }
+
+    private File diskFile(String key) {
+        return new File(diskDirectory, key + ".png");
+    }
+
+    private static String cacheKey(String etag, ImageVariant variant) {
+        return etag.replaceAll("[^A-Za-z0-9_-]", "_") + "-" + variant.name();
+    }
+
+    @Override
+    public String getName() {
+        return "cache.variants";
+    }
+
+    @Override
+    public long getMemoryHitCount() {
+        return memoryHits.get();
+    }
+
+    @Override
+    public long getDiskHitCount() {
+        return diskHits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public long getMemoryEvictionCount() {
+        return memoryEvictions.get();
+    }
+
+    @Override
+    public long getDiskEvictionCount() {
+        return diskEvictions.get();
+    }
+
+    @Override
+    public long getSkippedUploadCount() {
+        return skippedUploads.get();
+    }
+
+    @Override
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    @Override
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "memoryHits=" + getMemoryHitCount() + ", diskHits=" + getDiskHitCount() + ", misses="
+            + getMissCount() + ", memoryEvictions=" + getMemoryEvictionCount() + ", diskEvictions="
+            + getDiskEvictionCount() + ", skippedUploads=" + getSkippedUploadCount();
+    }
+
+    private interface Content {
+        void writeTo(Path file) throws IOException;
+    }
+
+    /**
+     * Tier sizes. The disk tier is off unless a directory is given. Defaults come from {@code cache.*} system
+     * properties: cache.maxMemoryBytes, cache.diskDirectory with cache.maxDiskBytes, cache.skipExistingUploads
+     * and cache.maxPublishedEntries.
+     */
+    static class Settings {
+
+        private long maxMemoryBytes = Long.getLong("cache.maxMemoryBytes", 64L * 1024 * 1024);
+        private File diskDirectory = System.getProperty("cache.diskDirectory") == null ? null
+            : new File(System.getProperty("cache.diskDirectory"));
+        private long maxDiskBytes = Long.getLong("cache.maxDiskBytes", 1024L * 1024 * 1024);
+        private boolean skipExistingUploads = Boolean.getBoolean("cache.skipExistingUploads");
+        private int maxPublishedEntries = Integer.getInteger("cache.maxPublishedEntries", 100000);
+
+        Settings withMaxMemoryBytes(long maxMemoryBytes) {
+            this.maxMemoryBytes = maxMemoryBytes;
+            return this;
+        }
+
+        Settings withDiskTier(File diskDirectory, long maxDiskBytes) {
+            this.diskDirectory = diskDirectory;
+            this.maxDiskBytes = maxDiskBytes;
+            return this;
+        }
+
+        Settings withSkipExistingUploads(boolean skipExistingUploads) {
+            this.skipExistingUploads = skipExistingUploads;
+            return this;
+        }
+
+        Settings withMaxPublishedEntries(int maxPublishedEntries) {
+            this.maxPublishedEntries = maxPublishedEntries;
+            return this;
+        }
+    }
+}
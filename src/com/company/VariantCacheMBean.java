@@ -0,0 +1,28 @@
+package com.company;
+
+/**
+ * JMX view of a {@link VariantCache}: hits and misses per tier, evictions, skipped uploads and tier sizes.
+ */
+public interface VariantCacheMBean {
+
+    String getName();
+
+    long getMemoryHitCount();
+
+    long getDiskHitCount();
+
+    long getMissCount();
+
+    long getMemoryEvictionCount();
+
+    long getDiskEvictionCount();
+
+    /*
+    Variants not uploaded because their derived object was already in S3.
+     */
+    long getSkippedUploadCount();
+
+    long getMemoryBytes();
+
+    long getDiskBytes();
+}
@@ -0,0 +1,70 @@
+package com.company;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Decodes a source image once so that every requested {@link ImageVariant} can be derived from that
+ * single decoded copy. The decode counter lets callers confirm that each message costs exactly one decode.
+ */
+class VariantFanOut {
+
+    private final ImageEditor ie;
+    private final Set<ImageVariant> variants;
+    private final AtomicLong decodeCount = new AtomicLong();
+
+    VariantFanOut(ImageEditor ie) {
+        this(ie, EnumSet.allOf(ImageVariant.class));
+    }
+
+    VariantFanOut(ImageEditor ie, Set<ImageVariant> variants) {
+        this.ie = ie;
+        this.variants = Collections.unmodifiableSet(EnumSet.copyOf(variants));
+    }
+
+    BufferedImage decode(File file) throws IOException {
+        BufferedImage source = ImageIO.read(file);
+        if (source == null) {
+            throw new IOException("No image reader found for " + file);
+        }
+        decodeCount.incrementAndGet();
+        return source;
+    }
+
+    BufferedImage decode(InputStream in) throws IOException {
+        BufferedImage source = ImageCodec.decode(in);
+        decodeCount.incrementAndGet();
+        return source;
+    }
+
+    /*
+    Derives one variant from the shared source. Transforms never write to the source.
+     */
+    BufferedImage transform(ImageVariant variant, BufferedImage source) {
+        return variant.transform(ie, source);
+    }
+
+    /*
+    Derives several variants in one pass over the source, see {@link FusedVariantKernel}.
+     */
+    Map<ImageVariant, BufferedImage> transform(BufferedImage source, Set<ImageVariant> requested) {
+        return FusedVariantKernel.apply(source, requested);
+    }
+
+    Set<ImageVariant> getVariants() {
+        return variants;
+    }
+
+    long getDecodeCount() {
+        return decodeCount.get();
+    }
+}